@@ -0,0 +1,28 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/***
+ * Runs the benchmarks selected on the command line (all by default) with the
+ * GC profiler, so the allocation rate per operation is reported next to ops/s
+ * and the latency percentiles. Accepts the usual JMH options, e.g.
+ * <code>-p subjects=1,100000 -p bucketInterval=1,5 RateLimitServiceBenchmark</code>.
+ * 
+ * @author hamster
+ * 
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    final CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+      // plain JMH handles the informational options
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+  }
+}
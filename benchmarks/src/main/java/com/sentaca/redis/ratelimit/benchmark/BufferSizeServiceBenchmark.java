@@ -0,0 +1,75 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sentaca.redis.ratelimit.BufferSizeService;
+
+/***
+ * Round trips of {@link BufferSizeService} against redis.
+ * 
+ * @author hamster
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferSizeServiceBenchmark {
+
+  @Param({ "1", "10000" })
+  public int subjects;
+
+  private Redis redis;
+  private BufferSizeService service;
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    redis = new Redis();
+    service = new BufferSizeService(redis.getPool(), "bench", "buffer");
+    names = Subjects.names(subjects);
+    for (String name : names) {
+      service.setCurrentBufferSize(name, 100);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    redis.stop();
+  }
+
+  @Benchmark
+  public int get(Subjects cursor) {
+    return service.getCurrentBufferSize(cursor.next(names));
+  }
+
+  @Benchmark
+  public void set(Subjects cursor) {
+    service.setCurrentBufferSize(cursor.next(names), 100);
+  }
+
+  @Benchmark
+  public long increment(Subjects cursor) {
+    return service.incrementCurrentBufferSize(cursor.next(names));
+  }
+
+  @Benchmark
+  public long decrement(Subjects cursor) {
+    return service.decrementCurrentBufferSize(cursor.next(names));
+  }
+}
@@ -0,0 +1,69 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sentaca.redis.ratelimit.RateLimitService;
+import com.sentaca.redis.ratelimit.SubjectKeyGenerator;
+
+import redis.clients.jedis.JedisPool;
+
+/***
+ * Client side work done before every round trip: bucket arithmetic and key
+ * building. Does not need redis.
+ * 
+ * @author hamster
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+
+  @Param({ "300" })
+  public int bucketSpan;
+
+  @Param({ "1" })
+  public int bucketInterval;
+
+  @Param({ "10" })
+  public int tpsInterval;
+
+  @Param({ "1", "10000" })
+  public int subjects;
+
+  private RateLimitService service;
+  private SubjectKeyGenerator generator;
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    service = new RateLimitService((JedisPool) null, "bench", "action", bucketSpan, bucketInterval, tpsInterval);
+    generator = new SubjectKeyGenerator();
+    names = Subjects.names(subjects);
+  }
+
+  @Benchmark
+  public int getBucket() {
+    return service.getBucket(System.currentTimeMillis());
+  }
+
+  @Benchmark
+  public String getKeyForSubject(Subjects cursor) {
+    return generator.getKeyForSubject("bench", "action", cursor.next(names));
+  }
+}
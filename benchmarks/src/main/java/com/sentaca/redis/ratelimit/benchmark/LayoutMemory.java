@@ -0,0 +1,73 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import com.sentaca.redis.ratelimit.BucketLayout;
+import com.sentaca.redis.ratelimit.RateLimitService;
+
+import redis.clients.jedis.Jedis;
+
+/***
+ * Compares the redis memory taken by the bucket layouts: fills every subject
+ * with a full window of buckets and prints the used_memory growth per subject.
+ * Arguments are the subjects (10000), bucketsUsedForTps (60) and the bucket
+ * interval (1), e.g.
+ * <code>java -cp target/benchmarks.jar com.sentaca.redis.ratelimit.benchmark.LayoutMemory 100000 300</code>.
+ *
+ * @author hamster
+ *
+ */
+public class LayoutMemory {
+
+  public static void main(String[] args) {
+    final int subjects = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    final int tpsInterval = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+    final int bucketInterval = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    final String[] names = Subjects.names(subjects);
+    final Redis redis = new Redis();
+    try {
+      System.out.printf("%d subjects, %d buckets of %ds%n", subjects, tpsInterval, bucketInterval);
+      for (BucketLayout layout : BucketLayout.values()) {
+        final RateLimitService service = new RateLimitService(redis.getPool(), "memory", layout.name(), tpsInterval
+            * bucketInterval * 2, bucketInterval, tpsInterval * bucketInterval);
+        service.setBucketLayout(layout);
+        final long before = flush(redis);
+        final long now = System.currentTimeMillis();
+        for (int b = tpsInterval - 1; b >= 0; b--) {
+          for (String name : names) {
+            service.add(now - b * bucketInterval * 1000L, name);
+          }
+        }
+        final long bytes = usedMemory(redis) - before;
+        System.out.printf("%-6s %8d bytes per subject%n", layout, bytes / subjects);
+      }
+    } finally {
+      redis.stop();
+    }
+  }
+
+  /***
+   * Empties the database, the layouts are measured one by one.
+   */
+  private static long flush(Redis redis) {
+    final Jedis j = redis.getPool().getResource();
+    try {
+      j.flushDB();
+    } finally {
+      redis.getPool().returnResource(j);
+    }
+    return usedMemory(redis);
+  }
+
+  private static long usedMemory(Redis redis) {
+    final Jedis j = redis.getPool().getResource();
+    try {
+      for (String line : j.info().split("\r\n")) {
+        if (line.startsWith("used_memory:")) {
+          return Long.parseLong(line.substring("used_memory:".length()));
+        }
+      }
+      throw new IllegalStateException("No used_memory in INFO");
+    } finally {
+      redis.getPool().returnResource(j);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sentaca.redis.ratelimit.BucketLayout;
+import com.sentaca.redis.ratelimit.CountResult;
+import com.sentaca.redis.ratelimit.RateLimitService;
+import com.sentaca.redis.ratelimit.ThrottleRule;
+import com.sentaca.redis.ratelimit.Tps;
+
+/***
+ * Round trips of {@link RateLimitService} against redis, for every storage
+ * mode. Subject cardinality 1 measures a single hot key, larger values spread
+ * the load over many hashes.
+ * 
+ * @author hamster
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimitServiceBenchmark {
+
+  /***
+   * MULTI/EXEC transactions with string or byte[] commands, ring layout
+   * scripts or epoch layout scripts.
+   */
+  @Param({ "MULTI", "BINARY", "SCRIPTED", "EPOCH" })
+  public String storage;
+
+  @Param({ "300" })
+  public int bucketSpan;
+
+  @Param({ "1" })
+  public int bucketInterval;
+
+  @Param({ "10" })
+  public int tpsInterval;
+
+  @Param({ "1", "10000" })
+  public int subjects;
+
+  private Redis redis;
+  private RateLimitService service;
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    redis = new Redis();
+    service = new RateLimitService(redis.getPool(), "bench", "action", bucketSpan, bucketInterval, tpsInterval);
+    service.setScripted("SCRIPTED".equals(storage));
+    service.setBinary("BINARY".equals(storage));
+    service.setBucketLayout("EPOCH".equals(storage) ? BucketLayout.EPOCH : BucketLayout.RING);
+    names = Subjects.names(subjects);
+    // every subject starts with a populated window
+    final long now = System.currentTimeMillis();
+    for (String name : names) {
+      service.add(now, name);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    redis.stop();
+  }
+
+  @Benchmark
+  public void add(Subjects cursor) {
+    service.add(System.currentTimeMillis(), cursor.next(names));
+  }
+
+  @Benchmark
+  public CountResult count(Subjects cursor) {
+    return service.count(System.currentTimeMillis(), cursor.next(names));
+  }
+
+  @Benchmark
+  public Tps tps(Subjects cursor) {
+    return service.tps(cursor.next(names));
+  }
+
+  @Benchmark
+  public double tpsByRule(Subjects cursor) {
+    return service.tps(cursor.next(names), ThrottleRule.BY_AVERAGE_TPS);
+  }
+
+  @Benchmark
+  public double tpsByLatestBucket(Subjects cursor) {
+    return service.tps(cursor.next(names), ThrottleRule.BY_LATEST_BUCKET_TPS);
+  }
+}
@@ -0,0 +1,79 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+
+/***
+ * Redis used by the benchmarks. Starts an embedded redis-server on a free port
+ * unless -Dredis.host (and optionally -Dredis.port) points to an external one,
+ * which is flushed before every trial.
+ * 
+ * @author hamster
+ * 
+ */
+class Redis {
+
+  private final RedisServer server;
+  private final JedisPool pool;
+
+  Redis() {
+    final String host = System.getProperty("redis.host");
+    final int port;
+    if (host == null) {
+      port = freePort();
+      try {
+        server = new RedisServer(port);
+        server.start();
+      } catch (IOException ex) {
+        throw new IllegalStateException("Cannot start embedded redis", ex);
+      }
+    } else {
+      port = Integer.getInteger("redis.port", 6379);
+      server = null;
+    }
+    final GenericObjectPool.Config config = new GenericObjectPool.Config();
+    config.maxActive = 64;
+    config.maxIdle = 64;
+    pool = new JedisPool(config, host == null ? "localhost" : host, port);
+    final Jedis j = pool.getResource();
+    try {
+      j.flushDB();
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  JedisPool getPool() {
+    return pool;
+  }
+
+  void stop() {
+    pool.destroy();
+    if (server != null) {
+      try {
+        server.stop();
+      } catch (IOException ex) {
+        throw new IllegalStateException("Cannot stop embedded redis", ex);
+      }
+    }
+  }
+
+  private static int freePort() {
+    try {
+      final ServerSocket socket = new ServerSocket(0);
+      try {
+        return socket.getLocalPort();
+      } finally {
+        socket.close();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException("No free port", ex);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.sentaca.redis.ratelimit.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/***
+ * Per thread cursor over the subject names, so every benchmark thread walks
+ * the whole subject space without contending on a shared counter.
+ * 
+ * @author hamster
+ * 
+ */
+@State(Scope.Thread)
+public class Subjects {
+
+  private int next;
+
+  static String[] names(int cardinality) {
+    final String[] names = new String[cardinality];
+    for (int i = 0; i < cardinality; i++) {
+      names[i] = "subject-" + i;
+    }
+    return names;
+  }
+
+  String next(String[] names) {
+    if (next == names.length) {
+      next = 0;
+    }
+    return names[next++];
+  }
+}
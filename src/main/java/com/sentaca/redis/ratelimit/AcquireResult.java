@@ -0,0 +1,53 @@
+package com.sentaca.redis.ratelimit;
+
+public class AcquireResult {
+  private boolean allowed;
+  private long retryAfter;
+  private Tps tps;
+
+  /***
+   * Constructs the result of the check-and-increment call.
+   * 
+   * @param allowed
+   *          true if the hit was within the limit and was recorded
+   * @param retryAfter
+   *          milliseconds to wait before the hit would be allowed, 0 when
+   *          allowed
+   * @param tps
+   *          rates after the call, including the hit when it was allowed
+   */
+  public AcquireResult(boolean allowed, long retryAfter, Tps tps) {
+    this.allowed = allowed;
+    this.retryAfter = retryAfter;
+    this.tps = tps;
+  }
+
+  /***
+   * Checks if the hit was allowed (and recorded).
+   * 
+   * @return
+   */
+  public boolean isAllowed() {
+    return allowed;
+  }
+
+  /***
+   * Gets the suggested time in milliseconds to wait before retrying. It is the
+   * time until enough buckets drop out of the tps window, assuming no other
+   * hits arrive in the meantime.
+   * 
+   * @return
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+  /***
+   * Gets the rates observed by the call.
+   * 
+   * @return
+   */
+  public Tps getTps() {
+    return tps;
+  }
+}
@@ -0,0 +1,138 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.sentaca.redis.ratelimit.BufferSizeService.Op;
+
+/***
+ * Non-blocking front of a {@link BufferSizeService}. Calls queued while a
+ * background thread was busy are sent together in one pipeline over one
+ * connection. The returned futures are completed on those threads, so
+ * callbacks should not block.
+ */
+public class AsyncBufferSizeService {
+
+  private static final int DEFAULT_THREADS = 1;
+  private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+  private static final int DEFAULT_MAX_QUEUED = 100000;
+
+  private final Coalescer<Call<?>> coalescer;
+
+  /***
+   *
+   * @param service
+   * @param threads
+   *          - number of pipelines sent in parallel, each borrows a connection
+   *          from the pool of the service
+   * @param maxBatchSize
+   *          - max number of calls sent in one pipeline
+   * @param maxQueued
+   *          - max number of calls waiting to be sent, further calls fail
+   *          with a JedisConnectionException until the queue drains
+   */
+  public AsyncBufferSizeService(final BufferSizeService service, int threads, int maxBatchSize, int maxQueued) {
+    this.coalescer = new Coalescer<Call<?>>("buffersize-async", threads, maxBatchSize, maxQueued) {
+
+      @Override
+      void execute(List<Call<?>> calls) throws Exception {
+        final int size = calls.size();
+        final List<Op> ops = new ArrayList<Op>(size);
+        final List<String> subjects = new ArrayList<String>(size);
+        final int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+          final Call<?> call = calls.get(i);
+          ops.add(call.op);
+          subjects.add(call.subject);
+          values[i] = call.value;
+        }
+        final List<Object> results = service.pipelined(ops, subjects, values);
+        for (int i = 0; i < size; i++) {
+          calls.get(i).complete(results.get(i));
+        }
+      }
+
+      @Override
+      void fail(Call<?> call, Throwable cause) {
+        call.future.completeExceptionally(cause);
+      }
+    };
+  }
+
+  /***
+   * @see #AsyncBufferSizeService(BufferSizeService, int, int, int)
+   * @param service
+   * @param threads
+   * @param maxBatchSize
+   */
+  public AsyncBufferSizeService(BufferSizeService service, int threads, int maxBatchSize) {
+    this(service, threads, maxBatchSize, DEFAULT_MAX_QUEUED);
+  }
+
+  /***
+   * @see #AsyncBufferSizeService(BufferSizeService, int, int, int)
+   * @param service
+   */
+  public AsyncBufferSizeService(BufferSizeService service) {
+    this(service, DEFAULT_THREADS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_QUEUED);
+  }
+
+  /***
+   * @see BufferSizeService#getCurrentBufferSize(String)
+   */
+  public CompletableFuture<Integer> getCurrentBufferSize(String subject) {
+    return submit(new Call<Integer>(Op.GET, subject, 0));
+  }
+
+  /***
+   * @see BufferSizeService#setCurrentBufferSize(String, int)
+   */
+  public CompletableFuture<Void> setCurrentBufferSize(String subject, int buffer) {
+    return submit(new Call<Void>(Op.SET, subject, buffer));
+  }
+
+  /***
+   * @see BufferSizeService#incrementCurrentBufferSize(String)
+   */
+  public CompletableFuture<Long> incrementCurrentBufferSize(String subject) {
+    return submit(new Call<Long>(Op.INCR, subject, 0));
+  }
+
+  /***
+   * @see BufferSizeService#decrementCurrentBufferSize(String)
+   */
+  public CompletableFuture<Long> decrementCurrentBufferSize(String subject) {
+    return submit(new Call<Long>(Op.DECR, subject, 0));
+  }
+
+  /***
+   * Stops the background threads once the queued calls are sent.
+   */
+  public void close() {
+    coalescer.stop();
+  }
+
+  private <T> CompletableFuture<T> submit(Call<T> call) {
+    coalescer.submit(call);
+    return call.future;
+  }
+
+  private static class Call<T> {
+    private final Op op;
+    private final String subject;
+    private final int value;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+    Call(Op op, String subject, int value) {
+      this.op = op;
+      this.subject = subject;
+      this.value = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    void complete(Object result) {
+      future.complete((T) result);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/***
+ * Non-blocking front of a {@link RateLimitService}. Calls are queued and
+ * executed by background threads; the calls queued while a thread was busy go
+ * to redis together as one batch over one connection (see
+ * {@link RateLimitService#countAll(long, java.util.Collection)}). A failure
+ * fails only the calls it concerns, those of an unreachable shard or of a
+ * script error. The returned futures are completed on those threads, so
+ * callbacks should not block.
+ */
+public class AsyncRateLimitService {
+
+  private static final int DEFAULT_THREADS = 1;
+  private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+  private static final int DEFAULT_MAX_QUEUED = 100000;
+
+  private final RateLimitService service;
+  private final Coalescer<Call<?>> coalescer;
+
+  /***
+   *
+   * @param service
+   * @param threads
+   *          - number of batches sent in parallel, each borrows a connection
+   *          from the pool of the service
+   * @param maxBatchSize
+   *          - max number of calls sent in one batch
+   * @param maxQueued
+   *          - max number of calls waiting to be sent, further calls fail
+   *          with a JedisConnectionException until the queue drains
+   */
+  public AsyncRateLimitService(final RateLimitService service, int threads, int maxBatchSize, int maxQueued) {
+    this.service = service;
+    this.coalescer = new Coalescer<Call<?>>("ratelimit-async", threads, maxBatchSize, maxQueued) {
+
+      @Override
+      void execute(List<Call<?>> calls) throws Exception {
+        final int size = calls.size();
+        final long[] times = new long[size];
+        final int[] hits = new int[size];
+        final List<String> subjects = new ArrayList<String>(size);
+        boolean withCounts = false;
+        for (int i = 0; i < size; i++) {
+          final Call<?> call = calls.get(i);
+          times[i] = call.time;
+          hits[i] = call.hits;
+          subjects.add(call.subject);
+          withCounts |= call.hits == 0;
+        }
+        final List<Object> results = service.batchEach(times, subjects, hits, withCounts);
+        for (int i = 0; i < size; i++) {
+          final Object result = results.get(i);
+          if (result instanceof Throwable) {
+            fail(calls.get(i), (Throwable) result);
+          } else {
+            calls.get(i).complete((CountResult) result);
+          }
+        }
+      }
+
+      @Override
+      void fail(Call<?> call, Throwable cause) {
+        call.future.completeExceptionally(cause);
+      }
+    };
+  }
+
+  /***
+   * @see #AsyncRateLimitService(RateLimitService, int, int, int)
+   * @param service
+   * @param threads
+   * @param maxBatchSize
+   */
+  public AsyncRateLimitService(RateLimitService service, int threads, int maxBatchSize) {
+    this(service, threads, maxBatchSize, DEFAULT_MAX_QUEUED);
+  }
+
+  /***
+   * @see #AsyncRateLimitService(RateLimitService, int, int, int)
+   * @param service
+   */
+  public AsyncRateLimitService(RateLimitService service) {
+    this(service, DEFAULT_THREADS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_QUEUED);
+  }
+
+  /***
+   * @see RateLimitService#add(long, String)
+   */
+  public CompletableFuture<Void> add(long time, String subject) {
+    return submit(new Call<Void>(time, subject, 1) {
+
+      @Override
+      Void convert(CountResult cr) {
+        return null;
+      }
+    });
+  }
+
+  /***
+   * @see RateLimitService#count(long, String)
+   */
+  public CompletableFuture<CountResult> count(long time, String subject) {
+    return submit(new Call<CountResult>(time, subject, 0) {
+
+      @Override
+      CountResult convert(CountResult cr) {
+        return cr;
+      }
+    });
+  }
+
+  /***
+   * @see RateLimitService#tps(String)
+   */
+  public CompletableFuture<Tps> tps(String subject) {
+    return submit(new Call<Tps>(service.getClock().millis(), subject, 0) {
+
+      @Override
+      Tps convert(CountResult cr) {
+        return Tps.calculate(cr, service.getTpsInterval(), service.getBucketInterval());
+      }
+    });
+  }
+
+  /***
+   * Stops the background threads once the queued calls are sent.
+   */
+  public void close() {
+    coalescer.stop();
+  }
+
+  private <T> CompletableFuture<T> submit(Call<T> call) {
+    coalescer.submit(call);
+    return call.future;
+  }
+
+  private abstract static class Call<T> {
+    private final long time;
+    private final String subject;
+    private final int hits;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+    Call(long time, String subject, int hits) {
+      this.time = time;
+      this.subject = subject;
+      this.hits = hits;
+    }
+
+    abstract T convert(CountResult cr);
+
+    void complete(CountResult cr) {
+      future.complete(convert(cr));
+    }
+  }
+}
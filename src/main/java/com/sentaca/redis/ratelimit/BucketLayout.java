@@ -0,0 +1,41 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * How the buckets of a subject are stored in its redis key.
+ */
+public enum BucketLayout {
+  /***
+   * Ring of bucketSpan / bucketInterval fields indexed by
+   * {@link RateLimitService#getBucket(long)}. Every call clears the buckets
+   * ahead of the current one, so its cost grows with the bucket span.
+   */
+  RING,
+  /***
+   * Fields indexed by the absolute {@link RateLimitService#getBucketIndex(long)}.
+   * Stale fields are ignored on read and the key expires after the tps window,
+   * so the cost of a call only depends on the tps window. Always executed as
+   * lua scripts; hashes written with {@link #RING} are converted on first
+   * touch.
+   */
+  EPOCH,
+  /***
+   * Ring of tpsInterval / bucketInterval unsigned 32 bit counters packed in
+   * one redis string after the index of the last bucket written, read and
+   * updated with BITFIELD. A subject takes a few bytes per bucket instead of a
+   * hash field per bucket and counters saturate instead of overflowing.
+   * Always executed as lua scripts and requires redis 3.2 or later; hashes
+   * written with {@link #RING} or {@link #EPOCH} are converted on first touch,
+   * the other way round is not supported.
+   */
+  PACKED,
+  /***
+   * One Count-Min Sketch per bucket, all of them in one redis string per
+   * action shared by all subjects and updated with BITFIELD, instead of a key
+   * per subject. Memory is fixed by the error bounds (see
+   * {@link RateLimitService#setSketchErrorBounds(double, double)}) and the tps
+   * window, no matter how many subjects are counted; counts are estimates that
+   * never fall below the true counts. Always executed as lua scripts and
+   * requires redis 3.2 or later; the keys of the other layouts are not read.
+   */
+  SKETCH
+}
@@ -0,0 +1,121 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * Counts of every bucket of the tps window, oldest bucket first, with the
+ * statistics of the series computed in the same pass.
+ * 
+ * @author hamster
+ * 
+ */
+public class BucketSeries {
+  private final int[] counts;
+  private int count;
+  private int numberOfEmptyBuckets;
+  private int peakCount;
+  private double mean;
+  private double variance;
+  private double slope;
+
+  /***
+   * 
+   * @param counts
+   *          - hits per bucket, oldest bucket first; kept, not copied
+   */
+  public BucketSeries(int[] counts) {
+    this.counts = counts;
+    final int n = counts.length;
+    long sumSquares = 0;
+    long sumXY = 0;
+    for (int x = 0; x < n; x++) {
+      final int c = counts[x];
+      count += c;
+      sumSquares += (long) c * c;
+      sumXY += (long) x * c;
+      if (c == 0) {
+        numberOfEmptyBuckets++;
+      }
+      if (c > peakCount) {
+        peakCount = c;
+      }
+    }
+    if (n > 0) {
+      mean = (double) count / n;
+      variance = Math.max(0, (double) sumSquares / n - mean * mean);
+    }
+    if (n > 1) {
+      // least squares over x = 0..n-1, sum(x) = n(n-1)/2, sum(x^2) =
+      // n(n-1)(2n-1)/6
+      final double sumX = n * (n - 1) / 2d;
+      final double sumXX = n * (n - 1) * (2d * n - 1) / 6d;
+      slope = (n * (double) sumXY - sumX * count) / (n * sumXX - sumX * sumX);
+    }
+  }
+
+  /***
+   * Gets the hits per bucket, oldest bucket first. The array is shared, do not
+   * modify it.
+   * 
+   * @return
+   */
+  public int[] getCounts() {
+    return counts;
+  }
+
+  /***
+   * Gets the sum of counts accross all buckets in the tps interval window.
+   * 
+   * @return
+   */
+  public int getCount() {
+    return count;
+  }
+
+  public int getNumberOfEmptyBuckets() {
+    return numberOfEmptyBuckets;
+  }
+
+  public int getPeakCount() {
+    return peakCount;
+  }
+
+  public int getLatestBucketCount() {
+    return counts.length == 0 ? 0 : counts[counts.length - 1];
+  }
+
+  /***
+   * Gets the mean hits per bucket.
+   * 
+   * @return
+   */
+  public double getMean() {
+    return mean;
+  }
+
+  /***
+   * Gets the population variance of the hits per bucket.
+   * 
+   * @return
+   */
+  public double getVariance() {
+    return variance;
+  }
+
+  /***
+   * Gets the trend of the window: the least squares slope of the hits per
+   * bucket, in hits per bucket per bucket. Positive when the traffic grows.
+   * 
+   * @return
+   */
+  public double getSlope() {
+    return slope;
+  }
+
+  /***
+   * Gets the same counters as {@link RateLimitService#count(long, String)}.
+   * 
+   * @return
+   */
+  public CountResult toCountResult() {
+    return new CountResult(count, numberOfEmptyBuckets, peakCount, getLatestBucketCount());
+  }
+}
@@ -1,14 +1,68 @@
 package com.sentaca.redis.ratelimit;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
+/***
+ * Buffer size per subject. The raw get/set/increment/decrement calls keep a
+ * plain counter; {@link #tryAcquire(String, int)} and {@link #release(Lease)}
+ * implement a distributed concurrency limit atomically, with leases that
+ * expire when their holder does not release them.
+ * <p>
+ * The lease calls without a time argument take the time from the redis
+ * server, so nodes with skewed clocks agree on when a lease expires. Callers
+ * giving the time should take it from a clock shared by all nodes, e.g. a
+ * {@link RedisClock}.
+ */
 public class BufferSizeService {
 
+  /***
+   * Buffer operations that can be pipelined, see
+   * {@link BufferSizeService#pipelined(List, List, int[])}.
+   */
+  enum Op {
+    GET,
+    SET,
+    INCR,
+    DECR,
+    INCRBY
+  }
+
+  private static final String GET_SIZE = "getCurrentBufferSize";
+  private static final String SET_SIZE = "setCurrentBufferSize";
+  private static final String INCREMENT = "incrementCurrentBufferSize";
+  private static final String DECREMENT = "decrementCurrentBufferSize";
+  private static final String PIPELINED = "pipelined";
+  private static final String TRY_ACQUIRE = "tryAcquire";
+  private static final String RELEASE = "release";
+  private static final String RENEW = "renew";
+  private static final String BATCH = "batch";
+  private static final LuaScript ACQUIRE_SCRIPT = new LuaScript("lease-acquire.lua");
+  private static final LuaScript RELEASE_SCRIPT = new LuaScript("lease-release.lua");
+  private static final String LEASES_SUFFIX = ":leases";
+  private static final long DEFAULT_LEASE_TIME = 60000;
+  // empty time argument, the lease scripts take the time of the server
+  private static final String SERVER_TIME = "";
+
   private String namespace;
   private String action;
-  private JedisPool pool;
+  private ShardedPool shards;
   private SubjectKeyGenerator subjectKeyGenerator = new SubjectKeyGenerator();
+  private RateLimitMetrics metrics = RateLimitMetrics.NONE;
+  private long leaseTime = DEFAULT_LEASE_TIME;
+  // lease ids are the prefix and a sequence number
+  private final String leasePrefix = UUID.randomUUID().toString() + ":";
+  private final AtomicLong leaseSequence = new AtomicLong();
 
   /**
    * 
@@ -20,36 +74,84 @@ public class BufferSizeService {
    *          - required, used to create redis key
    */
   public BufferSizeService(JedisPool pool, String namespace, String action) {
-    this.pool = pool;
+    this(new ShardedPool(pool), namespace, action);
+  }
+
+  /**
+   * @see #BufferSizeService(JedisPool, String, String)
+   * @param shards
+   *          - redis servers the subjects are distributed over
+   * @param namespace
+   * @param action
+   */
+  public BufferSizeService(ShardedPool shards, String namespace, String action) {
+    this.shards = shards;
     this.namespace = namespace;
     this.action = action;
   }
 
+  /***
+   * Sets the hook notified about every call, {@link RateLimitMetrics#NONE} by
+   * default.
+   * 
+   * @param metrics
+   */
+  public void setMetrics(RateLimitMetrics metrics) {
+    this.metrics = metrics == null ? RateLimitMetrics.NONE : metrics;
+  }
+
+  public RateLimitMetrics getMetrics() {
+    return metrics;
+  }
+
+  /***
+   * Sets how the subject keys are built, e.g. with hash tags for a
+   * {@link ShardedPool}.
+   * 
+   * @param subjectKeyGenerator
+   */
+  public void setSubjectKeyGenerator(SubjectKeyGenerator subjectKeyGenerator) {
+    this.subjectKeyGenerator = subjectKeyGenerator;
+  }
+
+  /***
+   * Sets the time after which a lease not released nor renewed is dropped,
+   * {@value #DEFAULT_LEASE_TIME} ms by default.
+   * 
+   * @param leaseTime
+   *          - in milliseconds
+   */
+  public void setLeaseTime(long leaseTime) {
+    this.leaseTime = leaseTime;
+  }
+
+  public long getLeaseTime() {
+    return leaseTime;
+  }
+
   /***
    * Gets the current buffer size for subject. Returns -1 if there is no buffer
-   * for specific subject.
+   * for specific subject, or its value is not a number; the read never
+   * changes the key.
    * 
    * @param subject
    * @return
    */
   public int getCurrentBufferSize(String subject) {
+    final long start = System.nanoTime();
     final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
-    final Jedis j = pool.getResource();
+    final JedisPool pool = shards.getPool(subjectKey);
+    final Jedis j = getResource(pool);
 
     try {
-      String result = j.get(subjectKey);
-      try {
-        int buffer = Integer.valueOf(result);
-        return buffer;
-      } catch (Exception ex) {
-        // invalid value, try to delete the key
-        j.del(subjectKey);
-      }
+      return size(j.get(subjectKey));
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
     } finally {
       pool.returnResource(j);
+      metrics.record(GET_SIZE, System.nanoTime() - start, 1);
     }
-
-    return -1;
   }
 
   /***
@@ -59,13 +161,19 @@ public class BufferSizeService {
    * @param buffer
    */
   public void setCurrentBufferSize(String subject, int buffer) {
+    final long start = System.nanoTime();
     final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
-    final Jedis j = pool.getResource();
+    final JedisPool pool = shards.getPool(subjectKey);
+    final Jedis j = getResource(pool);
 
     try {
       j.set(subjectKey, String.valueOf(buffer));
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
     } finally {
       pool.returnResource(j);
+      metrics.record(SET_SIZE, System.nanoTime() - start, 1);
     }
   }
 
@@ -76,13 +184,19 @@ public class BufferSizeService {
    * @return the value after increase
    */
   public long incrementCurrentBufferSize(String subject) {
+    final long start = System.nanoTime();
     final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
-    final Jedis j = pool.getResource();
+    final JedisPool pool = shards.getPool(subjectKey);
+    final Jedis j = getResource(pool);
 
     try {
       return j.incr(subjectKey);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
     } finally {
       pool.returnResource(j);
+      metrics.record(INCREMENT, System.nanoTime() - start, 1);
     }
   }
 
@@ -93,13 +207,329 @@ public class BufferSizeService {
    * @return the value after decrease
    */
   public long decrementCurrentBufferSize(String subject) {
+    final long start = System.nanoTime();
     final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
-    final Jedis j = pool.getResource();
+    final JedisPool pool = shards.getPool(subjectKey);
+    final Jedis j = getResource(pool);
 
     try {
       return j.decr(subjectKey);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(DECREMENT, System.nanoTime() - start, 1);
+    }
+  }
+
+  /***
+   * Same as {@link #tryAcquire(long, String, int)} with the time of the
+   * server.
+   */
+  public Lease tryAcquire(String subject, int max) {
+    return acquire(SERVER_TIME, subject, max);
+  }
+
+  /***
+   * Takes one of max slots of the subject, in one atomic script call. The
+   * lease holds the slot until released, renewed leases keep it longer and
+   * expired leases are dropped on the next call. Leases are kept apart from
+   * the raw buffer size of the subject.
+   * 
+   * @param time
+   *          - now, in milliseconds
+   * @param subject
+   * @param max
+   *          - max number of leases held at once
+   * @return the lease, check {@link Lease#isAcquired()}
+   */
+  public Lease tryAcquire(long time, String subject, int max) {
+    return acquire(String.valueOf(time), subject, max);
+  }
+
+  private Lease acquire(String now, String subject, int max) {
+    final long start = System.nanoTime();
+    final String leasesKey = leasesKey(subject);
+    final String id = nextLeaseId();
+    final JedisPool pool = shards.getPool(leasesKey);
+    final Jedis j = getResource(pool);
+    final Lease lease;
+    try {
+      lease = lease(subject, id, ACQUIRE_SCRIPT.eval(j, Collections.singletonList(leasesKey), acquireArgs(now, max, id)));
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(TRY_ACQUIRE, System.nanoTime() - start, 1);
+    }
+    metrics.decision(action, lease.isAcquired());
+    return lease;
+  }
+
+  /***
+   * Takes a slot of every subject, in one pipeline of scripts per shard.
+   * 
+   * @param time
+   * @param subjects
+   * @param max
+   *          - max number of leases of every subject
+   * @return leases in the order of the subjects
+   */
+  public List<Lease> tryAcquireAll(long time, final List<String> subjects, int max) {
+    final List<String> ids = new ArrayList<String>(subjects.size());
+    final List<List<String>> args = new ArrayList<List<String>>(subjects.size());
+    for (int i = 0; i < subjects.size(); i++) {
+      ids.add(nextLeaseId());
+      args.add(acquireArgs(String.valueOf(time), max, ids.get(i)));
+    }
+    final List<Object> replies = evalAll(ACQUIRE_SCRIPT, subjects, args);
+    final List<Lease> leases = new ArrayList<Lease>(subjects.size());
+    for (int i = 0; i < subjects.size(); i++) {
+      final Lease lease = lease(subjects.get(i), ids.get(i), replies.get(i));
+      metrics.decision(action, lease.isAcquired());
+      leases.add(lease);
+    }
+    return leases;
+  }
+
+  /***
+   * Frees the slot of the lease. Does nothing for leases not acquired, already
+   * released or expired. Takes the time of the server.
+   * 
+   * @param lease
+   * @return true if the lease was held until now
+   */
+  public boolean release(Lease lease) {
+    return update(RELEASE, SERVER_TIME, lease, 0);
+  }
+
+  /***
+   * Releases many leases in one pipeline of scripts per shard. Takes the time
+   * of the server.
+   * 
+   * @param leases
+   */
+  public void releaseAll(List<Lease> leases) {
+    final List<String> subjects = new ArrayList<String>(leases.size());
+    final List<List<String>> args = new ArrayList<List<String>>(leases.size());
+    for (Lease lease : leases) {
+      if (lease.isAcquired()) {
+        subjects.add(lease.getSubject());
+        args.add(Arrays.asList(SERVER_TIME, lease.getId(), "0"));
+      }
+    }
+    evalAll(RELEASE_SCRIPT, subjects, args);
+  }
+
+  /***
+   * Same as {@link #renew(long, Lease)} with the time of the server.
+   */
+  public boolean renew(Lease lease) {
+    return update(RENEW, SERVER_TIME, lease, leaseTime);
+  }
+
+  /***
+   * Extends the lease to leaseTime from now, for holders working longer than
+   * the lease time.
+   * 
+   * @param time
+   *          - now, in milliseconds
+   * @param lease
+   * @return false if the lease already expired or was released, the slot may
+   *         be taken by another holder then
+   */
+  public boolean renew(long time, Lease lease) {
+    return update(RENEW, String.valueOf(time), lease, leaseTime);
+  }
+
+  /***
+   * Runs many operations in one pipeline over one connection. GET returns the
+   * buffer size or -1 like {@link #getCurrentBufferSize(String)}, SET returns
+   * null, INCR, DECR and INCRBY return the value after the change.
+   * 
+   * @param ops
+   * @param subjects
+   * @param values
+   *          - buffer size for SET operations, change, possibly negative,
+   *          for INCRBY operations
+   * @return results in the order of the operations
+   */
+  List<Object> pipelined(final List<Op> ops, final List<String> subjects, final int[] values) {
+    if (ops.isEmpty()) {
+      return new ArrayList<Object>();
+    }
+    return shards.forEachShard(ops.size(), new ShardedPool.ShardBatch<Object>() {
+
+      @Override
+      String key(int index) {
+        return subjectKeyGenerator.getKeyForSubject(namespace, action, subjects.get(index));
+      }
+
+      @Override
+      List<Object> execute(JedisPool pool, List<Integer> indexes) {
+        return pipelined(pool, indexes, ops, subjects, values);
+      }
+    });
+  }
+
+  /***
+   * Part of {@link #pipelined(List, List, int[])} stored on one shard.
+   */
+  private List<Object> pipelined(JedisPool pool, List<Integer> indexes, List<Op> ops, List<String> subjects, int[] values) {
+    final int size = indexes.size();
+    final List<Object> results = new ArrayList<Object>(size);
+    final List<Response<?>> responses = new ArrayList<Response<?>>(size);
+    final long start = System.nanoTime();
+    final Jedis j = getResource(pool);
+
+    try {
+      final Pipeline p = j.pipelined();
+      for (int i : indexes) {
+        final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subjects.get(i));
+        switch (ops.get(i)) {
+        case GET:
+          responses.add(p.get(subjectKey));
+          break;
+        case SET:
+          responses.add(p.set(subjectKey, String.valueOf(values[i])));
+          break;
+        case INCR:
+          responses.add(p.incr(subjectKey));
+          break;
+        case DECR:
+          responses.add(p.decr(subjectKey));
+          break;
+        case INCRBY:
+          responses.add(p.incrBy(subjectKey, values[i]));
+          break;
+        }
+      }
+      p.sync();
+
+      for (int k = 0; k < size; k++) {
+        final int i = indexes.get(k);
+        final Object result = responses.get(k).get();
+        switch (ops.get(i)) {
+        case GET:
+          results.add(size((String) result));
+          break;
+        case SET:
+          results.add(null);
+          break;
+        default:
+          results.add(result);
+        }
+      }
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(PIPELINED, System.nanoTime() - start, size);
+    }
+
+    return results;
+  }
+
+  /***
+   * Parses a buffer size, -1 for a missing or invalid value.
+   */
+  private static int size(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  private boolean update(String operation, String now, Lease lease, long newLeaseTime) {
+    if (!lease.isAcquired()) {
+      return false;
+    }
+    final long start = System.nanoTime();
+    final String leasesKey = leasesKey(lease.getSubject());
+    final JedisPool pool = shards.getPool(leasesKey);
+    final Jedis j = getResource(pool);
+    try {
+      final List<?> r = (List<?>) RELEASE_SCRIPT.eval(j, Collections.singletonList(leasesKey),
+          Arrays.asList(now, lease.getId(), String.valueOf(newLeaseTime)));
+      return "1".equals(r.get(0));
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
     } finally {
       pool.returnResource(j);
+      metrics.record(operation, System.nanoTime() - start, 1);
+    }
+  }
+
+  /***
+   * Runs the script once per subject, grouped by shard.
+   */
+  private List<Object> evalAll(final LuaScript script, final List<String> subjects, final List<List<String>> args) {
+    if (subjects.isEmpty()) {
+      return new ArrayList<Object>();
     }
+    return shards.forEachShard(subjects.size(), new ShardedPool.ShardBatch<Object>() {
+
+      @Override
+      String key(int index) {
+        return leasesKey(subjects.get(index));
+      }
+
+      @Override
+      List<Object> execute(JedisPool pool, List<Integer> indexes) {
+        final long start = System.nanoTime();
+        final List<String> keys = new ArrayList<String>(indexes.size());
+        final List<List<String>> shardArgs = new ArrayList<List<String>>(indexes.size());
+        for (int i : indexes) {
+          keys.add(leasesKey(subjects.get(i)));
+          shardArgs.add(args.get(i));
+        }
+        final Jedis j = getResource(pool);
+        try {
+          return script.evalAll(j, keys, shardArgs);
+        } catch (JedisConnectionException ex) {
+          ShardedPool.disconnect(j);
+          throw ex;
+        } finally {
+          pool.returnResource(j);
+          metrics.record(BATCH, System.nanoTime() - start, keys.size());
+        }
+      }
+    });
+  }
+
+  private String leasesKey(String subject) {
+    return subjectKeyGenerator.getKeyForSubject(namespace, action, subject) + LEASES_SUFFIX;
+  }
+
+  private String nextLeaseId() {
+    return leasePrefix + leaseSequence.incrementAndGet();
+  }
+
+  /***
+   * Arguments expected by lease-acquire.lua.
+   */
+  private List<String> acquireArgs(String now, int max, String id) {
+    return Arrays.asList(now, String.valueOf(max), String.valueOf(leaseTime), id);
+  }
+
+  private Lease lease(String subject, String id, Object reply) {
+    final List<?> r = (List<?>) reply;
+    final boolean acquired = "1".equals(r.get(0));
+    return new Lease(subject, acquired ? id : null, acquired, Integer.parseInt((String) r.get(1)), Long.parseLong((String) r.get(2)));
+  }
+
+  private Jedis getResource(JedisPool pool) {
+    final long start = System.nanoTime();
+    final Jedis j = pool.getResource();
+    metrics.poolWait(System.nanoTime() - start);
+    return j;
   }
 }
@@ -0,0 +1,163 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/***
+ * Runs redis calls through a {@link CircuitBreaker} and, when a timeout is
+ * set, on a bounded pool of threads waited for at most timeout milliseconds.
+ * A connection blocked in the pool or on a socket read cannot be interrupted,
+ * its thread stays busy until the socket timeout of the pool; when every
+ * thread is busy further calls fail at once.
+ * <p>
+ * Refused, timed out and failed calls end in {@link Call#fallback} with a
+ * {@link JedisConnectionException}. Errors reported by redis itself, e.g. a
+ * wrong script, are not outages and are thrown as they are.
+ * <p>
+ * The recovery task, run when a call closes the circuit, is handed to a
+ * background thread so that the call returns at once.
+ *
+ * @author hamster
+ *
+ */
+class CallGuard {
+
+  /***
+   * Redis call and what to do when it cannot be made.
+   */
+  static abstract class Call<T> implements Callable<T> {
+
+    abstract T fallback(JedisConnectionException cause);
+  }
+
+  private final CircuitBreaker breaker;
+  private final long timeout;
+  private final ThreadPoolExecutor executor;
+  private final Runnable recovery;
+  private final ExecutorService recoveries;
+
+  /***
+   *
+   * @param name
+   *          - name of the threads
+   * @param breaker
+   * @param timeout
+   *          - in milliseconds, 0 runs calls on the calling thread
+   * @param maxCalls
+   *          - max calls in flight when the timeout is set
+   * @param recovery
+   *          - run in the background after a call closed the circuit
+   */
+  CallGuard(final String name, CircuitBreaker breaker, long timeout, int maxCalls, Runnable recovery) {
+    this.breaker = breaker;
+    this.timeout = timeout;
+    this.recovery = recovery;
+    this.recoveries = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, name + "-recovery");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (timeout > 0) {
+      this.executor = new ThreadPoolExecutor(0, maxCalls, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, name);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    } else {
+      this.executor = null;
+    }
+  }
+
+  CircuitBreaker getBreaker() {
+    return breaker;
+  }
+
+  <T> T execute(Call<T> call) {
+    if (!breaker.tryAcquirePermission()) {
+      return call.fallback(new JedisConnectionException("Circuit breaker open"));
+    }
+    final long start = System.nanoTime();
+    final T result;
+    try {
+      result = executor == null ? call.call() : submit(call);
+    } catch (JedisDataException ex) {
+      // redis replied, a half open probe closes the circuit all the same
+      if (breaker.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))) {
+        recover();
+      }
+      throw ex;
+    } catch (JedisConnectionException ex) {
+      breaker.onFailure();
+      return call.fallback(ex);
+    } catch (Exception ex) {
+      breaker.onFailure();
+      return call.fallback(new JedisConnectionException(ex));
+    }
+    if (breaker.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))) {
+      recover();
+    }
+    return result;
+  }
+
+  /***
+   * Stops the threads, calls in flight and a running recovery are abandoned.
+   */
+  void close() {
+    recoveries.shutdownNow();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void recover() {
+    try {
+      recoveries.execute(recovery);
+    } catch (RejectedExecutionException ex) {
+      // closed
+    }
+  }
+
+  private <T> T submit(Call<T> call) throws Exception {
+    final Future<T> future;
+    try {
+      future = executor.submit(call);
+    } catch (RejectedExecutionException ex) {
+      throw new JedisConnectionException("Too many redis calls in flight", ex);
+    }
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      future.cancel(true);
+      throw new JedisConnectionException("No reply within " + timeout + " ms", ex);
+    } catch (InterruptedException ex) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new JedisConnectionException(ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) {
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+}
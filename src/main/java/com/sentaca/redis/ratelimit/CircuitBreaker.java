@@ -0,0 +1,210 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+
+/***
+ * Count based circuit breaker. The outcome of the last windowSize calls is
+ * kept, a call slower than slowCallDuration counts as failed. Once at least
+ * minimumCalls were made and the failure rate reaches failureRateThreshold the
+ * circuit opens and calls are refused for openTime milliseconds. Then a single
+ * probe call is let through: the circuit closes when it succeeds and opens
+ * again when it fails.
+ *
+ * @see ResilientRateLimitService
+ * @see ResilientBufferSizeService
+ * @author hamster
+ *
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private static final int DEFAULT_WINDOW_SIZE = 100;
+  private static final int DEFAULT_MINIMUM_CALLS = 10;
+  private static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+  private static final long DEFAULT_SLOW_CALL_DURATION = 500;
+  private static final long DEFAULT_OPEN_TIME = 5000;
+
+  private final boolean[] failed;
+  private final int minimumCalls;
+  private final double failureRateThreshold;
+  private final long slowCallDuration;
+  private final long openTime;
+  private Clock clock = Clock.systemUTC();
+
+  private State state = State.CLOSED;
+  private int next;
+  private int calls;
+  private int failures;
+  private long openedAt;
+  private boolean probing;
+
+  /***
+   *
+   * @param windowSize
+   *          - number of last calls the failure rate is calculated over
+   * @param minimumCalls
+   *          - calls needed in the window before the circuit may open
+   * @param failureRateThreshold
+   *          - between 0 and 1
+   * @param slowCallDuration
+   *          - in milliseconds, longer calls count as failed
+   * @param openTime
+   *          - in milliseconds, how long calls are refused once open
+   */
+  public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallDuration, long openTime) {
+    this.failed = new boolean[windowSize];
+    this.minimumCalls = Math.min(minimumCalls, windowSize);
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallDuration = slowCallDuration;
+    this.openTime = openTime;
+  }
+
+  /***
+   * Opens at 50% of failed or slower than 500 ms calls out of the last 100,
+   * for 5 seconds.
+   *
+   * @see #CircuitBreaker(int, int, double, long, long)
+   */
+  public CircuitBreaker() {
+    this(DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_DURATION, DEFAULT_OPEN_TIME);
+  }
+
+  /***
+   * Sets the clock measuring the open time, the system UTC clock by default.
+   *
+   * @param clock
+   */
+  public synchronized void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public long getSlowCallDuration() {
+    return slowCallDuration;
+  }
+
+  /***
+   * Gets the failure rate of the calls in the window.
+   *
+   * @return
+   */
+  public synchronized double getFailureRate() {
+    return calls == 0 ? 0 : (double) failures / calls;
+  }
+
+  /***
+   * Gets the time in milliseconds until a probe call is let through, 0 when
+   * the circuit is not open.
+   *
+   * @return
+   */
+  public synchronized long getRetryAfter() {
+    if (state != State.OPEN) {
+      return 0;
+    }
+    return Math.max(0, openedAt + openTime - clock.millis());
+  }
+
+  /***
+   * Checks if a call may be made now. A caller given the permission must
+   * report the outcome with {@link #onSuccess(long)} or {@link #onFailure()}.
+   *
+   * @return
+   */
+  public synchronized boolean tryAcquirePermission() {
+    switch (state) {
+    case OPEN:
+      if (clock.millis() - openedAt < openTime) {
+        return false;
+      }
+      state = State.HALF_OPEN;
+      probing = true;
+      return true;
+    case HALF_OPEN:
+      if (probing) {
+        return false;
+      }
+      probing = true;
+      return true;
+    default:
+      return true;
+    }
+  }
+
+  /***
+   * Reports a call that completed.
+   *
+   * @param millis
+   *          - duration of the call
+   * @return true if the call closed the circuit
+   */
+  public synchronized boolean onSuccess(long millis) {
+    if (millis > slowCallDuration) {
+      onFailure();
+      return false;
+    }
+    if (state == State.OPEN) {
+      // started before the circuit opened
+      return false;
+    }
+    if (state == State.HALF_OPEN) {
+      reset(State.CLOSED);
+      return true;
+    }
+    record(false);
+    return false;
+  }
+
+  /***
+   * Reports a call that failed or timed out.
+   */
+  public synchronized void onFailure() {
+    if (state == State.OPEN) {
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      open();
+      return;
+    }
+    record(true);
+    if (calls >= minimumCalls && getFailureRate() >= failureRateThreshold) {
+      open();
+    }
+  }
+
+  private void record(boolean failure) {
+    if (calls == failed.length) {
+      if (failed[next]) {
+        failures--;
+      }
+    } else {
+      calls++;
+    }
+    failed[next] = failure;
+    if (failure) {
+      failures++;
+    }
+    next = (next + 1) % failed.length;
+  }
+
+  private void open() {
+    reset(State.OPEN);
+    openedAt = clock.millis();
+  }
+
+  private void reset(State state) {
+    this.state = state;
+    probing = false;
+    next = 0;
+    calls = 0;
+    failures = 0;
+  }
+}
@@ -0,0 +1,137 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * Queue of calls drained by background threads. Every thread takes whatever
+ * accumulated while it was busy, up to maxBatchSize calls, and executes them
+ * together, so concurrent callers share one pipeline instead of one connection
+ * each. Submitting never blocks: once maxQueued calls wait, for example while
+ * redis stalls, further calls fail right away.
+ *
+ * @param <C>
+ *          - call type
+ */
+abstract class Coalescer<C> {
+
+  private final BlockingQueue<C> queue;
+  private final int maxBatchSize;
+  private final Thread[] workers;
+  private volatile boolean stopped;
+
+  /***
+   *
+   * @param name
+   *          - prefix of the thread names
+   * @param threads
+   *          - number of batches executed in parallel
+   * @param maxBatchSize
+   *          - max number of calls executed together
+   * @param maxQueued
+   *          - max number of calls waiting to be executed
+   */
+  Coalescer(String name, int threads, int maxBatchSize, int maxQueued) {
+    this.queue = new LinkedBlockingQueue<C>(maxQueued);
+    this.maxBatchSize = maxBatchSize;
+    this.workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          work();
+        }
+      }, name + "-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /***
+   * Executes the calls and completes each of them.
+   *
+   * @param calls
+   * @throws Exception
+   *           fails every call of the batch not completed yet
+   */
+  abstract void execute(List<C> calls) throws Exception;
+
+  /***
+   * Completes the call exceptionally.
+   *
+   * @param call
+   * @param cause
+   */
+  abstract void fail(C call, Throwable cause);
+
+  void submit(C call) {
+    if (stopped) {
+      fail(call, new IllegalStateException("Stopped"));
+      return;
+    }
+    if (!queue.offer(call)) {
+      fail(call, new JedisConnectionException("Too many redis calls queued"));
+      return;
+    }
+    // stopped meanwhile, the threads may be gone before they see the call
+    if (stopped && queue.remove(call)) {
+      fail(call, new IllegalStateException("Stopped"));
+    }
+  }
+
+  /***
+   * Stops the threads once the queued calls are executed.
+   */
+  void stop() {
+    stopped = true;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  /***
+   * Waits for the threads to finish after {@link #stop()}.
+   *
+   * @param millis
+   *          - max time to wait for every thread
+   * @throws InterruptedException
+   */
+  void join(long millis) throws InterruptedException {
+    for (Thread worker : workers) {
+      worker.join(millis);
+    }
+  }
+
+  private void work() {
+    final List<C> batch = new ArrayList<C>(maxBatchSize);
+    while (!stopped || !queue.isEmpty()) {
+      try {
+        final C first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+      } catch (InterruptedException ex) {
+        // stop() was called, drain what is left
+      }
+      queue.drainTo(batch, maxBatchSize - batch.size());
+      if (batch.isEmpty()) {
+        continue;
+      }
+      try {
+        execute(batch);
+      } catch (Throwable t) {
+        for (C call : batch) {
+          fail(call, t);
+        }
+      }
+      batch.clear();
+    }
+  }
+}
@@ -0,0 +1,330 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/***
+ * Shares a few long-lived connections per redis server between all calling
+ * threads, instead of a pool connection per call. A call is queued and the
+ * caller waits; every connection is owned by an I/O thread that takes
+ * whatever was queued while it was busy, up to maxBatchSize calls, sends it
+ * as one pipeline and completes the callers. Many threads then need neither a
+ * large pool nor wait on it, and redis sees only a few connections per node.
+ * A caller waits for its reply at most timeout milliseconds, see
+ * {@link #setTimeout(long)}.
+ * <p>
+ * The connections are taken from the pools once and kept until
+ * {@link #close()}; a broken connection is dropped and replaced on the next
+ * batch. One multiplexer may serve several services, see
+ * {@link RateLimitService#setMultiplexer(ConnectionMultiplexer)}.
+ *
+ * @author hamster
+ *
+ */
+public class ConnectionMultiplexer {
+
+  private static final int DEFAULT_CONNECTIONS = 1;
+  private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+  private static final int DEFAULT_MAX_QUEUED = 100000;
+  private static final long CLOSE_TIMEOUT = 5000;
+  private static final long DEFAULT_TIMEOUT = 10000;
+
+  private final int connections;
+  private final int maxBatchSize;
+  private final int maxQueued;
+  private final ConcurrentMap<JedisPool, Coalescer<Call>> coalescers = new ConcurrentHashMap<JedisPool, Coalescer<Call>>();
+  private final ThreadLocal<Jedis> connection = new ThreadLocal<Jedis>();
+  private final Map<Jedis, Borrowed> borrowed = Collections.synchronizedMap(new IdentityHashMap<Jedis, Borrowed>());
+  private volatile long timeout = DEFAULT_TIMEOUT;
+  private volatile boolean closed;
+
+  /***
+   *
+   * @param connections
+   *          - connections (and I/O threads) per redis server
+   * @param maxBatchSize
+   *          - max number of calls sent in one pipeline
+   * @param maxQueued
+   *          - max number of calls waiting per redis server, further calls
+   *          fail with a JedisConnectionException until the queue drains
+   */
+  public ConnectionMultiplexer(int connections, int maxBatchSize, int maxQueued) {
+    this.connections = connections;
+    this.maxBatchSize = maxBatchSize;
+    this.maxQueued = maxQueued;
+  }
+
+  /***
+   * @see #ConnectionMultiplexer(int, int, int)
+   */
+  public ConnectionMultiplexer(int connections, int maxBatchSize) {
+    this(connections, maxBatchSize, DEFAULT_MAX_QUEUED);
+  }
+
+  /***
+   * @see #ConnectionMultiplexer(int, int, int)
+   */
+  public ConnectionMultiplexer() {
+    this(DEFAULT_CONNECTIONS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_QUEUED);
+  }
+
+  /***
+   * Sets how long a caller waits for the reply of its call, 10 seconds by
+   * default. A call that is not answered in time fails with a
+   * {@link JedisConnectionException}; it may still be sent later.
+   *
+   * @param timeout
+   *          - in milliseconds
+   */
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /***
+   * Gets the number of connections taken from the pools so far.
+   *
+   * @return
+   */
+  public int getConnectionCount() {
+    return borrowed.size();
+  }
+
+  /***
+   * Executes the script on a shared connection of the pool and waits for the
+   * reply.
+   *
+   * @param pool
+   * @param script
+   * @param key
+   * @param args
+   * @return raw script reply, bulk replies decoded to strings
+   */
+  Object eval(JedisPool pool, LuaScript script, String key, List<String> args) {
+    final Call call = new Call(script, key, args);
+    coalescer(pool).submit(call);
+    return await(call);
+  }
+
+  /***
+   * Executes the script once per key on a shared connection of the pool, in
+   * the same pipeline as far as maxBatchSize allows, and waits for every
+   * reply.
+   *
+   * @param pool
+   * @param script
+   * @param keys
+   * @param args
+   * @return script replies in the order of the keys
+   * @throws JedisDataException
+   *           the first error reported by a call
+   */
+  List<Object> evalAll(JedisPool pool, LuaScript script, List<String> keys, List<List<String>> args) {
+    final List<Object> replies = new ArrayList<Object>(keys.size());
+    for (Call call : submitAll(pool, script, keys, args)) {
+      replies.add(await(call));
+    }
+    return replies;
+  }
+
+  /***
+   * Like {@link #evalAll(JedisPool, LuaScript, List, List)}, but a call that
+   * fails does not fail the others.
+   *
+   * @param pool
+   * @param script
+   * @param keys
+   * @param args
+   * @return script replies in the order of the keys, the exception of a failed
+   *         call in place of its reply
+   */
+  List<Object> evalEach(JedisPool pool, LuaScript script, List<String> keys, List<List<String>> args) {
+    final List<Object> replies = new ArrayList<Object>(keys.size());
+    for (Call call : submitAll(pool, script, keys, args)) {
+      try {
+        replies.add(await(call));
+      } catch (JedisException ex) {
+        replies.add(ex);
+      }
+    }
+    return replies;
+  }
+
+  /***
+   * Stops the I/O threads once the queued calls are sent and returns the
+   * connections to their pools. The connection of a thread still busy after
+   * the close timeout is destroyed instead, it may still be in use.
+   */
+  public void close() {
+    closed = true;
+    for (Coalescer<Call> coalescer : coalescers.values()) {
+      coalescer.stop();
+    }
+    try {
+      for (Coalescer<Call> coalescer : coalescers.values()) {
+        coalescer.join(CLOSE_TIMEOUT);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (borrowed) {
+      for (Map.Entry<Jedis, Borrowed> e : borrowed.entrySet()) {
+        if (e.getValue().thread.isAlive()) {
+          e.getValue().pool.returnBrokenResource(e.getKey());
+        } else {
+          e.getValue().pool.returnResource(e.getKey());
+        }
+      }
+      borrowed.clear();
+    }
+  }
+
+  private List<Call> submitAll(JedisPool pool, LuaScript script, List<String> keys, List<List<String>> args) {
+    final Coalescer<Call> coalescer = coalescer(pool);
+    final List<Call> calls = new ArrayList<Call>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      final Call call = new Call(script, keys.get(i), args.get(i));
+      calls.add(call);
+      coalescer.submit(call);
+    }
+    return calls;
+  }
+
+  private Coalescer<Call> coalescer(final JedisPool pool) {
+    Coalescer<Call> coalescer = coalescers.get(pool);
+    if (coalescer == null) {
+      if (closed) {
+        throw new IllegalStateException("Closed");
+      }
+      coalescer = new Coalescer<Call>("ratelimit-mux", connections, maxBatchSize, maxQueued) {
+
+        @Override
+        void execute(List<Call> calls) throws Exception {
+          send(pool, calls);
+        }
+
+        @Override
+        void fail(Call call, Throwable cause) {
+          call.future.completeExceptionally(cause);
+        }
+      };
+      final Coalescer<Call> existing = coalescers.putIfAbsent(pool, coalescer);
+      if (existing != null) {
+        // lost the race, the threads of this one are not needed
+        coalescer.stop();
+        coalescer = existing;
+      }
+    }
+    return coalescer;
+  }
+
+  /***
+   * Sends the calls on the connection of the current I/O thread, one pipeline
+   * per script.
+   */
+  private void send(JedisPool pool, List<Call> calls) {
+    Jedis j = connection.get();
+    if (j == null) {
+      if (closed) {
+        throw new IllegalStateException("Closed");
+      }
+      j = pool.getResource();
+      borrowed.put(j, new Borrowed(pool, Thread.currentThread()));
+      connection.set(j);
+    }
+    final Map<LuaScript, List<Call>> byScript = new LinkedHashMap<LuaScript, List<Call>>();
+    for (Call call : calls) {
+      List<Call> list = byScript.get(call.script);
+      if (list == null) {
+        list = new ArrayList<Call>();
+        byScript.put(call.script, list);
+      }
+      list.add(call);
+    }
+    try {
+      for (Map.Entry<LuaScript, List<Call>> e : byScript.entrySet()) {
+        final List<Call> list = e.getValue();
+        final List<String> keys = new ArrayList<String>(list.size());
+        final List<List<String>> args = new ArrayList<List<String>>(list.size());
+        for (Call call : list) {
+          keys.add(call.key);
+          args.add(call.args);
+        }
+        final List<Object> replies = e.getKey().evalEach(j, keys, args);
+        for (int i = 0; i < list.size(); i++) {
+          final Object reply = replies.get(i);
+          if (reply instanceof JedisDataException) {
+            list.get(i).future.completeExceptionally((JedisDataException) reply);
+          } else {
+            list.get(i).future.complete(reply);
+          }
+        }
+      }
+    } catch (JedisConnectionException ex) {
+      // the replies of the pipeline are lost, start over on a new connection
+      connection.remove();
+      // not returned yet by close()
+      if (borrowed.remove(j) != null) {
+        ShardedPool.disconnect(j);
+        pool.returnResource(j);
+      }
+      throw ex;
+    }
+  }
+
+  private Object await(Call call) {
+    try {
+      return call.future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      throw new JedisConnectionException("No reply within " + timeout + " ms", ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new JedisException(ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new JedisConnectionException(ex);
+    }
+  }
+
+  private static class Borrowed {
+    private final JedisPool pool;
+    // I/O thread using the connection
+    private final Thread thread;
+
+    Borrowed(JedisPool pool, Thread thread) {
+      this.pool = pool;
+      this.thread = thread;
+    }
+  }
+
+  private static class Call {
+    private final LuaScript script;
+    private final String key;
+    private final List<String> args;
+    private final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+    Call(LuaScript script, String key, List<String> args) {
+      this.script = script;
+      this.key = key;
+      this.args = args;
+    }
+  }
+}
@@ -0,0 +1,494 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+/***
+ * Client side cache of the count and tps reads of a {@link RateLimitService},
+ * for subjects read far more often than they are hit. A cached window stays
+ * valid until its key changes: the buckets read for one bucket index are
+ * shifted for the later ones, so a subject that is not hit is served from
+ * memory also after its buckets roll.
+ * <p>
+ * Changes are learnt from redis keyspace notifications of the subject keys,
+ * one subscribed connection per shard is held for that. Notifications of hash
+ * (h), string ($, written by {@link BucketLayout#PACKED}), generic (g) and
+ * expiry (x) events are enabled with CONFIG SET when missing; when they cannot
+ * be enabled, or while a subscription is down, every read goes to redis. Writes through this cache drop the cached window at
+ * once.
+ * <p>
+ * Memory is bounded by maxSubjects, the windows loaded first are dropped
+ * first.
+ * <p>
+ * {@link BucketLayout#SKETCH} writes shared sketches instead of subject keys,
+ * no notification would tell which subject changed, so it cannot be cached.
+ *
+ * @author hamster
+ *
+ */
+public class CountCache implements RateLimiter {
+
+  private static final int DEFAULT_MAX_SUBJECTS = 10000;
+  private static final String NOTIFICATIONS = "notify-keyspace-events";
+  private static final String REQUIRED_EVENTS = "Kh$gx";
+  private static final long RESUBSCRIBE_DELAY = 1000;
+
+  private final RateLimitService service;
+  private final int maxSubjects;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+  private final AtomicInteger subscribed = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+  private volatile boolean closed;
+
+  /***
+   * Subscribes to the notifications of every shard of the service.
+   *
+   * @param service
+   * @param maxSubjects
+   *          - max number of windows kept in memory
+   * @throws UnsupportedOperationException
+   *           for {@link BucketLayout#SKETCH}
+   */
+  public CountCache(RateLimitService service, int maxSubjects) {
+    if (service.getBucketLayout() == BucketLayout.SKETCH) {
+      throw new UnsupportedOperationException("The sketch layout has no subject keys to watch");
+    }
+    this.service = service;
+    this.maxSubjects = maxSubjects;
+    final String pattern = "__keyspace@*__:" + service.getKeyPattern();
+    final List<JedisPool> pools = service.getShards().getPools();
+    for (int i = 0; i < pools.size(); i++) {
+      final Subscriber subscriber = new Subscriber(pools.get(i), pattern);
+      final Thread thread = new Thread(subscriber, "ratelimit-invalidation-" + i);
+      thread.setDaemon(true);
+      subscribers.add(subscriber);
+      thread.start();
+    }
+  }
+
+  /***
+   * @see #CountCache(RateLimitService, int)
+   * @param service
+   */
+  public CountCache(RateLimitService service) {
+    this(service, DEFAULT_MAX_SUBJECTS);
+  }
+
+  /***
+   * Checks if reads are served from memory, i.e. every shard is subscribed and
+   * the layout has subject keys.
+   *
+   * @return
+   */
+  public boolean isEnabled() {
+    // the layout may have been switched to sketches since
+    return !closed && subscribed.get() == subscribers.size() && service.getBucketLayout() != BucketLayout.SKETCH;
+  }
+
+  /***
+   * Gets the number of reads served from memory.
+   *
+   * @return
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /***
+   * Gets the number of reads sent to redis.
+   *
+   * @return
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /***
+   * Gets the number of change notifications received.
+   *
+   * @return
+   */
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+
+  /***
+   * Gets the number of windows kept in memory.
+   *
+   * @return
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /***
+   * Unsubscribes and releases the connections, reads go to redis afterwards.
+   */
+  public void close() {
+    closed = true;
+    for (Subscriber subscriber : subscribers) {
+      subscriber.close();
+    }
+    entries.clear();
+  }
+
+  public void addAll(long time, Set<String> subjects) {
+    service.addAll(time, subjects);
+    for (String subject : subjects) {
+      invalidate(service.subjectKey(subject));
+    }
+  }
+
+  public void add(long time, String subject) {
+    service.add(time, subject);
+    invalidate(service.subjectKey(subject));
+  }
+
+  public CountResult count(long time, String subject) {
+    final String key = service.subjectKey(subject);
+    final long index = service.getBucketIndex(time);
+    final CountResult cached = cached(key, index);
+    if (cached != null) {
+      return cached;
+    }
+    misses.increment();
+    if (!isEnabled()) {
+      return service.count(time, subject);
+    }
+    final Entry pending = pending(key, index);
+    final BucketSeries series = service.countSeries(time, subject);
+    // a notification received meanwhile removed the pending entry
+    entries.replace(key, pending, new Entry(index, series.getCounts(), series.toCountResult()));
+    return series.toCountResult();
+  }
+
+  public CountResult addAndCount(long time, String subject) {
+    final CountResult result = service.addAndCount(time, subject);
+    invalidate(service.subjectKey(subject));
+    return result;
+  }
+
+  /***
+   * Counts the cached subjects in memory and the others in one batch.
+   */
+  public Map<String, CountResult> countAll(long time, Collection<String> subjects) {
+    final long index = service.getBucketIndex(time);
+    final Map<String, CountResult> map = new LinkedHashMap<String, CountResult>();
+    final List<String> missing = new ArrayList<String>();
+    for (String subject : new LinkedHashSet<String>(subjects)) {
+      final CountResult cached = cached(service.subjectKey(subject), index);
+      map.put(subject, cached);
+      if (cached == null) {
+        missing.add(subject);
+      }
+    }
+    if (missing.isEmpty()) {
+      return map;
+    }
+    misses.add(missing.size());
+    final boolean enabled = isEnabled();
+    final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    if (enabled) {
+      for (String subject : missing) {
+        final String key = service.subjectKey(subject);
+        pending.put(key, pending(key, index));
+      }
+    }
+    for (Map.Entry<String, CountResult> e : service.countAll(time, missing).entrySet()) {
+      map.put(e.getKey(), e.getValue());
+      if (enabled) {
+        // no bucket counts, valid for this bucket index only
+        final String key = service.subjectKey(e.getKey());
+        entries.replace(key, pending.get(key), new Entry(index, null, e.getValue()));
+      }
+    }
+    return map;
+  }
+
+  public Map<String, Tps> tpsAll(Collection<String> subjects) {
+    final Map<String, Tps> map = new LinkedHashMap<String, Tps>();
+    for (Map.Entry<String, CountResult> e : countAll(service.getClock().millis(), subjects).entrySet()) {
+      map.put(e.getKey(), Tps.calculate(e.getValue(), service.getTpsInterval(), service.getBucketInterval()));
+    }
+    return map;
+  }
+
+  public Tps tps(String subject) {
+    return Tps.calculate(count(service.getClock().millis(), subject), service.getTpsInterval(), service.getBucketInterval());
+  }
+
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(service.getClock().millis(), subject, limit, rule);
+  }
+
+  public AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule) {
+    final AcquireResult result = service.tryAcquire(time, subject, limit, rule);
+    invalidate(service.subjectKey(subject));
+    return result;
+  }
+
+  /***
+   * Drops the cached window of the key, called for every notification.
+   *
+   * @param key
+   */
+  void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /***
+   * Marks the subscription of a shard as up or down, dropping everything
+   * cached when it goes down since notifications may have been missed.
+   *
+   * @param up
+   */
+  void subscribed(boolean up) {
+    if (up) {
+      subscribed.incrementAndGet();
+    } else {
+      subscribed.decrementAndGet();
+      entries.clear();
+    }
+  }
+
+  private CountResult cached(String key, long index) {
+    if (!isEnabled()) {
+      return null;
+    }
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    final CountResult result = entry.count(index);
+    if (result != null) {
+      hits.increment();
+    }
+    return result;
+  }
+
+  /***
+   * Puts a placeholder for a window being loaded, a notification received
+   * before the window is stored removes it.
+   */
+  private Entry pending(String key, long index) {
+    if (entries.size() >= maxSubjects) {
+      evict();
+    }
+    final Entry pending = new Entry(index, null, null);
+    entries.put(key, pending);
+    return pending;
+  }
+
+  /***
+   * Drops the windows loaded first until there is room for another one.
+   */
+  private void evict() {
+    long threshold = Long.MIN_VALUE;
+    while (entries.size() >= maxSubjects) {
+      long oldest = Long.MAX_VALUE;
+      for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+        final Entry e = it.next();
+        if (e.index <= threshold) {
+          it.remove();
+        } else if (e.index < oldest) {
+          oldest = e.index;
+        }
+      }
+      if (oldest == Long.MAX_VALUE) {
+        return;
+      }
+      threshold = oldest;
+    }
+  }
+
+  private static boolean hasEvents(String flags) {
+    final boolean all = flags.indexOf('A') >= 0;
+    return flags.indexOf('K') >= 0 && (all || flags.indexOf('h') >= 0 && flags.indexOf('$') >= 0 && flags.indexOf('g') >= 0 && flags.indexOf('x') >= 0);
+  }
+
+  /***
+   * Window loaded at a bucket index, counts oldest bucket first.
+   */
+  private static class Entry {
+    private final long index;
+    private final int[] counts;
+    private final CountResult result;
+
+    Entry(long index, int[] counts, CountResult result) {
+      this.index = index;
+      this.counts = counts;
+      this.result = result;
+    }
+
+    /***
+     * Counts the window at a later index, the buckets after the loaded ones
+     * are empty since the key did not change.
+     */
+    CountResult count(long at) {
+      if (result == null || at < index) {
+        return null;
+      }
+      if (at == index) {
+        return result;
+      }
+      if (counts == null) {
+        return null;
+      }
+      final int n = counts.length;
+      final long shift = at - index;
+      int sum = 0;
+      int numberOfEmptyBuckets = 0;
+      int peakCount = 0;
+      for (int i = 0; i < n; i++) {
+        final int c = i + shift < n ? counts[(int) (i + shift)] : 0;
+        sum += c;
+        if (c == 0) {
+          numberOfEmptyBuckets++;
+        }
+        if (c > peakCount) {
+          peakCount = c;
+        }
+      }
+      return new CountResult(sum, numberOfEmptyBuckets, peakCount, 0);
+    }
+  }
+
+  /***
+   * Keeps one shard subscribed to the keyspace notifications of the subject
+   * keys, resubscribing after connection failures.
+   */
+  private class Subscriber extends JedisPubSub implements Runnable {
+    private final JedisPool pool;
+    private final String pattern;
+    private volatile boolean up;
+
+    Subscriber(JedisPool pool, String pattern) {
+      this.pool = pool;
+      this.pattern = pattern;
+    }
+
+    public void run() {
+      while (!closed) {
+        if (!subscribe()) {
+          // the notifications cannot be enabled, every read goes to redis
+          return;
+        }
+        try {
+          Thread.sleep(RESUBSCRIBE_DELAY);
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
+
+    /***
+     * Blocks until unsubscribed or disconnected.
+     *
+     * @return false if the notifications are not enabled
+     */
+    private boolean subscribe() {
+      Jedis j = null;
+      boolean broken = false;
+      try {
+        j = pool.getResource();
+        if (!configure(j)) {
+          return false;
+        }
+        j.psubscribe(this, pattern);
+      } catch (RuntimeException ex) {
+        broken = true;
+      } finally {
+        if (up) {
+          up = false;
+          subscribed(false);
+        }
+        if (j != null) {
+          if (broken) {
+            pool.returnBrokenResource(j);
+          } else {
+            pool.returnResource(j);
+          }
+        }
+      }
+      return true;
+    }
+
+    void close() {
+      if (isSubscribed()) {
+        punsubscribe();
+      }
+    }
+
+    /***
+     * Enables the notifications needed when missing.
+     */
+    private boolean configure(Jedis j) {
+      final List<String> config = j.configGet(NOTIFICATIONS);
+      final String flags = config.size() > 1 ? config.get(1) : "";
+      if (hasEvents(flags)) {
+        return true;
+      }
+      final StringBuilder sb = new StringBuilder(flags);
+      for (char c : REQUIRED_EVENTS.toCharArray()) {
+        if (flags.indexOf(c) < 0) {
+          sb.append(c);
+        }
+      }
+      try {
+        j.configSet(NOTIFICATIONS, sb.toString());
+      } catch (RuntimeException ex) {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void onPMessage(String pattern, String channel, String message) {
+      invalidations.increment();
+      invalidate(channel.substring(channel.indexOf("__:") + 3));
+    }
+
+    @Override
+    public void onPSubscribe(String pattern, int subscribedChannels) {
+      if (closed) {
+        punsubscribe();
+        return;
+      }
+      up = true;
+      subscribed(true);
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+    }
+
+    @Override
+    public void onSubscribe(String channel, int subscribedChannels) {
+    }
+
+    @Override
+    public void onUnsubscribe(String channel, int subscribedChannels) {
+    }
+
+    @Override
+    public void onPUnsubscribe(String pattern, int subscribedChannels) {
+    }
+  }
+}
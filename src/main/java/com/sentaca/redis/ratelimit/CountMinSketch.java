@@ -0,0 +1,102 @@
+package com.sentaca.redis.ratelimit;
+
+import redis.clients.util.MurmurHash;
+import redis.clients.util.SafeEncoder;
+
+/***
+ * Dimensions and hashing of the Count-Min Sketches of
+ * {@link BucketLayout#SKETCH}. A sketch of width = ceil(e / epsilon) columns
+ * and depth = ceil(ln(1 / delta)) rows of 32 bit counters overestimates the
+ * hits of a subject by at most epsilon times the hits of all subjects in the
+ * same sketch, with probability 1 - delta. It never underestimates.
+ * <p>
+ * The column of a subject in row r is (h1 + r * h2) mod width, where h1 and h2
+ * are the two halves of its 64 bit murmur hash, so one hash serves every row.
+ *
+ * @author hamster
+ *
+ */
+class CountMinSketch {
+
+  private static final int SEED = 0x1234ABCD;
+
+  private final double epsilon;
+  private final double delta;
+  private final int width;
+  private final int depth;
+
+  /***
+   *
+   * @param epsilon
+   *          - overestimate, as a share of the hits of all subjects
+   * @param delta
+   *          - probability of a larger overestimate
+   */
+  CountMinSketch(double epsilon, double delta) {
+    if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1) {
+      throw new IllegalArgumentException("Invalid error bounds epsilon " + epsilon + ", delta " + delta);
+    }
+    this.epsilon = epsilon;
+    this.delta = delta;
+    this.width = (int) Math.ceil(Math.E / epsilon);
+    this.depth = (int) Math.ceil(Math.log(1 / delta));
+  }
+
+  double getEpsilon() {
+    return epsilon;
+  }
+
+  double getDelta() {
+    return delta;
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getDepth() {
+    return depth;
+  }
+
+  /***
+   * Gets the size of one sketch in bytes.
+   */
+  long getSize() {
+    return 4l * width * depth;
+  }
+
+  /***
+   * Gets the counter of the subject in every row, as an index into the
+   * row-major counters of the sketch.
+   *
+   * @param subject
+   * @return depth counter indexes
+   */
+  int[] offsets(String subject) {
+    final long hash = MurmurHash.hash64A(SafeEncoder.encode(subject), SEED);
+    final int h1 = (int) hash;
+    final int h2 = (int) (hash >>> 32);
+    final int[] offsets = new int[depth];
+    for (int r = 0; r < depth; r++) {
+      offsets[r] = r * width + Math.floorMod(h1 + r * h2, width);
+    }
+    return offsets;
+  }
+
+  /***
+   * Gets the number of counters of the sketch followed by
+   * {@link #offsets(String)}, separated by commas, as expected by
+   * sketch-layout.lua.
+   *
+   * @param subject
+   * @return
+   */
+  String offsetList(String subject) {
+    final StringBuilder sb = new StringBuilder(depth * 8 + 8);
+    sb.append(width * depth);
+    for (int offset : offsets(subject)) {
+      sb.append(',').append(offset);
+    }
+    return sb.toString();
+  }
+}
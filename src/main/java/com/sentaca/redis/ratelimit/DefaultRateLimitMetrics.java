@@ -0,0 +1,197 @@
+package com.sentaca.redis.ratelimit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/***
+ * In-memory {@link RateLimitMetrics}: a {@link LatencyHistogram} and a command
+ * counter per operation, a histogram of pool waits and counters of exec
+ * failures and decisions. Recording allocates only the first time an
+ * operation or action is seen. Can share one instance between services and
+ * be exported to JMX with {@link #register(String)}.
+ * 
+ * @author hamster
+ * 
+ */
+public class DefaultRateLimitMetrics implements RateLimitMetrics, RateLimitMetricsMXBean {
+
+  private static final double NANOS_PER_MICRO = 1000d;
+
+  private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+  private final ConcurrentMap<String, LongAdder> execFailures = new ConcurrentHashMap<String, LongAdder>();
+  private final ConcurrentMap<String, LongAdder> allowed = new ConcurrentHashMap<String, LongAdder>();
+  private final ConcurrentMap<String, LongAdder> denied = new ConcurrentHashMap<String, LongAdder>();
+  private final LatencyHistogram poolWait = new LatencyHistogram();
+
+  public void record(String operation, long nanos, int commands) {
+    Operation o = operations.get(operation);
+    if (o == null) {
+      o = new Operation();
+      final Operation existing = operations.putIfAbsent(operation, o);
+      if (existing != null) {
+        o = existing;
+      }
+    }
+    o.latency.record(nanos);
+    o.commands.add(commands);
+  }
+
+  public void poolWait(long nanos) {
+    poolWait.record(nanos);
+  }
+
+  public void execFailed(String operation) {
+    counter(execFailures, operation).increment();
+  }
+
+  public void decision(String action, boolean allowed) {
+    counter(allowed ? this.allowed : this.denied, action).increment();
+  }
+
+  /***
+   * Gets the latency histogram of the operation.
+   * 
+   * @param operation
+   * @return null if the operation was not called yet
+   */
+  public LatencyHistogram getLatency(String operation) {
+    final Operation o = operations.get(operation);
+    return o == null ? null : o.latency;
+  }
+
+  public LatencyHistogram getPoolWait() {
+    return poolWait;
+  }
+
+  /***
+   * Registers this instance in the platform MBean server.
+   * 
+   * @param name
+   *          - used as the name key of the object name, e.g. the action
+   * @return the object name
+   */
+  public ObjectName register(String name) {
+    try {
+      final ObjectName objectName = new ObjectName("com.sentaca.redis.ratelimit:type=RateLimitMetrics,name=" + ObjectName.quote(name));
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(this, objectName);
+      return objectName;
+    } catch (JMException ex) {
+      throw new IllegalStateException("Cannot register metrics " + name, ex);
+    }
+  }
+
+  public Map<String, Long> getCalls() {
+    final Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, Operation> e : operations.entrySet()) {
+      map.put(e.getKey(), e.getValue().latency.getCount());
+    }
+    return map;
+  }
+
+  public Map<String, Long> getCommands() {
+    final Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, Operation> e : operations.entrySet()) {
+      map.put(e.getKey(), e.getValue().commands.sum());
+    }
+    return map;
+  }
+
+  public Map<String, Double> getMeanMicros() {
+    final Map<String, Double> map = new TreeMap<String, Double>();
+    for (Map.Entry<String, Operation> e : operations.entrySet()) {
+      map.put(e.getKey(), e.getValue().latency.getMean() / NANOS_PER_MICRO);
+    }
+    return map;
+  }
+
+  public Map<String, Double> getP99Micros() {
+    final Map<String, Double> map = new TreeMap<String, Double>();
+    for (Map.Entry<String, Operation> e : operations.entrySet()) {
+      map.put(e.getKey(), e.getValue().latency.getPercentile(99) / NANOS_PER_MICRO);
+    }
+    return map;
+  }
+
+  public Map<String, Double> getMaxMicros() {
+    final Map<String, Double> map = new TreeMap<String, Double>();
+    for (Map.Entry<String, Operation> e : operations.entrySet()) {
+      map.put(e.getKey(), e.getValue().latency.getMax() / NANOS_PER_MICRO);
+    }
+    return map;
+  }
+
+  public Map<String, Long> getExecFailures() {
+    return sums(execFailures);
+  }
+
+  public Map<String, Long> getAllowed() {
+    return sums(allowed);
+  }
+
+  public Map<String, Long> getDenied() {
+    return sums(denied);
+  }
+
+  public long getPoolWaits() {
+    return poolWait.getCount();
+  }
+
+  public double getPoolWaitP99Micros() {
+    return poolWait.getPercentile(99) / NANOS_PER_MICRO;
+  }
+
+  public double getPoolWaitMaxMicros() {
+    return poolWait.getMax() / NANOS_PER_MICRO;
+  }
+
+  public void reset() {
+    for (Operation o : operations.values()) {
+      o.latency.reset();
+      o.commands.reset();
+    }
+    for (LongAdder c : execFailures.values()) {
+      c.reset();
+    }
+    for (LongAdder c : allowed.values()) {
+      c.reset();
+    }
+    for (LongAdder c : denied.values()) {
+      c.reset();
+    }
+    poolWait.reset();
+  }
+
+  private static LongAdder counter(ConcurrentMap<String, LongAdder> counters, String key) {
+    LongAdder c = counters.get(key);
+    if (c == null) {
+      c = new LongAdder();
+      final LongAdder existing = counters.putIfAbsent(key, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  private static Map<String, Long> sums(ConcurrentMap<String, LongAdder> counters) {
+    final Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+      map.put(e.getKey(), e.getValue().sum());
+    }
+    return map;
+  }
+
+  private static class Operation {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder commands = new LongAdder();
+  }
+}
@@ -0,0 +1,194 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Near cache of denied subjects in front of another {@link RateLimiter}. When
+ * tryAcquire is denied, the subject is remembered until its retry-after time,
+ * the earliest time its window can drop below the limit (computed from the
+ * buckets by the wrapped limiter). Until then the same or a lower limit with
+ * the same rule is denied locally, without a round trip, so a subject over its
+ * limit costs redis one call per retry-after period instead of one per
+ * request.
+ * <p>
+ * Hits of other nodes can only keep a subject over the limit longer, never
+ * shorter, so the cached denial is the decision redis would make. Denied hits
+ * are not recorded, the same as in redis. All the other calls are passed
+ * through.
+ * <p>
+ * Memory is bounded by maxSubjects, expired entries are dropped first.
+ * 
+ * @author hamster
+ * 
+ */
+public class DeniedSubjectCache implements RateLimiter {
+
+  private static final int DEFAULT_MAX_SUBJECTS = 10000;
+
+  private final RateLimiter limiter;
+  private final int maxSubjects;
+  private final ConcurrentMap<String, Denial> denials = new ConcurrentHashMap<String, Denial>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private Clock clock = Clock.systemUTC();
+
+  /***
+   * 
+   * @param limiter
+   *          - limiter making the decisions
+   * @param maxSubjects
+   *          - max number of denied subjects kept in memory
+   */
+  public DeniedSubjectCache(RateLimiter limiter, int maxSubjects) {
+    this.limiter = limiter;
+    this.maxSubjects = maxSubjects;
+  }
+
+  /***
+   * @see #DeniedSubjectCache(RateLimiter, int)
+   * @param limiter
+   */
+  public DeniedSubjectCache(RateLimiter limiter) {
+    this(limiter, DEFAULT_MAX_SUBJECTS);
+  }
+
+  /***
+   * Sets the clock giving the time of the calls without a time argument,
+   * {@link Clock#systemUTC()} by default. See {@link RedisClock} for a clock
+   * shared by all nodes.
+   * 
+   * @param clock
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+
+  /***
+   * Gets the number of tryAcquire calls denied locally.
+   * 
+   * @return
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /***
+   * Gets the number of tryAcquire calls passed to the wrapped limiter.
+   * 
+   * @return
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /***
+   * Gets the number of denied subjects kept in memory.
+   * 
+   * @return
+   */
+  public int size() {
+    return denials.size();
+  }
+
+  public void addAll(long time, Set<String> subjects) {
+    limiter.addAll(time, subjects);
+  }
+
+  public void add(long time, String subject) {
+    limiter.add(time, subject);
+  }
+
+  public CountResult count(long time, String subject) {
+    return limiter.count(time, subject);
+  }
+
+  public CountResult addAndCount(long time, String subject) {
+    return limiter.addAndCount(time, subject);
+  }
+
+  public Map<String, CountResult> countAll(long time, Collection<String> subjects) {
+    return limiter.countAll(time, subjects);
+  }
+
+  public Map<String, Tps> tpsAll(Collection<String> subjects) {
+    return limiter.tpsAll(subjects);
+  }
+
+  public Tps tps(String subject) {
+    return limiter.tps(subject);
+  }
+
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(clock.millis(), subject, limit, rule);
+  }
+
+  public AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule) {
+    final Denial denial = denials.get(subject);
+    if (denial != null) {
+      if (time < denial.until && denial.rule == rule && limit <= denial.limit) {
+        hits.increment();
+        return new AcquireResult(false, denial.until - time, denial.tps);
+      }
+      if (time >= denial.until) {
+        denials.remove(subject, denial);
+      }
+    }
+    misses.increment();
+    final AcquireResult result = limiter.tryAcquire(time, subject, limit, rule);
+    if (!result.isAllowed() && result.getRetryAfter() > 0) {
+      if (denials.size() >= maxSubjects) {
+        evict(time);
+      }
+      denials.put(subject, new Denial(time + result.getRetryAfter(), limit, rule, result.getTps()));
+    }
+    return result;
+  }
+
+  /***
+   * Drops the expired denials and, while still full, the denials expiring
+   * first.
+   */
+  private void evict(long time) {
+    long threshold = time;
+    while (true) {
+      long next = Long.MAX_VALUE;
+      for (Iterator<Denial> it = denials.values().iterator(); it.hasNext();) {
+        final Denial d = it.next();
+        if (d.until <= threshold) {
+          it.remove();
+        } else if (d.until < next) {
+          next = d.until;
+        }
+      }
+      if (denials.size() < maxSubjects || next == Long.MAX_VALUE) {
+        return;
+      }
+      threshold = next;
+    }
+  }
+
+  private static class Denial {
+    private final long until;
+    private final double limit;
+    private final ThrottleRule rule;
+    private final Tps tps;
+
+    Denial(long until, double limit, ThrottleRule rule, Tps tps) {
+      this.until = until;
+      this.limit = limit;
+      this.rule = rule;
+      this.tps = tps;
+    }
+  }
+}
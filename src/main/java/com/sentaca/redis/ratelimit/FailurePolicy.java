@@ -0,0 +1,21 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * What {@link ResilientRateLimitService} and {@link ResilientBufferSizeService}
+ * answer when redis cannot be reached in time.
+ */
+public enum FailurePolicy {
+  /***
+   * Allows every hit and lease, counts are reported as empty.
+   */
+  FAIL_OPEN,
+  /***
+   * Denies every hit and lease, the other calls throw the failure.
+   */
+  FAIL_CLOSED,
+  /***
+   * Answers from in-memory state of this node, reconciled with redis once it
+   * is back.
+   */
+  FAIL_LOCAL
+}
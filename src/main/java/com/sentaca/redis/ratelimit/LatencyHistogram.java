@@ -0,0 +1,112 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * Lock-free, allocation-free histogram of positive long values (nanoseconds).
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 16 sub-buckets, so a reported percentile is at most 1/16 (6.25%) above the
+ * recorded value, the same trade-off HdrHistogram makes with 1 significant
+ * digit. The whole long range fits in 960 counters.
+ * 
+ * @author hamster
+ * 
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /***
+   * Records one value, negative values are recorded as 0.
+   * 
+   * @param value
+   */
+  public void record(long value) {
+    final long v = value < 0 ? 0 : value;
+    counts.incrementAndGet(index(v));
+    count.incrementAndGet();
+    total.addAndGet(v);
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    final long c = count.get();
+    return c == 0 ? 0 : (double) total.get() / c;
+  }
+
+  /***
+   * Gets the value below which the given percentage of the recorded values
+   * falls, rounded up to the bucket boundary.
+   * 
+   * @param percentile
+   *          - between 0 and 100
+   * @return 0 if nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    // the counters are summed again, count may be ahead of them
+    long recorded = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      recorded += counts.get(i);
+    }
+    if (recorded == 0) {
+      return 0;
+    }
+    long remaining = Math.max(1, (long) Math.ceil(recorded * Math.min(percentile, 100) / 100));
+    for (int i = 0; i < BUCKETS; i++) {
+      remaining -= counts.get(i);
+      if (remaining <= 0) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /***
+   * Clears the recorded values. Values recorded concurrently may be lost.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int shift = exponent - SUB_BUCKET_BITS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    final long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,72 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * Slot of a {@link BufferSizeService} subject, taken by
+ * {@link BufferSizeService#tryAcquire(String, int)}. Pass it back to
+ * {@link BufferSizeService#release(Lease)} once done.
+ *
+ * @author hamster
+ *
+ */
+public class Lease {
+  private final String subject;
+  private final String id;
+  private final boolean acquired;
+  private final int holders;
+  private final long retryAfter;
+
+  /***
+   *
+   * @param subject
+   * @param id
+   *          - unique id of the lease, null when not acquired
+   * @param acquired
+   * @param holders
+   *          - leases of the subject after the call
+   * @param retryAfter
+   *          - milliseconds until the first lease expires, 0 when acquired
+   */
+  public Lease(String subject, String id, boolean acquired, int holders, long retryAfter) {
+    this.subject = subject;
+    this.id = id;
+    this.acquired = acquired;
+    this.holders = holders;
+    this.retryAfter = retryAfter;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /***
+   * Checks if a slot was free and is now held by this lease.
+   *
+   * @return
+   */
+  public boolean isAcquired() {
+    return acquired;
+  }
+
+  /***
+   * Gets the number of leases held for the subject, including this one.
+   *
+   * @return
+   */
+  public int getHolders() {
+    return holders;
+  }
+
+  /***
+   * Gets the time in milliseconds until the first lease of the subject
+   * expires. Slots released earlier are free earlier.
+   *
+   * @return
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
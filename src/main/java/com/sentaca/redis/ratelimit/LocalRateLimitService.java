@@ -0,0 +1,364 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/***
+ * In-process implementation of {@link RateLimiter} for single node services and
+ * tests. Every subject owns a ring of bucketsUsedForTps primitive counters
+ * tagged with the absolute bucket index they belong to, so stale buckets are
+ * recognized on read and reused on write without a clear-ahead loop. Counting
+ * an existing subject does not allocate anything but the returned result.
+ * <p>
+ * Memory is bounded by maxSubjects. A subject that was not hit for the whole
+ * tps window only holds stale buckets and is evicted without changing any
+ * result; when the limit is reached the least recently hit subjects are
+ * evicted as well, a tenth of maxSubjects at once, by one caller at a time. A
+ * hit racing the eviction of its subject goes to a new window. A hit for a
+ * bucket that already dropped out of the window is ignored.
+ */
+public class LocalRateLimitService implements RateLimiter {
+
+  private static final int DEFAULT_BUCKET_INTERVAL = 1; // in seconds
+  private static final int DEFAULT_MAX_SUBJECTS = 100000;
+
+  private final int bucketInterval;
+  private final int tpsInterval;
+  private final int bucketsUsedForTps;
+  private final int maxSubjects;
+  private final long idleTime;
+  private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  private volatile long lastEviction;
+  private Clock clock = Clock.systemUTC();
+
+  /***
+   *
+   * @param bucketInterval
+   *          - in seconds
+   * @param tpsInterval
+   *          - time window (span) in seconds where the TPS value is calculated
+   * @param maxSubjects
+   *          - max number of subjects kept in memory
+   */
+  public LocalRateLimitService(int bucketInterval, int tpsInterval, int maxSubjects) {
+    this.bucketInterval = bucketInterval;
+    this.tpsInterval = tpsInterval;
+    this.bucketsUsedForTps = tpsInterval / bucketInterval;
+    this.maxSubjects = maxSubjects;
+    this.idleTime = (tpsInterval + bucketInterval) * 1000l;
+  }
+
+  /***
+   * @see #LocalRateLimitService(int, int, int)
+   * @param tpsInterval
+   */
+  public LocalRateLimitService(int tpsInterval) {
+    this(DEFAULT_BUCKET_INTERVAL, tpsInterval, DEFAULT_MAX_SUBJECTS);
+  }
+
+  /***
+   * Sets the clock giving the time of the calls without a time argument,
+   * {@link Clock#systemUTC()} by default.
+   * 
+   * @param clock
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+
+  public long getBucketIndex(long time) {
+    return time / 1000 / bucketInterval;
+  }
+
+  /***
+   * Gets the number of subjects kept in memory.
+   *
+   * @return
+   */
+  public int size() {
+    return windows.size();
+  }
+
+  public void addAll(long time, Set<String> subjects) {
+    for (String subject : subjects) {
+      add(time, subject);
+    }
+  }
+
+  public void add(long time, String subject) {
+    while (!window(time, subject).add(getBucketIndex(time), time, 1)) {
+      // evicted meanwhile, retry with a new window
+    }
+  }
+
+  public CountResult count(long time, String subject) {
+    final Window w = windows.get(subject);
+    if (w == null) {
+      return new CountResult(0, bucketsUsedForTps, 0, 0);
+    }
+    return w.count(getBucketIndex(time));
+  }
+
+  public CountResult addAndCount(long time, String subject) {
+    final long index = getBucketIndex(time);
+    while (true) {
+      final Window w = window(time, subject);
+      synchronized (w) {
+        if (w.add(index, time, 1)) {
+          return w.count(index);
+        }
+      }
+    }
+  }
+
+  public Map<String, CountResult> countAll(long time, Collection<String> subjects) {
+    final Map<String, CountResult> map = new LinkedHashMap<String, CountResult>();
+    for (String subject : subjects) {
+      map.put(subject, count(time, subject));
+    }
+    return map;
+  }
+
+  public Map<String, Tps> tpsAll(Collection<String> subjects) {
+    final Map<String, Tps> map = new LinkedHashMap<String, Tps>();
+    for (Map.Entry<String, CountResult> e : countAll(clock.millis(), subjects).entrySet()) {
+      map.put(e.getKey(), Tps.calculate(e.getValue(), tpsInterval, bucketInterval));
+    }
+    return map;
+  }
+
+  public Tps tps(String subject) {
+    return Tps.calculate(count(clock.millis(), subject), tpsInterval, bucketInterval);
+  }
+
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(clock.millis(), subject, limit, rule);
+  }
+
+  public AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule) {
+    final long index = getBucketIndex(time);
+    final long bucketMillis = bucketInterval * 1000l;
+    while (true) {
+      final Window w = window(time, subject);
+      synchronized (w) {
+        if (w.evicted) {
+          continue;
+        }
+        final boolean allowed = rate(w, index, w.get(index) + 1, 1, bucketsUsedForTps - 1, rule) <= limit;
+        long retryAfter = 0;
+        if (allowed) {
+          w.add(index, time, 1);
+        } else {
+          // the hit lands in a fresh bucket and the oldest buckets drop out
+          // one by one
+          int k = 1;
+          while (k < bucketsUsedForTps && rate(w, index, 1, 0, bucketsUsedForTps - k - 1, rule) > limit) {
+            k++;
+          }
+          retryAfter = bucketMillis - time % bucketMillis + (k - 1) * bucketMillis;
+        }
+        return new AcquireResult(allowed, retryAfter, Tps.calculate(w.count(index), tpsInterval, bucketInterval));
+      }
+    }
+  }
+
+  /***
+   * Removes the subjects that were not hit for the whole tps window and, when
+   * the limit is reached, the least recently hit ones. Called automatically
+   * from the write path, at most once per tps window or when the limit is
+   * reached. While another eviction runs, waits for it instead.
+   *
+   * @param time
+   */
+  public void evictIdle(long time) {
+    // concurrent writers finding the map full would all scan and sort it
+    if (!evicting.compareAndSet(false, true)) {
+      while (evicting.get()) {
+        Thread.yield();
+      }
+      return;
+    }
+    try {
+      lastEviction = time;
+      evict(time - idleTime);
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  /***
+   * Rate of the window where the current bucket holds latest hits and the
+   * other buckets are the ones from..to buckets before the given index.
+   */
+  private double rate(Window w, long index, int latest, int from, int to, ThrottleRule rule) {
+    int sum = latest;
+    int nonEmpty = latest > 0 ? 1 : 0;
+    int peak = latest;
+    for (int i = from; i <= to; i++) {
+      final int c = w.get(index - i);
+      sum += c;
+      if (c > 0) {
+        nonEmpty++;
+      }
+      if (c > peak) {
+        peak = c;
+      }
+    }
+    switch (rule) {
+    case BY_NO_EMPTY_BUCKETS_TPS:
+      final double factor = tpsInterval - (bucketsUsedForTps - nonEmpty) * bucketInterval;
+      return factor == 0 ? 0 : sum / factor;
+    case BY_PEAK_TPS:
+      return (double) peak / bucketInterval;
+    case BY_LATEST_BUCKET_TPS:
+      return (double) latest / bucketInterval;
+    default:
+    case BY_AVERAGE_TPS:
+      return (double) sum / tpsInterval;
+    }
+  }
+
+  /***
+   * Gets the window of the subject, a new one when it was evicted.
+   */
+  private Window window(long time, String subject) {
+    while (true) {
+      Window w = windows.get(subject);
+      if (w == null) {
+        if (windows.size() >= maxSubjects || time - lastEviction > idleTime) {
+          evictIdle(time);
+        }
+        w = new Window(bucketsUsedForTps);
+        final Window existing = windows.putIfAbsent(subject, w);
+        if (existing == null) {
+          return w;
+        }
+        w = existing;
+      }
+      if (!w.evicted) {
+        return w;
+      }
+      // marked by a concurrent eviction that did not remove it yet
+      windows.remove(subject, w);
+    }
+  }
+
+  /***
+   * Removes the subjects last hit before the threshold; when the map is still
+   * full, the least recently hit subjects, down to nine tenths of
+   * maxSubjects.
+   */
+  private void evict(long threshold) {
+    final List<Map.Entry<String, Window>> entries = new ArrayList<Map.Entry<String, Window>>(windows.size());
+    for (Map.Entry<String, Window> e : windows.entrySet()) {
+      if (e.getValue().lastHit < threshold) {
+        remove(e.getKey(), e.getValue());
+      } else {
+        entries.add(e);
+      }
+    }
+    final int excess = windows.size() - (maxSubjects - Math.max(1, maxSubjects / 10));
+    if (excess <= 0) {
+      return;
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Window>>() {
+
+      @Override
+      public int compare(Map.Entry<String, Window> a, Map.Entry<String, Window> b) {
+        return Long.compare(a.getValue().lastHit, b.getValue().lastHit);
+      }
+    });
+    for (Map.Entry<String, Window> e : entries.subList(0, Math.min(excess, entries.size()))) {
+      remove(e.getKey(), e.getValue());
+    }
+  }
+
+  /***
+   * Marks the window first, so a caller holding it does not count hits in a
+   * window that is gone.
+   */
+  private void remove(String subject, Window w) {
+    synchronized (w) {
+      w.evicted = true;
+    }
+    windows.remove(subject, w);
+  }
+
+  /***
+   * Counters of the tps window, slot index % size holds the bucket index.
+   */
+  private static class Window {
+    private final int[] counts;
+    private final long[] indexes;
+    private volatile long lastHit;
+    private volatile boolean evicted;
+
+    Window(int size) {
+      this.counts = new int[size];
+      this.indexes = new long[size];
+      for (int i = 0; i < size; i++) {
+        indexes[i] = -1;
+      }
+    }
+
+    /***
+     * @return false if the window was evicted, nothing is added then
+     */
+    synchronized boolean add(long index, long time, int increment) {
+      if (evicted) {
+        return false;
+      }
+      final int slot = (int) (index % counts.length);
+      if (index < indexes[slot]) {
+        // the slot holds a newer bucket, this one left the window
+        return true;
+      }
+      if (indexes[slot] != index) {
+        indexes[slot] = index;
+        counts[slot] = 0;
+      }
+      counts[slot] += increment;
+      if (time > lastHit) {
+        lastHit = time;
+      }
+      return true;
+    }
+
+    synchronized int get(long index) {
+      final int slot = (int) (index % counts.length);
+      return indexes[slot] == index ? counts[slot] : 0;
+    }
+
+    synchronized CountResult count(long index) {
+      int sum = 0;
+      int numberOfEmptyBuckets = 0;
+      int peakCount = 0;
+      for (int i = 0; i < counts.length; i++) {
+        final int c = get(index - i);
+        sum += c;
+        if (c == 0) {
+          numberOfEmptyBuckets++;
+        }
+        if (c > peakCount) {
+          peakCount = c;
+        }
+      }
+      return new CountResult(sum, numberOfEmptyBuckets, peakCount, get(index));
+    }
+  }
+}
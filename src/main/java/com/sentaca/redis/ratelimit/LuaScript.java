@@ -0,0 +1,186 @@
+package com.sentaca.redis.ratelimit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/***
+ * Lua script bundled as classpath resources, concatenated in the given order so
+ * that several scripts can share the same prelude. The script is loaded with
+ * SCRIPT LOAD on the first call and executed with EVALSHA afterwards. When the
+ * server does not know the script (restart, SCRIPT FLUSH, another shard) it
+ * falls back to EVAL, which also caches the script on that server.
+ *
+ * @author hamster
+ *
+ */
+class LuaScript {
+
+  private static final String NOSCRIPT = "NOSCRIPT";
+
+  private final String source;
+  private volatile String sha;
+
+  /***
+   * @param resources
+   *          - names of the script resources, relative to this package
+   */
+  LuaScript(String... resources) {
+    final StringBuilder sb = new StringBuilder();
+    for (String resource : resources) {
+      sb.append(read(resource)).append('\n');
+    }
+    this.source = sb.toString();
+  }
+
+  String getSource() {
+    return source;
+  }
+
+  /***
+   * Executes the script on the given connection.
+   *
+   * @param j
+   * @param keys
+   * @param args
+   * @return raw script reply
+   */
+  Object eval(Jedis j, List<String> keys, List<String> args) {
+    if (sha == null) {
+      sha = j.scriptLoad(source);
+    }
+    try {
+      return j.evalsha(sha, keys, args);
+    } catch (JedisDataException ex) {
+      if (!isNoScript(ex)) {
+        throw ex;
+      }
+      return j.eval(source, keys, args);
+    }
+  }
+
+  /***
+   * Executes the script once per key in a single pipeline. Bulk replies are
+   * decoded to strings, the same way {@link #eval} returns them.
+   *
+   * @param j
+   * @param keys
+   *          - the only key of every call
+   * @param args
+   *          - arguments of every call
+   * @return script replies in the order of the keys
+   * @throws JedisDataException
+   *           the first error reported by a call
+   */
+  List<Object> evalAll(Jedis j, List<String> keys, List<List<String>> args) {
+    final List<Object> replies = evalEach(j, keys, args);
+    for (Object reply : replies) {
+      if (reply instanceof JedisDataException) {
+        throw (JedisDataException) reply;
+      }
+    }
+    return replies;
+  }
+
+  /***
+   * Same as {@link #evalAll}, but the errors of single calls are returned in
+   * place of their replies instead of thrown.
+   *
+   * @param j
+   * @param keys
+   * @param args
+   * @return script replies or JedisDataExceptions, in the order of the keys
+   */
+  List<Object> evalEach(Jedis j, List<String> keys, List<List<String>> args) {
+    if (sha == null) {
+      sha = j.scriptLoad(source);
+    }
+    final Client client = j.getClient();
+    for (int i = 0; i < keys.size(); i++) {
+      client.evalsha(sha, 1, params(keys.get(i), args.get(i)));
+    }
+    final List<Object> replies = client.getAll();
+
+    List<Integer> missing = null;
+    for (int i = 0; i < replies.size(); i++) {
+      final Object reply = replies.get(i);
+      if (reply instanceof JedisDataException && isNoScript((JedisDataException) reply)) {
+        if (missing == null) {
+          missing = new ArrayList<Integer>();
+        }
+        missing.add(i);
+      }
+    }
+    if (missing != null) {
+      for (int i : missing) {
+        client.eval(source, 1, params(keys.get(i), args.get(i)));
+      }
+      final List<Object> retried = client.getAll();
+      for (int i = 0; i < missing.size(); i++) {
+        replies.set(missing.get(i), retried.get(i));
+      }
+    }
+
+    for (int i = 0; i < replies.size(); i++) {
+      replies.set(i, decode(replies.get(i)));
+    }
+    return replies;
+  }
+
+  private static String[] params(String key, List<String> args) {
+    final String[] params = new String[args.size() + 1];
+    params[0] = key;
+    for (int i = 0; i < args.size(); i++) {
+      params[i + 1] = args.get(i);
+    }
+    return params;
+  }
+
+  private static Object decode(Object reply) {
+    if (reply instanceof byte[]) {
+      return SafeEncoder.encode((byte[]) reply);
+    }
+    if (reply instanceof List) {
+      final List<?> list = (List<?>) reply;
+      final List<Object> decoded = new ArrayList<Object>(list.size());
+      for (Object o : list) {
+        decoded.add(decode(o));
+      }
+      return decoded;
+    }
+    return reply;
+  }
+
+  static boolean isNoScript(JedisDataException ex) {
+    return ex.getMessage() != null && ex.getMessage().startsWith(NOSCRIPT);
+  }
+
+  private static String read(String resource) {
+    final InputStream in = LuaScript.class.getResourceAsStream(resource);
+    if (in == null) {
+      throw new IllegalStateException("Missing lua script " + resource);
+    }
+    try {
+      try {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException("Cannot read lua script " + resource, ex);
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/***
+ * Enforces several limits on the same subject at once, e.g. 10/s, 300/min and
+ * 5000/hour, with one lua script call and one key per subject instead of one
+ * {@link RateLimitService} per limit.
+ * <p>
+ * Buckets are stored by level: every distinct bucket interval of the windows
+ * is a level, a hit increments one bucket per level and the windows with the
+ * same bucket interval read the same buckets. With the default bucket
+ * intervals of {@link RateLimitWindow#RateLimitWindow(int, int)} the limits
+ * above use two levels, 60 buckets of a second for the first two windows and
+ * 60 buckets of a minute for the hour.
+ * <p>
+ * Uses a different hash layout than {@link RateLimitService}, do not share an
+ * action between them.
+ *
+ * @author hamster
+ *
+ */
+public class MultiWindowRateLimitService {
+
+  private static final LuaScript SCRIPT = new LuaScript("multi-window.lua");
+  private static final String TRY_ACQUIRE = "tryAcquire";
+  private static final String ADD_AND_COUNT = "addAndCount";
+  private static final String COUNT = "count";
+  private static final String BATCH = "batch";
+
+  private final String namespace;
+  private final String action;
+  private final ShardedPool shards;
+  private final List<RateLimitWindow> windows;
+  // bucketInterval and buckets of every level, then level, buckets and limit
+  // of every window, see multi-window.lua
+  private final List<String> layoutArgs = new ArrayList<String>();
+  private final String subjectExpiry;
+  private RateLimitMetrics metrics = RateLimitMetrics.NONE;
+  private Clock clock = Clock.systemUTC();
+
+  private SubjectKeyGenerator subjectKeyGenerator = new SubjectKeyGenerator();
+
+  /***
+   *
+   * @param pool
+   *          -redis pool to be used
+   * @param namespace
+   *          - used to create redis key, might be null
+   * @param action
+   *          - required, used to create redis key
+   * @param windows
+   *          - limits enforced together, at least one
+   */
+  public MultiWindowRateLimitService(JedisPool pool, String namespace, String action, List<RateLimitWindow> windows) {
+    this(new ShardedPool(pool), namespace, action, windows);
+  }
+
+  /***
+   * @see #MultiWindowRateLimitService(JedisPool, String, String, List)
+   * @param shards
+   *          - redis servers the subjects are distributed over
+   * @param namespace
+   * @param action
+   * @param windows
+   */
+  public MultiWindowRateLimitService(ShardedPool shards, String namespace, String action, List<RateLimitWindow> windows) {
+    if (windows.isEmpty()) {
+      throw new IllegalArgumentException("At least one window is required");
+    }
+    this.shards = shards;
+    this.namespace = namespace;
+    this.action = action;
+    this.windows = Collections.unmodifiableList(new ArrayList<RateLimitWindow>(windows));
+
+    // buckets kept by bucket interval, the longest window of the level
+    final TreeMap<Integer, Integer> levels = new TreeMap<Integer, Integer>();
+    int expiry = 0;
+    for (RateLimitWindow w : windows) {
+      final Integer buckets = levels.get(w.getBucketInterval());
+      levels.put(w.getBucketInterval(), Math.max(buckets == null ? 0 : buckets, w.getBuckets()));
+      expiry = Math.max(expiry, w.getInterval() + w.getBucketInterval());
+    }
+    this.subjectExpiry = String.valueOf(expiry);
+
+    final List<Integer> bucketIntervals = new ArrayList<Integer>(levels.keySet());
+    layoutArgs.add(String.valueOf(levels.size()));
+    for (Map.Entry<Integer, Integer> e : levels.entrySet()) {
+      layoutArgs.add(String.valueOf(e.getKey()));
+      layoutArgs.add(String.valueOf(e.getValue()));
+    }
+    layoutArgs.add(String.valueOf(windows.size()));
+    for (RateLimitWindow w : windows) {
+      layoutArgs.add(String.valueOf(bucketIntervals.indexOf(w.getBucketInterval()) + 1));
+      layoutArgs.add(String.valueOf(w.getBuckets()));
+      layoutArgs.add(String.valueOf(w.getLimit()));
+    }
+  }
+
+  public List<RateLimitWindow> getWindows() {
+    return windows;
+  }
+
+  /***
+   * Sets the hook notified about every call, {@link RateLimitMetrics#NONE} by
+   * default.
+   *
+   * @param metrics
+   */
+  public void setMetrics(RateLimitMetrics metrics) {
+    this.metrics = metrics == null ? RateLimitMetrics.NONE : metrics;
+  }
+
+  public RateLimitMetrics getMetrics() {
+    return metrics;
+  }
+
+  /***
+   * Sets the clock giving the time of the calls without a time argument,
+   * {@link Clock#systemUTC()} by default. See {@link RedisClock} for a clock
+   * shared by all nodes.
+   *
+   * @param clock
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+
+  /***
+   * Sets how the subject keys are built, e.g. with hash tags for a
+   * {@link ShardedPool}.
+   *
+   * @param subjectKeyGenerator
+   */
+  public void setSubjectKeyGenerator(SubjectKeyGenerator subjectKeyGenerator) {
+    this.subjectKeyGenerator = subjectKeyGenerator;
+  }
+
+  /***
+   * @see #tryAcquire(long, String, int)
+   */
+  public MultiWindowResult tryAcquire(String subject) {
+    return tryAcquire(clock.millis(), subject, 1);
+  }
+
+  /***
+   * Records the hits only if every window allows them, in one atomic call.
+   *
+   * @param time
+   *          - in milliseconds
+   * @param subject
+   * @param hits
+   * @return
+   */
+  public MultiWindowResult tryAcquire(long time, String subject, int hits) {
+    final MultiWindowResult result = eval(TRY_ACQUIRE, time, subject, hits, "acquire");
+    metrics.decision(action, result.isAllowed());
+    return result;
+  }
+
+  /***
+   * Records a hit, also when a window is over its limit, and counts every
+   * window including that hit.
+   *
+   * @param time
+   * @param subject
+   * @return
+   */
+  public MultiWindowResult addAndCount(long time, String subject) {
+    return eval(ADD_AND_COUNT, time, subject, 1, "add");
+  }
+
+  /***
+   * Counts every window without recording anything. The result is allowed when
+   * one more hit would be.
+   *
+   * @param time
+   * @param subject
+   * @return
+   */
+  public MultiWindowResult count(long time, String subject) {
+    return eval(COUNT, time, subject, 0, "count");
+  }
+
+  /***
+   * Counts many subjects in a single pipeline of scripts per shard.
+   *
+   * @param time
+   * @param subjects
+   * @return results by subject, in the order of the subjects
+   */
+  public Map<String, MultiWindowResult> countAll(long time, Collection<String> subjects) {
+    final List<String> list = new ArrayList<String>(new LinkedHashSet<String>(subjects));
+    final Map<String, MultiWindowResult> map = new LinkedHashMap<String, MultiWindowResult>();
+    if (list.isEmpty()) {
+      return map;
+    }
+    final List<String> keys = new ArrayList<String>(list.size());
+    for (String subject : list) {
+      keys.add(subjectKeyGenerator.getKeyForSubject(namespace, action, subject));
+    }
+    final List<String> args = args(time, 0, "count");
+    final List<Object> replies = shards.forEachShard(keys.size(), new ShardedPool.ShardBatch<Object>() {
+
+      @Override
+      String key(int index) {
+        return keys.get(index);
+      }
+
+      @Override
+      List<Object> execute(JedisPool pool, List<Integer> indexes) {
+        final long start = System.nanoTime();
+        final List<String> shardKeys = new ArrayList<String>(indexes.size());
+        for (int i : indexes) {
+          shardKeys.add(keys.get(i));
+        }
+        final Jedis j = getResource(pool);
+        try {
+          return SCRIPT.evalAll(j, shardKeys, Collections.nCopies(shardKeys.size(), args));
+        } finally {
+          pool.returnResource(j);
+          metrics.record(BATCH, System.nanoTime() - start, shardKeys.size());
+        }
+      }
+    });
+    for (int i = 0; i < list.size(); i++) {
+      map.put(list.get(i), result(replies.get(i)));
+    }
+    return map;
+  }
+
+  private MultiWindowResult eval(String operation, long time, String subject, int hits, String mode) {
+    final long start = System.nanoTime();
+    final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
+    final JedisPool pool = shards.getPool(subjectKey);
+    final Jedis j = getResource(pool);
+    try {
+      return result(SCRIPT.eval(j, Collections.singletonList(subjectKey), args(time, hits, mode)));
+    } finally {
+      pool.returnResource(j);
+      metrics.record(operation, System.nanoTime() - start, 1);
+    }
+  }
+
+  private Jedis getResource(JedisPool pool) {
+    final long start = System.nanoTime();
+    final Jedis j = pool.getResource();
+    metrics.poolWait(System.nanoTime() - start);
+    return j;
+  }
+
+  /***
+   * Arguments expected by multi-window.lua.
+   */
+  private List<String> args(long time, int hits, String mode) {
+    final List<String> args = new ArrayList<String>(4 + layoutArgs.size());
+    args.add(String.valueOf(time));
+    args.add(String.valueOf(hits));
+    args.add(mode);
+    args.add(subjectExpiry);
+    args.addAll(layoutArgs);
+    return args;
+  }
+
+  @SuppressWarnings("unchecked")
+  private MultiWindowResult result(Object reply) {
+    final List<Object> r = (List<Object>) reply;
+    final int[] counts = new int[windows.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = Integer.parseInt((String) r.get(i + 2));
+    }
+    return new MultiWindowResult("1".equals(r.get(0)), Long.parseLong((String) r.get(1)), windows, counts);
+  }
+}
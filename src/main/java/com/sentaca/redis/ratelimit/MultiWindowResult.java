@@ -0,0 +1,80 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.List;
+
+/***
+ * Result of a {@link MultiWindowRateLimitService} call, the counters are in
+ * the order of the windows of the service.
+ *
+ * @author hamster
+ *
+ */
+public class MultiWindowResult {
+  private final boolean allowed;
+  private final long retryAfter;
+  private final List<RateLimitWindow> windows;
+  private final int[] counts;
+
+  /***
+   *
+   * @param allowed
+   *          true if every window allowed the hits
+   * @param retryAfter
+   *          milliseconds until every window would allow the hits, 0 when
+   *          allowed
+   * @param windows
+   * @param counts
+   *          - hits in every window after the call
+   */
+  public MultiWindowResult(boolean allowed, long retryAfter, List<RateLimitWindow> windows, int[] counts) {
+    this.allowed = allowed;
+    this.retryAfter = retryAfter;
+    this.windows = windows;
+    this.counts = counts;
+  }
+
+  /***
+   * Checks if the hits were within every window. For tryAcquire it also means
+   * that the hits were recorded, for count that one more hit would be
+   * allowed.
+   *
+   * @return
+   */
+  public boolean isAllowed() {
+    return allowed;
+  }
+
+  /***
+   * Gets the suggested time in milliseconds to wait before retrying, assuming
+   * no other hits arrive in the meantime.
+   *
+   * @return
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+  public List<RateLimitWindow> getWindows() {
+    return windows;
+  }
+
+  /***
+   * Gets the hits in the i-th window.
+   *
+   * @param i
+   * @return
+   */
+  public int getCount(int i) {
+    return counts[i];
+  }
+
+  /***
+   * Gets the hits still allowed in the i-th window.
+   *
+   * @param i
+   * @return
+   */
+  public int getRemaining(int i) {
+    return Math.max(0, windows.get(i).getLimit() - counts[i]);
+  }
+}
@@ -0,0 +1,68 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * Hook notified by {@link RateLimitService} and {@link BufferSizeService} about
+ * every call. Implementations are called on the hot path, from many threads,
+ * and should record without blocking or allocating; see
+ * {@link DefaultRateLimitMetrics}. {@link #NONE} is used when no metrics are
+ * set.
+ * 
+ * @author hamster
+ * 
+ */
+public interface RateLimitMetrics {
+
+  /***
+   * Ignores everything.
+   */
+  RateLimitMetrics NONE = new RateLimitMetrics() {
+
+    public void record(String operation, long nanos, int commands) {
+    }
+
+    public void poolWait(long nanos) {
+    }
+
+    public void execFailed(String operation) {
+    }
+
+    public void decision(String action, boolean allowed) {
+    }
+  };
+
+  /***
+   * Called once per round trip, also when the call failed.
+   * 
+   * @param operation
+   *          - name of the called method, e.g. "add"
+   * @param nanos
+   *          - duration of the whole call, pool wait included
+   * @param commands
+   *          - number of redis commands sent
+   */
+  void record(String operation, long nanos, int commands);
+
+  /***
+   * Called when a connection was borrowed from the pool.
+   * 
+   * @param nanos
+   *          - time spent waiting for the connection
+   */
+  void poolWait(long nanos);
+
+  /***
+   * Called when a MULTI/EXEC transaction was discarded or failed.
+   * 
+   * @param operation
+   */
+  void execFailed(String operation);
+
+  /***
+   * Called with the outcome of every tryAcquire.
+   * 
+   * @param action
+   *          - action of the limiter
+   * @param allowed
+   */
+  void decision(String action, boolean allowed);
+}
@@ -0,0 +1,41 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Map;
+
+/***
+ * JMX view of {@link DefaultRateLimitMetrics}. Maps are keyed by operation
+ * (method name) or, for the decisions, by action. Latencies are in
+ * microseconds.
+ * 
+ * @author hamster
+ * 
+ */
+public interface RateLimitMetricsMXBean {
+
+  Map<String, Long> getCalls();
+
+  Map<String, Long> getCommands();
+
+  Map<String, Double> getMeanMicros();
+
+  Map<String, Double> getP99Micros();
+
+  Map<String, Double> getMaxMicros();
+
+  Map<String, Long> getExecFailures();
+
+  Map<String, Long> getAllowed();
+
+  Map<String, Long> getDenied();
+
+  long getPoolWaits();
+
+  double getPoolWaitP99Micros();
+
+  double getPoolWaitMaxMicros();
+
+  /***
+   * Clears all the recorded values.
+   */
+  void reset();
+}
@@ -1,12 +1,24 @@
 package com.sentaca.redis.ratelimit;
 
-import java.util.Date;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 /**
  * Java port of <a href= 'http://bit.ly/YaGa0m'>redback RateLimit</a> nodejs
@@ -15,20 +27,57 @@ import redis.clients.jedis.Transaction;
  * @author hamster
  * 
  */
-public class RateLimitService {
+public class RateLimitService implements RateLimiter {
 
   private static final int DEFAULT_BUCKET_SPAN = 300; // in seconds
   private static final int DEFAULT_BUCKET_INTERVAL = 1; // in seconds
+  private static final double DEFAULT_SKETCH_EPSILON = 0.001;
+  private static final double DEFAULT_SKETCH_DELTA = 0.01;
+  private static final String SKETCH_SUBJECT = "~cms";
+  private static final String ADD = "add";
+  private static final String COUNT = "count";
+  private static final String ADD_AND_COUNT = "addAndCount";
+  private static final String TRY_ACQUIRE = "tryAcquire";
+  private static final String BATCH = "batch";
+  private static final String COUNT_SERIES = "countSeries";
+  private static final String TPS = "tps";
+  private static final String EXPORT = "export";
+  private static final LuaScript RING_COUNT_SCRIPT = new LuaScript("layout.lua", "ring-layout.lua", "count.lua");
+  private static final LuaScript RING_ACQUIRE_SCRIPT = new LuaScript("layout.lua", "ring-layout.lua", "acquire.lua");
+  private static final LuaScript EPOCH_COUNT_SCRIPT = new LuaScript("layout.lua", "epoch-layout.lua", "count.lua");
+  private static final LuaScript EPOCH_ACQUIRE_SCRIPT = new LuaScript("layout.lua", "epoch-layout.lua", "acquire.lua");
+  private static final LuaScript RING_SERIES_SCRIPT = new LuaScript("layout.lua", "ring-layout.lua", "series.lua");
+  private static final LuaScript EPOCH_SERIES_SCRIPT = new LuaScript("layout.lua", "epoch-layout.lua", "series.lua");
+  private static final LuaScript PACKED_COUNT_SCRIPT = new LuaScript("layout.lua", "packed-layout.lua", "count.lua");
+  private static final LuaScript PACKED_ACQUIRE_SCRIPT = new LuaScript("layout.lua", "packed-layout.lua", "acquire.lua");
+  private static final LuaScript PACKED_SERIES_SCRIPT = new LuaScript("layout.lua", "packed-layout.lua", "series.lua");
+  private static final LuaScript SKETCH_COUNT_SCRIPT = new LuaScript("layout.lua", "sketch-layout.lua", "count.lua");
+  private static final LuaScript SKETCH_ACQUIRE_SCRIPT = new LuaScript("layout.lua", "sketch-layout.lua", "acquire.lua");
+  private static final LuaScript SKETCH_SERIES_SCRIPT = new LuaScript("layout.lua", "sketch-layout.lua", "series.lua");
+  private static final LuaScript EXPORT_SCRIPT = new LuaScript("layout.lua", "export.lua");
   private String namespace;
   private String action;
   private int bucketInterval;
   private int bucketSpan;
   private int subjectExpiry;
-  private JedisPool pool;
+  private ShardedPool shards;
   private int bucketCount;
   private int tpsInterval;
   private int bucketsUsedForTps;
   private int bucketToClear;
+  private boolean scripted;
+  private boolean serverTime;
+  private BucketLayout bucketLayout = BucketLayout.RING;
+  private CountMinSketch sketch = new CountMinSketch(DEFAULT_SKETCH_EPSILON, DEFAULT_SKETCH_DELTA);
+  private RateLimitMetrics metrics = RateLimitMetrics.NONE;
+  private TopSubjects topSubjects;
+  private ConnectionMultiplexer multiplexer;
+  private Clock clock = Clock.systemUTC();
+  private boolean binary;
+  // bucket field names, precomputed for every slot
+  private String[] fieldNames;
+  private byte[][] fields;
+  private byte[] keyPrefix;
 
   private SubjectKeyGenerator subjectKeyGenerator = new SubjectKeyGenerator();
 
@@ -48,7 +97,21 @@ public class RateLimitService {
    *          - time window (span) in seconds where the TPS value is calculated
    */
   public RateLimitService(JedisPool pool, String namespace, String action, int bucketSpan, int bucketInterval, int tpsInterval) {
-    this.pool = pool;
+    this(new ShardedPool(pool), namespace, action, bucketSpan, bucketInterval, tpsInterval);
+  }
+
+  /**
+   * @see #RateLimitService(JedisPool, String, String, int, int, int)
+   * @param shards
+   *          - redis servers the subjects are distributed over
+   * @param namespace
+   * @param action
+   * @param bucketSpan
+   * @param bucketInterval
+   * @param tpsInterval
+   */
+  public RateLimitService(ShardedPool shards, String namespace, String action, int bucketSpan, int bucketInterval, int tpsInterval) {
+    this.shards = shards;
     this.namespace = namespace;
     this.action = action;
     this.bucketInterval = bucketInterval;
@@ -58,7 +121,13 @@ public class RateLimitService {
     this.subjectExpiry = bucketSpan - 1;
     this.bucketsUsedForTps = Math.round(tpsInterval / bucketInterval);
     this.bucketToClear = bucketCount - bucketsUsedForTps;
-
+    this.fieldNames = new String[bucketCount];
+    this.fields = new byte[bucketCount][];
+    for (int i = 0; i < bucketCount; i++) {
+      fieldNames[i] = String.valueOf(i);
+      fields[i] = SafeEncoder.encode(fieldNames[i]);
+    }
+    this.keyPrefix = subjectKeyGenerator.getKeyPrefix(namespace, action);
   }
 
   /**
@@ -84,112 +153,1074 @@ public class RateLimitService {
     this(pool, namespace, action, DEFAULT_BUCKET_SPAN, DEFAULT_BUCKET_INTERVAL, tpsInterval);
   }
 
+  /***
+   * Switches between MULTI/EXEC transactions and a server side lua script. The
+   * script does the increment, the clear-ahead, the expire and the window sum
+   * in one EVALSHA instead of sending hundreds of commands per call. Requires
+   * redis 2.6 or later.
+   * 
+   * @param scripted
+   */
+  public void setScripted(boolean scripted) {
+    this.scripted = scripted;
+  }
+
+  public boolean isScripted() {
+    return scripted || serverTime || multiplexer != null || bucketLayout != BucketLayout.RING;
+  }
+
+  /***
+   * Takes the time of every call from the redis server (TIME inside the
+   * script) instead of the caller, so nodes with skewed clocks share the same
+   * current bucket and never clear buckets another node still writes. The time
+   * arguments of the calls are ignored then. Implies
+   * {@link #setScripted(boolean)}; requires redis 3.2 or later for the
+   * scripts that write.
+   * <p>
+   * Callers that need the same time on their side, e.g. for
+   * {@link #getBucket(long)}, can use a {@link RedisClock}.
+   * 
+   * @param serverTime
+   */
+  public void setServerTime(boolean serverTime) {
+    this.serverTime = serverTime;
+  }
+
+  public boolean isServerTime() {
+    return serverTime;
+  }
+
+  /***
+   * Sets how the buckets are stored, {@link BucketLayout#RING} by default.
+   * 
+   * @param bucketLayout
+   */
+  public void setBucketLayout(BucketLayout bucketLayout) {
+    this.bucketLayout = bucketLayout;
+  }
+
+  public BucketLayout getBucketLayout() {
+    return bucketLayout;
+  }
+
+  /***
+   * Sends the calls over the shared connections of the multiplexer instead of
+   * a pool connection per call; the pools only supply those connections.
+   * Implies {@link #setScripted(boolean)}. {@link #export(long, int)} still
+   * uses the pools. The multiplexer is not closed by this service.
+   * 
+   * @param multiplexer
+   *          - null to use the pools again
+   */
+  public void setMultiplexer(ConnectionMultiplexer multiplexer) {
+    this.multiplexer = multiplexer;
+  }
+
+  public ConnectionMultiplexer getMultiplexer() {
+    return multiplexer;
+  }
+
+  /***
+   * Sets the size of the sketches of {@link BucketLayout#SKETCH}: the count of
+   * a bucket exceeds the true count by at most epsilon times the hits of all
+   * subjects in that bucket (on the same shard), with probability 1 - delta.
+   * Every sketch takes 4 * ceil(e / epsilon) * ceil(ln(1 / delta)) bytes, there
+   * are tpsInterval / bucketInterval of them in one string per action and
+   * shard.
+   * Defaults to epsilon {@value #DEFAULT_SKETCH_EPSILON} and delta
+   * {@value #DEFAULT_SKETCH_DELTA}, about 54 KB per sketch. All nodes must use
+   * the same bounds.
+   * 
+   * @param epsilon
+   * @param delta
+   */
+  public void setSketchErrorBounds(double epsilon, double delta) {
+    this.sketch = new CountMinSketch(epsilon, delta);
+  }
+
+  /***
+   * Gets the size of one sketch of {@link BucketLayout#SKETCH} in bytes.
+   * 
+   * @return
+   */
+  public long getSketchSize() {
+    return sketch.getSize();
+  }
+
+  /***
+   * Sets the hook notified about every call, {@link RateLimitMetrics#NONE} by
+   * default.
+   * 
+   * @param metrics
+   */
+  public void setMetrics(RateLimitMetrics metrics) {
+    this.metrics = metrics == null ? RateLimitMetrics.NONE : metrics;
+  }
+
+  public RateLimitMetrics getMetrics() {
+    return metrics;
+  }
+
+  /***
+   * Sets the tracker offered every recorded hit, so the subjects with the most
+   * hits of the action can be listed with
+   * {@link TopSubjects#topSubjects(String, int)}. None by default.
+   * 
+   * @param topSubjects
+   */
+  public void setTopSubjects(TopSubjects topSubjects) {
+    this.topSubjects = topSubjects;
+  }
+
+  public TopSubjects getTopSubjects() {
+    return topSubjects;
+  }
+
+  /***
+   * Gets the subjects of the action with the most hits.
+   * 
+   * @see TopSubjects#topSubjects(String, int)
+   * @param k
+   *          - max number of subjects
+   * @return hits by subject, most hits first
+   */
+  public Map<String, Long> topSubjects(int k) {
+    if (topSubjects == null) {
+      throw new IllegalStateException("No TopSubjects set");
+    }
+    return topSubjects.topSubjects(action, k);
+  }
+
+  /***
+   * Sets the clock giving the time of the calls without a time argument,
+   * {@link Clock#systemUTC()} by default. See {@link RedisClock} for a clock
+   * shared by all nodes.
+   * 
+   * @param clock
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+
+  /***
+   * Sets how the subject keys are built, e.g. with hash tags for a
+   * {@link ShardedPool}.
+   * 
+   * @param subjectKeyGenerator
+   */
+  public void setSubjectKeyGenerator(SubjectKeyGenerator subjectKeyGenerator) {
+    this.subjectKeyGenerator = subjectKeyGenerator;
+    this.keyPrefix = subjectKeyGenerator.getKeyPrefix(namespace, action);
+  }
+
+  /***
+   * Sends the MULTI/EXEC transactions with the byte[] commands of jedis. The
+   * key prefix and the field names of all the buckets are encoded once, so a
+   * call allocates one key instead of a string and a byte array per bucket
+   * field. Stores exactly the same data as the default string commands.
+   * 
+   * @param binary
+   */
+  public void setBinary(boolean binary) {
+    this.binary = binary;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /***
+   * Adds a hit for every subject over one connection, in a single pipeline of
+   * scripts or a single MULTI/EXEC.
+   */
   public void addAll(long time, Set<String> subjects) {
-    for (String subject : subjects) {
-      add(time, subject);
+    final List<String> list = new ArrayList<String>(subjects);
+    final long[] times = new long[list.size()];
+    final int[] hits = new int[list.size()];
+    Arrays.fill(times, time);
+    Arrays.fill(hits, 1);
+    batch(times, list, hits, false);
+  }
+
+  /***
+   * Counts the windows of many subjects over one connection, in a single
+   * pipeline of scripts or a single MULTI/EXEC.
+   * 
+   * @param time
+   * @param subjects
+   * @return counters by subject, in the order of the subjects
+   */
+  public Map<String, CountResult> countAll(long time, Collection<String> subjects) {
+    final List<String> list = new ArrayList<String>(new LinkedHashSet<String>(subjects));
+    final long[] times = new long[list.size()];
+    Arrays.fill(times, time);
+    final List<CountResult> results = batch(times, list, new int[list.size()], true);
+    final Map<String, CountResult> map = new LinkedHashMap<String, CountResult>();
+    for (int i = 0; i < list.size(); i++) {
+      map.put(list.get(i), results.get(i));
+    }
+    return map;
+  }
+
+  public Map<String, Tps> tpsAll(Collection<String> subjects) {
+    final Map<String, Tps> map = new LinkedHashMap<String, Tps>();
+    for (Map.Entry<String, CountResult> e : countAll(clock.millis(), subjects).entrySet()) {
+      map.put(e.getKey(), tps(e.getValue()));
     }
+    return map;
   }
 
   public int getBucket(long time) {
     return (int) (Math.floor((time / 1000) % bucketSpan) / bucketInterval);
   }
 
+  /***
+   * Gets the absolute bucket index used by {@link BucketLayout#EPOCH},
+   * {@link BucketLayout#PACKED} and {@link BucketLayout#SKETCH}.
+   * 
+   * @param time
+   * @return
+   */
+  public long getBucketIndex(long time) {
+    return time / 1000 / bucketInterval;
+  }
+
   public void add(long time, String subject) {
+    add(time, subject, 1);
+  }
+
+  /***
+   * Records several hits at once in the bucket of the given time.
+   * 
+   * @param time
+   * @param subject
+   * @param hits
+   */
+  public void add(long time, String subject, int hits) {
+    track(subject, hits);
+    if (isScripted()) {
+      evalCount(ADD, time, subject, hits);
+      return;
+    }
+    final long start = System.nanoTime();
     final int bucket = getBucket(time);
-    final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
-    final Jedis j = pool.getResource();
+    final JedisPool pool = pool(subject);
+    final Jedis j = getResource(pool);
     try {
       Transaction m = j.multi();
+      if (binary) {
+        increment(m, binaryKey(subject), bucket, 0, hits);
+      } else {
+        increment(m, subjectKey(subject), bucket, 0, hits);
+      }
+
+      exec(m, ADD);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(ADD, System.nanoTime() - start, bucketToClear + 4);
+    }
+  }
 
-      // Increment the current bucket
-      m.hincrBy(subjectKey, s(bucket), 1);
+  public CountResult count(long time, String subject) {
+    if (isScripted()) {
+      return evalCount(COUNT, time, subject, 0);
+    }
+    return countResult(readWindow(COUNT, time, subject), 0);
+  }
 
-      // Clear the buckets ahead
-      for (int i = 1; i < bucketToClear + 1; i++) {
-        m.hdel(subjectKey, s((bucket + i) % this.bucketCount));
+  /***
+   * Reads every bucket of the tps window in the same single round trip as
+   * {@link #count(long, String)}.
+   * 
+   * @param time
+   * @param subject
+   * @return hits per bucket, oldest first, with their statistics
+   */
+  public BucketSeries countSeries(long time, String subject) {
+    final int[] counts = new int[bucketsUsedForTps];
+    if (isScripted()) {
+      final long start = System.nanoTime();
+      final String subjectKey = subjectKey(subject);
+      final LuaScript script = script(RING_SERIES_SCRIPT, EPOCH_SERIES_SCRIPT, PACKED_SERIES_SCRIPT, SKETCH_SERIES_SCRIPT);
+      final List<Object> r;
+      try {
+        r = list(eval(shards.getPool(subjectKey), script, scriptKey(subjectKey), scriptArgs(time, subject)));
+      } finally {
+        metrics.record(COUNT_SERIES, System.nanoTime() - start, 1);
+      }
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = i(r.get(i));
       }
+      return new BucketSeries(counts);
+    }
+    final List<Object> result = readWindow(COUNT_SERIES, time, subject);
+    // the window is read from the current bucket backwards
+    for (int i = 0; i < counts.length; i++) {
+      final Object object = result.get(i);
+      counts[counts.length - 1 - i] = object == null ? 0 : i(object);
+    }
+    return new BucketSeries(counts);
+  }
 
-      // Renew the key TTL
-      m.expire(subjectKey, this.subjectExpiry);
+  /***
+   * Reads the tps windows of all the subjects, e.g. for billing, without
+   * writing anything: the buckets ahead are not cleared and keys of other
+   * layouts are not converted. Every shard is walked with SCAN inside a lua
+   * script, one call of at most count keys per batch, so the time redis is
+   * blocked is bounded by the count; the next batch is only fetched when the
+   * iterator reaches it. Requires redis 2.8 or later.
+   * <p>
+   * All windows end with the bucket of the given time (of the redis server at
+   * every batch with {@link #setServerTime(boolean)}). Like SCAN, a subject
+   * may be returned twice and subjects created during the export may be
+   * missed. {@link BucketLayout#SKETCH} keeps no subject keys and cannot be
+   * exported.
+   * 
+   * @param time
+   * @param count
+   *          - keys scanned per call, e.g. 100
+   * @return windows of the subjects with keys, in no particular order
+   */
+  public Iterator<SubjectWindow> export(long time, int count) {
+    if (bucketLayout == BucketLayout.SKETCH) {
+      throw new UnsupportedOperationException("The sketch layout has no subject keys to export");
+    }
+    return new WindowExport(this, time, count);
+  }
 
-      m.exec();
-      // TODO handle m.exec() results
+  /***
+   * Reads one batch of {@link #export(long, int)} from the shard.
+   * 
+   * @return the next cursor, "0" when the shard is done
+   */
+  String exportBatch(JedisPool pool, String cursor, long time, int count, List<SubjectWindow> windows) {
+    final long start = System.nanoTime();
+    final String prefix = getKeyPrefix();
+    final List<String> args = scriptArgs(time, null);
+    args.add(cursor);
+    args.add(getKeyPattern());
+    args.add(s(count));
+    // lua compares bytes
+    args.add(s(keyPrefix.length));
+    final Jedis j = getResource(pool);
+    final List<Object> r;
+    try {
+      r = list(EXPORT_SCRIPT.eval(j, Collections.<String> emptyList(), args));
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
     } finally {
       pool.returnResource(j);
+      metrics.record(EXPORT, System.nanoTime() - start, 1);
     }
+    final int suffix = subjectKeyGenerator.isHashTags() ? 1 : 0;
+    for (int i = 1; i < r.size(); i += bucketsUsedForTps + 1) {
+      final String key = (String) r.get(i);
+      final int[] counts = new int[bucketsUsedForTps];
+      for (int b = 0; b < counts.length; b++) {
+        counts[b] = i(r.get(i + 1 + b));
+      }
+      windows.add(new SubjectWindow(key.substring(prefix.length(), key.length() - suffix), new BucketSeries(counts)));
+    }
+    return (String) r.get(0);
   }
 
-  public CountResult count(long time, String subject) {
-    final Jedis j = pool.getResource();
+  /***
+   * Adds the hit and counts the tps window (including that hit) in one round
+   * trip.
+   * 
+   * @param time
+   * @param subject
+   * @return counters after the hit was added
+   */
+  public CountResult addAndCount(long time, String subject) {
+    track(subject, 1);
+    if (isScripted()) {
+      return evalCount(ADD_AND_COUNT, time, subject, 1);
+    }
+    final long start = System.nanoTime();
+    final int bucket = getBucket(time);
+    final JedisPool pool = pool(subject);
+    final Jedis j = getResource(pool);
     try {
       final Transaction m = j.multi();
-      final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
+      if (binary) {
+        final byte[] subjectKey = binaryKey(subject);
+        increment(m, subjectKey, bucket, 0, 1);
+        window(m, subjectKey, bucket);
+      } else {
+        final String subjectKey = subjectKey(subject);
+        increment(m, subjectKey, bucket, 0, 1);
+        window(m, subjectKey, bucket);
+      }
 
-      final int currentBucket = getBucket(time);
-      int bucket = currentBucket;
-      int count = (int) Math.floor(tpsInterval / bucketInterval);
-      while (count-- != 0) {
-        m.hget(subjectKey, s((bucket + bucketCount) % bucketCount));
-        bucket--;
-      }
-
-      // Clear the buckets ahead
-      for (int i = 1; i < bucketToClear + 1; i++) {
-        m.hdel(subjectKey, s((currentBucket + i) % this.bucketCount));
-      }
-      List<Object> result = m.exec();
-      int sum = 0;
-      int numberOfEmtpyBuckets = 0;
-      int maxCount = 0;
-      int latestBucketCount = 0;
-      int i = 0;
-      for (Object object : result) {
-
-        if (i++ < Math.floor(tpsInterval / bucketInterval)) {
-          if (object != null) {
-            int c = i(object);
-            sum += c;
-            if (c == 0) {
-              numberOfEmtpyBuckets++;
-            }
-            if (c > maxCount) {
-              maxCount = c;
-            }
-            if (i == 1) {
-              latestBucketCount = c;
-            }
+      // hincrBy, hdels and expire come before the window
+      return countResult(exec(m, ADD_AND_COUNT), bucketToClear + 2);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(ADD_AND_COUNT, System.nanoTime() - start, bucketToClear + bucketsUsedForTps + 4);
+    }
+  }
+
+  public Tps tps(String subject) {
+    return tps(count(clock.millis(), subject));
+  }
+
+  /***
+   * Gets only the rate selected by the rule, at the time of the clock, without
+   * building a {@link Tps}. This fast path needs {@link #setScripted(boolean)}:
+   * the script returns the four totals of the window and nothing else is
+   * allocated. Without a script it is the same as tps(subject).get(rule),
+   * since the MULTI/EXEC ring has to clear the buckets ahead on every read.
+   * 
+   * @param subject
+   * @param rule
+   * @return the same value as tps(subject).get(rule)
+   */
+  public double tps(String subject, ThrottleRule rule) {
+    if (!isScripted()) {
+      return tps(subject).get(rule);
+    }
+    final List<Object> r = evalCountReply(TPS, clock.millis(), subject, 0);
+    switch (rule) {
+    case BY_NO_EMPTY_BUCKETS_TPS:
+      return Tps.rate(rule, i(r.get(0)), i(r.get(1)), 0, 0, tpsInterval, bucketInterval);
+    case BY_PEAK_TPS:
+      return Tps.rate(rule, 0, 0, i(r.get(2)), 0, tpsInterval, bucketInterval);
+    case BY_LATEST_BUCKET_TPS:
+      return Tps.rate(rule, 0, 0, 0, i(r.get(3)), tpsInterval, bucketInterval);
+    default:
+    case BY_AVERAGE_TPS:
+      return Tps.rate(rule, i(r.get(0)), 0, 0, 0, tpsInterval, bucketInterval);
+    }
+  }
+
+  /***
+   * @see #tryAcquire(long, String, double, ThrottleRule)
+   */
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(clock.millis(), subject, limit, rule);
+  }
+
+  /***
+   * Checks the limit and records the hit atomically in one round trip. The hit
+   * is recorded only when the rate selected by the rule, including this hit,
+   * does not exceed the limit. Always executed as a lua script, regardless of
+   * {@link #setScripted(boolean)}.
+   * 
+   * @param time
+   * @param subject
+   * @param limit
+   *          - allowed tps
+   * @param rule
+   *          - rate compared against the limit
+   * @return
+   */
+  public AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule) {
+    final long start = System.nanoTime();
+    final String subjectKey = subjectKey(subject);
+    final long bucketMillis = bucketInterval * 1000l;
+    final List<String> args = scriptArgs(time, subject);
+    args.add(s(bucketInterval));
+    args.add(s(tpsInterval));
+    args.add(String.valueOf(bucketMillis - time % bucketMillis));
+    args.add(rule.name());
+    args.add(String.valueOf(limit));
+    final LuaScript script = script(RING_ACQUIRE_SCRIPT, EPOCH_ACQUIRE_SCRIPT, PACKED_ACQUIRE_SCRIPT, SKETCH_ACQUIRE_SCRIPT);
+    final List<Object> r;
+    try {
+      r = list(eval(shards.getPool(subjectKey), script, scriptKey(subjectKey), args));
+    } finally {
+      metrics.record(TRY_ACQUIRE, System.nanoTime() - start, 1);
+    }
+    final CountResult cr = new CountResult(i(r.get(2)), i(r.get(3)), i(r.get(4)), i(r.get(5)));
+    final boolean allowed = i(r.get(0)) == 1;
+    metrics.decision(action, allowed);
+    if (allowed) {
+      track(subject, 1);
+    }
+    return new AcquireResult(allowed, Long.parseLong((String) r.get(1)), tps(cr));
+  }
+
+  private void track(String subject, int hits) {
+    if (topSubjects != null) {
+      topSubjects.offer(action, subject, hits);
+    }
+  }
+
+  private Tps tps(CountResult cr) {
+    return Tps.calculate(cr, tpsInterval, bucketInterval);
+  }
+
+  /***
+   * Adds hits for many subjects and optionally counts their windows over one
+   * connection: a single pipeline of scripts or a single MULTI/EXEC.
+   * 
+   * @param times
+   *          - time of the hits of each subject
+   * @param subjects
+   * @param hits
+   *          - hits to add for each subject, 0 to only count
+   * @param withCounts
+   *          - false if the windows are not needed, the results are then null
+   * @return counters of each subject, in order
+   */
+  List<CountResult> batch(long[] times, List<String> subjects, int[] hits, boolean withCounts) {
+    return countResults(batch(times, null, subjects, hits, withCounts, false));
+  }
+
+  /***
+   * Same as {@link #batch(long[], List, int[], boolean)}, but a failure fails
+   * only the subjects it concerns: a shard that cannot be reached fails the
+   * subjects stored on it, a script error the subject of the script.
+   *
+   * @param times
+   * @param subjects
+   * @param hits
+   * @param withCounts
+   * @return counters of each subject, or the exception that failed it, in
+   *         order
+   */
+  List<Object> batchEach(long[] times, List<String> subjects, int[] hits, boolean withCounts) {
+    return batch(times, null, subjects, hits, withCounts, true);
+  }
+
+  /***
+   * Adds hits that happened before now, without clearing the buckets ahead of
+   * them: with {@link BucketLayout#RING} a past bucket written like a current
+   * one would clear the newer buckets, including the current bucket other
+   * nodes write to. Every hit goes into the bucket of its time while the
+   * buckets ahead of now are cleared, hits older than the tps window at now
+   * are dropped.
+   * <p>
+   * With {@link #setServerTime(boolean)} the buckets are those of the redis
+   * time and the age of the hits is measured against now, so now should come
+   * from a {@link RedisClock}.
+   *
+   * @param now
+   *          - current time, the windows are read at it
+   * @param times
+   *          - time of the hits of each subject
+   * @param subjects
+   * @param hits
+   * @param withCounts
+   *          - false if the windows are not needed, the results are then null
+   * @return counters of each subject at now, in order
+   */
+  List<CountResult> backfill(long now, long[] times, List<String> subjects, int[] hits, boolean withCounts) {
+    final long index = getBucketIndex(now);
+    final long[] nows = new long[times.length];
+    final int[] late = new int[times.length];
+    final int[] h = hits.clone();
+    for (int i = 0; i < times.length; i++) {
+      nows[i] = now;
+      late[i] = (int) Math.min(Math.max(index - getBucketIndex(times[i]), 0), bucketsUsedForTps);
+      if (late[i] == bucketsUsedForTps) {
+        h[i] = 0;
+      }
+    }
+    return countResults(batch(nows, late, subjects, h, withCounts, false));
+  }
+
+  /***
+   * @param late
+   *          - for each subject, buckets before the bucket of its time the
+   *          hits belong to, null if all hits are in the bucket of their time
+   * @param each
+   *          - true to return the exceptions of the failed subjects in place of
+   *          their counters instead of throwing the first one
+   */
+  private List<Object> batch(final long[] times, final int[] late, final List<String> subjects, final int[] hits, final boolean withCounts,
+      final boolean each) {
+    if (subjects.isEmpty()) {
+      return new ArrayList<Object>();
+    }
+    for (int i = 0; i < hits.length; i++) {
+      if (hits[i] > 0) {
+        track(subjects.get(i), hits[i]);
+      }
+    }
+    return shards.forEachShard(subjects.size(), new ShardedPool.ShardBatch<Object>() {
+
+      @Override
+      String key(int index) {
+        return subjectKey(subjects.get(index));
+      }
+
+      @Override
+      List<Object> execute(JedisPool pool, List<Integer> indexes) {
+        try {
+          return batch(pool, indexes, times, late, subjects, hits, withCounts, each);
+        } catch (RuntimeException ex) {
+          if (!each) {
+            throw ex;
+          }
+          return new ArrayList<Object>(Collections.nCopies(indexes.size(), ex));
+        }
+      }
+    });
+  }
+
+  private static List<CountResult> countResults(List<Object> results) {
+    final List<CountResult> counts = new ArrayList<CountResult>(results.size());
+    for (Object result : results) {
+      counts.add((CountResult) result);
+    }
+    return counts;
+  }
+
+  /***
+   * Part of {@link #batch(long[], int[], List, int[], boolean, boolean)} stored
+   * on one shard.
+   */
+  private List<Object> batch(JedisPool pool, List<Integer> indexes, long[] times, int[] late, List<String> subjects, int[] hits, boolean withCounts,
+      boolean each) {
+    final int size = indexes.size();
+    final List<Object> results = new ArrayList<Object>(size);
+    final long start = System.nanoTime();
+    if (isScripted()) {
+      final List<String> keys = new ArrayList<String>(size);
+      final List<List<String>> args = new ArrayList<List<String>>(size);
+      for (int i : indexes) {
+        keys.add(scriptKey(subjectKey(subjects.get(i))));
+        final List<String> a = scriptArgs(times[i], subjects.get(i));
+        a.add(s(hits[i]));
+        if (late != null) {
+          a.add(s(late[i]));
+        }
+        args.add(a);
+      }
+      final LuaScript script = script(RING_COUNT_SCRIPT, EPOCH_COUNT_SCRIPT, PACKED_COUNT_SCRIPT, SKETCH_COUNT_SCRIPT);
+      try {
+        for (Object reply : each ? evalEach(pool, script, keys, args) : evalAll(pool, script, keys, args)) {
+          if (reply instanceof JedisException) {
+            results.add(reply);
+          } else {
+            results.add(withCounts ? scriptResult(reply) : null);
+          }
+        }
+        return results;
+      } finally {
+        metrics.record(BATCH, System.nanoTime() - start, size);
+      }
+    }
+
+    int commands = size;
+    final Jedis j = getResource(pool);
+    try {
+      final Transaction m = j.multi();
+      final int[] offsets = new int[size];
+      int offset = 0;
+      for (int k = 0; k < size; k++) {
+        final int i = indexes.get(k);
+        final int bucket = getBucket(times[i]);
+        final byte[] binaryKey = binary ? binaryKey(subjects.get(i)) : null;
+        final String subjectKey = binary ? null : subjectKey(subjects.get(i));
+        if (hits[i] > 0) {
+          if (binary) {
+            increment(m, binaryKey, bucket, late == null ? 0 : late[i], hits[i]);
+          } else {
+            increment(m, subjectKey, bucket, late == null ? 0 : late[i], hits[i]);
+          }
+          offset += bucketToClear + 2;
+        } else if (withCounts) {
+          if (binary) {
+            clearAhead(m, binaryKey, bucket);
+          } else {
+            clearAhead(m, subjectKey, bucket);
+          }
+          offset += bucketToClear;
+        }
+        offsets[k] = offset;
+        if (withCounts) {
+          if (binary) {
+            window(m, binaryKey, bucket);
           } else {
-            numberOfEmtpyBuckets++;
+            window(m, subjectKey, bucket);
           }
+          offset += bucketsUsedForTps;
         }
       }
-      return new CountResult(sum, numberOfEmtpyBuckets, maxCount, latestBucketCount);
+      commands = offset + 2;
+      final List<Object> result = exec(m, BATCH);
+      for (int i = 0; i < size; i++) {
+        results.add(withCounts ? countResult(result, offsets[i]) : null);
+      }
+      return results;
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
     } finally {
       pool.returnResource(j);
+      metrics.record(BATCH, System.nanoTime() - start, commands);
     }
   }
 
-  public Tps tps(String subject) {
-    CountResult cr = count(new Date().getTime(), subject);
-    double tps = (double) cr.getCount() / (double) tpsInterval;
-    double tpsNoEmptyBuckets = 0;
+  int getBucketInterval() {
+    return bucketInterval;
+  }
+
+  int getTpsInterval() {
+    return tpsInterval;
+  }
+
+  ShardedPool getShards() {
+    return shards;
+  }
+
+  /***
+   * Gets the common prefix of the subject keys.
+   */
+  String getKeyPrefix() {
+    return SafeEncoder.encode(keyPrefix);
+  }
+
+  /***
+   * Gets the glob pattern matching every subject key.
+   */
+  String getKeyPattern() {
+    final String prefix = getKeyPrefix();
+    final StringBuilder sb = new StringBuilder(prefix.length() + 1);
+    for (int i = 0; i < prefix.length(); i++) {
+      final char c = prefix.charAt(i);
+      if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.append('*').toString();
+  }
+
+  /***
+   * Reads the latest buckets of the window and clears the buckets ahead in one
+   * MULTI/EXEC.
+   */
+  private List<Object> readWindow(String operation, long time, String subject) {
+    final long start = System.nanoTime();
+    final JedisPool pool = pool(subject);
+    final Jedis j = getResource(pool);
+    try {
+      final Transaction m = j.multi();
+      final int currentBucket = getBucket(time);
+      if (binary) {
+        final byte[] subjectKey = binaryKey(subject);
+        window(m, subjectKey, currentBucket);
 
-    double factor = (double) (tpsInterval - cr.getNumberOfEmptyBuckets() * this.bucketInterval);
-    if (factor != 0) {
-      tpsNoEmptyBuckets = cr.getCount() / factor;
+        // Clear the buckets ahead
+        clearAhead(m, subjectKey, currentBucket);
+      } else {
+        final String subjectKey = subjectKey(subject);
+        window(m, subjectKey, currentBucket);
+
+        // Clear the buckets ahead
+        clearAhead(m, subjectKey, currentBucket);
+      }
+      return exec(m, operation);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(operation, System.nanoTime() - start, bucketsUsedForTps + bucketToClear + 2);
+    }
+  }
+
+  private JedisPool pool(String subject) {
+    return shards.isSharded() ? shards.getPool(subjectKey(subject)) : shards.getPools().get(0);
+  }
+
+  private Jedis getResource(JedisPool pool) {
+    final long start = System.nanoTime();
+    final Jedis j = pool.getResource();
+    metrics.poolWait(System.nanoTime() - start);
+    return j;
+  }
+
+  /***
+   * Executes the transaction, a discarded transaction or a failed command is
+   * reported to the metrics and thrown.
+   */
+  private List<Object> exec(Transaction m, String operation) {
+    final List<Object> result;
+    try {
+      result = m.exec();
+    } catch (RuntimeException ex) {
+      metrics.execFailed(operation);
+      throw ex;
+    }
+    if (result == null) {
+      metrics.execFailed(operation);
+      throw new JedisException("Transaction discarded");
     }
+    for (Object o : result) {
+      if (o instanceof JedisDataException) {
+        metrics.execFailed(operation);
+        throw (JedisDataException) o;
+      }
+    }
+    return result;
+  }
 
-    double peakTps = ((double) cr.getPeakCount()) / ((double) this.bucketInterval);
-    double latestBucketTps = ((double) cr.getLatestBucketCount()) / ((double) this.bucketInterval);
+  String subjectKey(String subject) {
+    return subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
+  }
 
-    return new Tps(tps, tpsNoEmptyBuckets, peakTps, latestBucketTps, cr);
+  private byte[] binaryKey(String subject) {
+    return subjectKeyGenerator.getKeyForSubject(keyPrefix, subject);
+  }
+
+  /***
+   * Adds the hits to the bucket late buckets before the current one and clears
+   * the buckets ahead of the current one.
+   */
+  private void increment(Transaction m, String subjectKey, int bucket, int late, int hits) {
+    // Increment the bucket of the hits
+    m.hincrBy(subjectKey, s((bucket - late + bucketCount) % bucketCount), hits);
+
+    // Clear the buckets ahead
+    clearAhead(m, subjectKey, bucket);
+
+    // Renew the key TTL
+    m.expire(subjectKey, this.subjectExpiry);
+  }
+
+  private void clearAhead(Transaction m, String subjectKey, int bucket) {
+    for (int i = 1; i < bucketToClear + 1; i++) {
+      m.hdel(subjectKey, s((bucket + i) % this.bucketCount));
+    }
+  }
+
+  private void window(Transaction m, String subjectKey, int currentBucket) {
+    int bucket = currentBucket;
+    int count = bucketsUsedForTps;
+    while (count-- != 0) {
+      m.hget(subjectKey, s((bucket + bucketCount) % bucketCount));
+      bucket--;
+    }
+  }
+
+  private void increment(Transaction m, byte[] subjectKey, int bucket, int late, int hits) {
+    m.hincrBy(subjectKey, fields[(bucket - late + bucketCount) % bucketCount], hits);
+    clearAhead(m, subjectKey, bucket);
+    m.expire(subjectKey, this.subjectExpiry);
+  }
+
+  private void clearAhead(Transaction m, byte[] subjectKey, int bucket) {
+    for (int i = 1; i < bucketToClear + 1; i++) {
+      m.hdel(subjectKey, fields[(bucket + i) % this.bucketCount]);
+    }
+  }
+
+  private void window(Transaction m, byte[] subjectKey, int currentBucket) {
+    int bucket = currentBucket;
+    int count = bucketsUsedForTps;
+    while (count-- != 0) {
+      m.hget(subjectKey, fields[(bucket + bucketCount) % bucketCount]);
+      bucket--;
+    }
+  }
+
+  private CountResult countResult(List<Object> result, int offset) {
+    int sum = 0;
+    int numberOfEmtpyBuckets = 0;
+    int maxCount = 0;
+    int latestBucketCount = 0;
+    final int buckets = Math.min(bucketsUsedForTps, result.size() - offset);
+    for (int i = 0; i < buckets; i++) {
+      final Object object = result.get(offset + i);
+      if (object != null) {
+        int c = i(object);
+        sum += c;
+        if (c == 0) {
+          numberOfEmtpyBuckets++;
+        }
+        if (c > maxCount) {
+          maxCount = c;
+        }
+        if (i == 0) {
+          latestBucketCount = c;
+        }
+      } else {
+        numberOfEmtpyBuckets++;
+      }
+    }
+    return new CountResult(sum, numberOfEmtpyBuckets, maxCount, latestBucketCount);
+  }
+
+  private CountResult evalCount(String operation, long time, String subject, int increment) {
+    return scriptResult(evalCountReply(operation, time, subject, increment));
+  }
+
+  private List<Object> evalCountReply(String operation, long time, String subject, int increment) {
+    final long start = System.nanoTime();
+    final String subjectKey = subjectKey(subject);
+    final List<String> args = scriptArgs(time, subject);
+    args.add(s(increment));
+    final LuaScript script = script(RING_COUNT_SCRIPT, EPOCH_COUNT_SCRIPT, PACKED_COUNT_SCRIPT, SKETCH_COUNT_SCRIPT);
+    try {
+      return list(eval(shards.getPool(subjectKey), script, scriptKey(subjectKey), args));
+    } finally {
+      metrics.record(operation, System.nanoTime() - start, 1);
+    }
+  }
+
+  /***
+   * Executes the script once per key in one pipeline, on a connection of the
+   * pool or on the shared connections of the multiplexer if set.
+   */
+  private List<Object> evalAll(JedisPool pool, LuaScript script, List<String> keys, List<List<String>> args) {
+    if (multiplexer != null) {
+      return multiplexer.evalAll(pool, script, keys, args);
+    }
+    final Jedis j = getResource(pool);
+    try {
+      return script.evalAll(j, keys, args);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  /***
+   * Same as {@link #evalAll(JedisPool, LuaScript, List, List)}, but the errors
+   * of single calls are returned in place of their replies.
+   */
+  private List<Object> evalEach(JedisPool pool, LuaScript script, List<String> keys, List<List<String>> args) {
+    if (multiplexer != null) {
+      return multiplexer.evalEach(pool, script, keys, args);
+    }
+    final Jedis j = getResource(pool);
+    try {
+      return script.evalEach(j, keys, args);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  /***
+   * Executes the script on a connection of the pool, or on a shared connection
+   * of the multiplexer if set.
+   */
+  private Object eval(JedisPool pool, LuaScript script, String key, List<String> args) {
+    if (multiplexer != null) {
+      return multiplexer.eval(pool, script, key, args);
+    }
+    final Jedis j = getResource(pool);
+    try {
+      return script.eval(j, Collections.singletonList(key), args);
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  /***
+   * Gets the script of the bucket layout.
+   */
+  private LuaScript script(LuaScript ring, LuaScript epoch, LuaScript packed, LuaScript sketch) {
+    switch (bucketLayout) {
+    case EPOCH:
+      return epoch;
+    case PACKED:
+      return packed;
+    case SKETCH:
+      return sketch;
+    default:
+    case RING:
+      return ring;
+    }
+  }
+
+  /***
+   * Gets the key passed to the scripts: the subject key, or the string holding
+   * the sketches of the action for {@link BucketLayout#SKETCH}. The shard is
+   * always chosen by the subject key, so every shard holds its own sketches.
+   */
+  private String scriptKey(String subjectKey) {
+    if (bucketLayout == BucketLayout.SKETCH) {
+      return subjectKeyGenerator.getKeyForSubject(namespace, action, SKETCH_SUBJECT);
+    }
+    return subjectKey;
+  }
+
+  /***
+   * Arguments expected by layout.lua. The epoch, packed and sketch layouts
+   * keep the key only for the tps window; the epoch layout deletes, on write,
+   * the fields that could outlive it.
+   */
+  private List<String> scriptArgs(long time, String subject) {
+    final List<String> args = new ArrayList<String>(12);
+    args.add(serverTime ? "" : s(getBucket(time)));
+    args.add(s(bucketCount));
+    if (bucketLayout != BucketLayout.RING) {
+      final int expiry = tpsInterval + bucketInterval;
+      args.add(bucketLayout == BucketLayout.SKETCH ? sketch.offsetList(subject) : s(expiry / bucketInterval + 1));
+      args.add(s(bucketsUsedForTps));
+      args.add(s(expiry));
+    } else {
+      args.add(s(bucketToClear));
+      args.add(s(bucketsUsedForTps));
+      args.add(s(subjectExpiry));
+    }
+    // the script computes the buckets from the server time and the interval
+    args.add(serverTime ? s(bucketInterval) : String.valueOf(getBucketIndex(time)));
+    return args;
+  }
+
+  private CountResult scriptResult(Object reply) {
+    final List<Object> r = list(reply);
+    return new CountResult(i(r.get(0)), i(r.get(1)), i(r.get(2)), i(r.get(3)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Object> list(Object reply) {
+    return (List<Object>) reply;
   }
 
   private int i(Object i) {
+    if (i instanceof byte[]) {
+      return parseInt((byte[]) i);
+    }
     return Integer.parseInt((String) i);
   }
 
+  /***
+   * Parses the decimal reply without decoding it to a string first.
+   */
+  private static int parseInt(byte[] bytes) {
+    if (bytes.length == 0) {
+      throw new NumberFormatException("Empty bucket value");
+    }
+    final boolean negative = bytes[0] == '-';
+    int value = 0;
+    for (int i = negative ? 1 : 0; i < bytes.length; i++) {
+      final int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Invalid bucket value " + SafeEncoder.encode(bytes));
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
   private String s(int i) {
-    return String.valueOf(i);
+    return i >= 0 && i < fieldNames.length ? fieldNames[i] : String.valueOf(i);
   }
 }
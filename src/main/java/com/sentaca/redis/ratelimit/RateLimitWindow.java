@@ -0,0 +1,84 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * One limit of a {@link MultiWindowRateLimitService}: at most limit hits in the
+ * last interval seconds, counted in buckets of bucketInterval seconds.
+ *
+ * @author hamster
+ *
+ */
+public class RateLimitWindow {
+
+  private static final int DEFAULT_MAX_BUCKETS = 60;
+
+  private final int limit;
+  private final int interval;
+  private final int bucketInterval;
+
+  /***
+   *
+   * @param limit
+   *          - hits allowed in the window
+   * @param interval
+   *          - in seconds, length of the window
+   * @param bucketInterval
+   *          - in seconds, must divide the interval. Windows with the same
+   *          bucketInterval share their buckets
+   */
+  public RateLimitWindow(int limit, int interval, int bucketInterval) {
+    if (limit < 1 || interval < 1 || bucketInterval < 1 || interval % bucketInterval != 0) {
+      throw new IllegalArgumentException("Invalid window " + limit + " hits in " + interval + "s by " + bucketInterval + "s buckets");
+    }
+    this.limit = limit;
+    this.interval = interval;
+    this.bucketInterval = bucketInterval;
+  }
+
+  /***
+   * Uses the shortest bucket interval that keeps the window within
+   * {@value #DEFAULT_MAX_BUCKETS} buckets, e.g. 1 second buckets for a minute
+   * and 1 minute buckets for an hour.
+   *
+   * @see #RateLimitWindow(int, int, int)
+   * @param limit
+   * @param interval
+   */
+  public RateLimitWindow(int limit, int interval) {
+    this(limit, interval, defaultBucketInterval(interval));
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getInterval() {
+    return interval;
+  }
+
+  public int getBucketInterval() {
+    return bucketInterval;
+  }
+
+  /***
+   * Gets the number of buckets of the window.
+   *
+   * @return
+   */
+  public int getBuckets() {
+    return interval / bucketInterval;
+  }
+
+  @Override
+  public String toString() {
+    return limit + "/" + interval + "s";
+  }
+
+  private static int defaultBucketInterval(int interval) {
+    for (int bucketInterval = Math.max(1, interval / DEFAULT_MAX_BUCKETS); bucketInterval < interval; bucketInterval++) {
+      if (interval % bucketInterval == 0 && interval / bucketInterval <= DEFAULT_MAX_BUCKETS) {
+        return bucketInterval;
+      }
+    }
+    return Math.max(1, interval);
+  }
+}
@@ -0,0 +1,94 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/***
+ * Sliding window rate limiter. Hits are counted in buckets of bucketInterval
+ * seconds and rates are calculated over the last tpsInterval seconds.
+ * 
+ * @see RateLimitService
+ * @see LocalRateLimitService
+ * @see TokenBucketRateLimitService
+ */
+public interface RateLimiter {
+
+  /***
+   * Records a hit for every subject.
+   * 
+   * @param time
+   * @param subjects
+   */
+  void addAll(long time, Set<String> subjects);
+
+  /***
+   * Records a hit for the subject.
+   * 
+   * @param time
+   *          - time of the hit in milliseconds
+   * @param subject
+   */
+  void add(long time, String subject);
+
+  /***
+   * Counts the hits in the tps window ending with the bucket of the given time.
+   * 
+   * @param time
+   * @param subject
+   * @return
+   */
+  CountResult count(long time, String subject);
+
+  /***
+   * Records a hit and counts the tps window including that hit.
+   * 
+   * @param time
+   * @param subject
+   * @return
+   */
+  CountResult addAndCount(long time, String subject);
+
+  /***
+   * Counts the windows of many subjects.
+   * 
+   * @param time
+   * @param subjects
+   * @return counters by subject, in the order of the subjects
+   */
+  Map<String, CountResult> countAll(long time, Collection<String> subjects);
+
+  /***
+   * Gets the current rates of many subjects.
+   * 
+   * @param subjects
+   * @return rates by subject, in the order of the subjects
+   */
+  Map<String, Tps> tpsAll(Collection<String> subjects);
+
+  /***
+   * Gets the current rates of the subject.
+   * 
+   * @param subject
+   * @return
+   */
+  Tps tps(String subject);
+
+  /***
+   * @see #tryAcquire(long, String, double, ThrottleRule)
+   */
+  AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule);
+
+  /***
+   * Records the hit only if the rate selected by the rule, including this hit,
+   * does not exceed the limit.
+   * 
+   * @param time
+   * @param subject
+   * @param limit
+   *          - allowed tps
+   * @param rule
+   * @return
+   */
+  AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule);
+}
@@ -0,0 +1,134 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/***
+ * Clock following the redis server time, so that every node using it puts a
+ * hit in the same bucket whatever the skew of the local clocks. The offset
+ * between the local clock and the redis TIME is measured on the first call and
+ * refreshed every refreshInterval by the calling thread, the other calls only
+ * add the offset to the local clock. When redis cannot be reached the last
+ * offset is kept.
+ * <p>
+ * For {@link ShardedPool} use any one of the pools, the servers are expected to
+ * be synchronized among themselves.
+ *
+ * @see RateLimitService#setClock(Clock)
+ * @see RateLimitService#setServerTime(boolean)
+ * @author hamster
+ *
+ */
+public class RedisClock extends Clock {
+
+  private static final LuaScript TIME_SCRIPT = new LuaScript("time.lua");
+  private static final long DEFAULT_REFRESH_INTERVAL = 60000;
+
+  private final JedisPool pool;
+  private final long refreshInterval;
+  private final ZoneId zone;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile long offset;
+  // 0 measures the offset on the first call
+  private volatile long refreshedAt;
+
+  /***
+   *
+   * @param pool
+   *          - redis giving the time
+   * @param refreshInterval
+   *          - in milliseconds, how often the offset is measured again
+   */
+  public RedisClock(JedisPool pool, long refreshInterval) {
+    this(pool, refreshInterval, ZoneOffset.UTC);
+  }
+
+  /***
+   * @see #RedisClock(JedisPool, long)
+   * @param pool
+   */
+  public RedisClock(JedisPool pool) {
+    this(pool, DEFAULT_REFRESH_INTERVAL);
+  }
+
+  private RedisClock(JedisPool pool, long refreshInterval, ZoneId zone) {
+    this.pool = pool;
+    this.refreshInterval = refreshInterval;
+    this.zone = zone;
+  }
+
+  /***
+   * Gets the last measured redis time minus the local time, in milliseconds.
+   *
+   * @return
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  @Override
+  public long millis() {
+    final long now = System.currentTimeMillis();
+    if (now - refreshedAt >= refreshInterval && refreshing.compareAndSet(false, true)) {
+      try {
+        refresh();
+      } finally {
+        refreshing.set(false);
+      }
+      return System.currentTimeMillis() + offset;
+    }
+    return now + offset;
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(millis());
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  /***
+   * Returns a clock with its own offset, measured on its first call.
+   */
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return new RedisClock(pool, refreshInterval, zone);
+  }
+
+  /***
+   * Measures the offset, taking the middle of the round trip as the local time
+   * of the redis reply.
+   */
+  void refresh() {
+    final long start = System.currentTimeMillis();
+    final List<?> time;
+    Jedis j = null;
+    try {
+      j = pool.getResource();
+      time = (List<?>) TIME_SCRIPT.eval(j, Collections.<String> emptyList(), Collections.<String> emptyList());
+    } catch (RuntimeException ex) {
+      if (j != null) {
+        pool.returnBrokenResource(j);
+      }
+      // keep the last offset, retry after the refresh interval
+      refreshedAt = start;
+      return;
+    }
+    pool.returnResource(j);
+    final long end = System.currentTimeMillis();
+    final long server = Long.parseLong((String) time.get(0)) * 1000 + Long.parseLong((String) time.get(1)) / 1000;
+    offset = server - (start + end) / 2;
+    refreshedAt = end;
+  }
+}
@@ -0,0 +1,485 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * {@link BufferSizeService} calls guarded by a {@link CircuitBreaker} and an
+ * optional per call timeout, answered by the {@link FailurePolicy} when redis
+ * cannot be reached:
+ * <ul>
+ * <li>FAIL_OPEN grants every lease, reports buffers as empty and drops
+ * changes,</li>
+ * <li>FAIL_CLOSED refuses every lease and rethrows the failure of the other
+ * calls,</li>
+ * <li>FAIL_LOCAL grants leases from slots counted by this node and applies
+ * buffer changes to the last value read from redis. The changes and the
+ * releases of redis leases are replayed to redis once the circuit closes.
+ * Leases granted locally are never written to redis, they are released
+ * locally whenever the holder gives them back.</li>
+ * </ul>
+ *
+ * @author hamster
+ *
+ */
+public class ResilientBufferSizeService {
+
+  private static final int DEFAULT_MAX_CALLS = 64;
+  private static final int DEFAULT_MAX_SUBJECTS = 100000;
+
+  private final BufferSizeService service;
+  private final FailurePolicy policy;
+  private final CallGuard guard;
+  private final int maxSubjects;
+  // last buffer size read from or written to redis
+  private final ConcurrentMap<String, Integer> known = new ConcurrentHashMap<String, Integer>();
+  // buffer changes made while redis was unavailable
+  private final ConcurrentMap<String, Change> changes = new ConcurrentHashMap<String, Change>();
+  // lease ids and expiry times of the leases granted locally
+  private final ConcurrentMap<String, Map<String, Long>> localLeases = new ConcurrentHashMap<String, Map<String, Long>>();
+  private final ConcurrentLinkedQueue<Lease> pendingReleases = new ConcurrentLinkedQueue<Lease>();
+  private final String localPrefix = "local:" + UUID.randomUUID().toString() + ":";
+  private final AtomicLong localSequence = new AtomicLong();
+
+  /***
+   *
+   * @param service
+   * @param policy
+   *          - what to answer when redis cannot be reached
+   * @param breaker
+   * @param timeout
+   *          - in milliseconds, max time of a call, 0 relies on the socket
+   *          timeout of the pool
+   * @param maxSubjects
+   *          - max number of subjects kept in memory for the local answers
+   */
+  public ResilientBufferSizeService(BufferSizeService service, FailurePolicy policy, CircuitBreaker breaker, long timeout, int maxSubjects) {
+    this.service = service;
+    this.policy = policy;
+    this.maxSubjects = maxSubjects;
+    this.guard = new CallGuard("buffer-guard", breaker, timeout, DEFAULT_MAX_CALLS, new Runnable() {
+
+      @Override
+      public void run() {
+        reconcile();
+      }
+    });
+  }
+
+  /***
+   * @see #ResilientBufferSizeService(BufferSizeService, FailurePolicy,
+   *      CircuitBreaker, long, int)
+   */
+  public ResilientBufferSizeService(BufferSizeService service, FailurePolicy policy, long timeout) {
+    this(service, policy, new CircuitBreaker(), timeout, DEFAULT_MAX_SUBJECTS);
+  }
+
+  public CircuitBreaker getBreaker() {
+    return guard.getBreaker();
+  }
+
+  public FailurePolicy getPolicy() {
+    return policy;
+  }
+
+  /***
+   * @see BufferSizeService#getCurrentBufferSize(String)
+   */
+  public int getCurrentBufferSize(final String subject) {
+    return guard.execute(new CallGuard.Call<Integer>() {
+
+      @Override
+      public Integer call() {
+        final int buffer = service.getCurrentBufferSize(subject);
+        remember(subject, buffer);
+        return buffer;
+      }
+
+      @Override
+      Integer fallback(JedisConnectionException cause) {
+        switch (policy) {
+        case FAIL_OPEN:
+          return -1;
+        case FAIL_CLOSED:
+          throw cause;
+        default:
+          final Change c = changes.get(subject);
+          final Integer k = known.get(subject);
+          if (c == null) {
+            return k == null ? -1 : k;
+          }
+          synchronized (c) {
+            return (int) c.apply(k);
+          }
+        }
+      }
+    });
+  }
+
+  /***
+   * @see BufferSizeService#setCurrentBufferSize(String, int)
+   */
+  public void setCurrentBufferSize(final String subject, final int buffer) {
+    guard.execute(new CallGuard.Call<Void>() {
+
+      @Override
+      public Void call() {
+        service.setCurrentBufferSize(subject, buffer);
+        remember(subject, buffer);
+        return null;
+      }
+
+      @Override
+      Void fallback(JedisConnectionException cause) {
+        switch (policy) {
+        case FAIL_OPEN:
+          return null;
+        case FAIL_CLOSED:
+          throw cause;
+        default:
+          final Change c = change(subject);
+          if (c != null) {
+            synchronized (c) {
+              c.set = buffer;
+              c.delta = 0;
+            }
+          }
+          return null;
+        }
+      }
+    });
+  }
+
+  /***
+   * @see BufferSizeService#incrementCurrentBufferSize(String)
+   */
+  public long incrementCurrentBufferSize(String subject) {
+    return add(subject, 1);
+  }
+
+  /***
+   * @see BufferSizeService#decrementCurrentBufferSize(String)
+   */
+  public long decrementCurrentBufferSize(String subject) {
+    return add(subject, -1);
+  }
+
+  /***
+   * @see BufferSizeService#tryAcquire(String, int)
+   */
+  public Lease tryAcquire(String subject, int max) {
+    return acquire(System.currentTimeMillis(), true, subject, max);
+  }
+
+  /***
+   * @see BufferSizeService#tryAcquire(long, String, int)
+   */
+  public Lease tryAcquire(long time, String subject, int max) {
+    return acquire(time, false, subject, max);
+  }
+
+  /***
+   * @param serverTime
+   *          - redis takes the time of the server, the time is used only by
+   *          the local leases then
+   */
+  private Lease acquire(final long time, final boolean serverTime, final String subject, final int max) {
+    return guard.execute(new CallGuard.Call<Lease>() {
+
+      @Override
+      public Lease call() {
+        return serverTime ? service.tryAcquire(subject, max) : service.tryAcquire(time, subject, max);
+      }
+
+      @Override
+      Lease fallback(JedisConnectionException cause) {
+        switch (policy) {
+        case FAIL_OPEN:
+          return new Lease(subject, nextLocalId(), true, 1, 0);
+        case FAIL_CLOSED:
+          return new Lease(subject, null, false, max, Math.max(getBreaker().getRetryAfter(), 1));
+        default:
+          return localAcquire(time, subject, max);
+        }
+      }
+    });
+  }
+
+  /***
+   * Frees the slot of the lease, locally for the leases granted locally.
+   *
+   * @see BufferSizeService#release(Lease)
+   */
+  public boolean release(final Lease lease) {
+    if (!lease.isAcquired()) {
+      return false;
+    }
+    if (isLocal(lease)) {
+      final Map<String, Long> leases = localLeases.get(lease.getSubject());
+      if (leases == null) {
+        return false;
+      }
+      synchronized (leases) {
+        return leases.remove(lease.getId()) != null;
+      }
+    }
+    return guard.execute(new CallGuard.Call<Boolean>() {
+
+      @Override
+      public Boolean call() {
+        return service.release(lease);
+      }
+
+      @Override
+      Boolean fallback(JedisConnectionException cause) {
+        switch (policy) {
+        case FAIL_OPEN:
+          return false;
+        case FAIL_CLOSED:
+          throw cause;
+        default:
+          pendingReleases.add(lease);
+          return true;
+        }
+      }
+    });
+  }
+
+  /***
+   * Extends the lease. While redis is unavailable a redis lease is assumed to
+   * be still held, except with FAIL_CLOSED.
+   *
+   * @see BufferSizeService#renew(long, Lease)
+   */
+  public boolean renew(final long time, final Lease lease) {
+    if (isLocal(lease)) {
+      final Map<String, Long> leases = localLeases.get(lease.getSubject());
+      if (leases == null) {
+        return false;
+      }
+      synchronized (leases) {
+        final Long expiresAt = leases.get(lease.getId());
+        if (expiresAt == null || expiresAt <= time) {
+          leases.remove(lease.getId());
+          return false;
+        }
+        leases.put(lease.getId(), time + service.getLeaseTime());
+        return true;
+      }
+    }
+    return guard.execute(new CallGuard.Call<Boolean>() {
+
+      @Override
+      public Boolean call() {
+        return service.renew(time, lease);
+      }
+
+      @Override
+      Boolean fallback(JedisConnectionException cause) {
+        if (policy == FailurePolicy.FAIL_CLOSED) {
+          throw cause;
+        }
+        return true;
+      }
+    });
+  }
+
+  /***
+   * Replays the buffer changes and lease releases made while redis was
+   * unavailable, in one pipeline per shard. Run in the background when the
+   * circuit closes; changes that cannot be sent are kept for the next
+   * recovery.
+   */
+  void reconcile() {
+    final List<BufferSizeService.Op> ops = new ArrayList<BufferSizeService.Op>();
+    final List<String> subjects = new ArrayList<String>();
+    final List<Integer> values = new ArrayList<Integer>();
+    final List<Map.Entry<String, Change>> replayed = new ArrayList<Map.Entry<String, Change>>();
+    for (Iterator<Map.Entry<String, Change>> it = changes.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<String, Change> e = it.next();
+      it.remove();
+      replayed.add(e);
+      final Change c = e.getValue();
+      synchronized (c) {
+        if (c.set != null) {
+          ops.add(BufferSizeService.Op.SET);
+          subjects.add(e.getKey());
+          values.add(c.set);
+        }
+        if (c.delta != 0) {
+          // the net change in one command
+          ops.add(BufferSizeService.Op.INCRBY);
+          subjects.add(e.getKey());
+          values.add((int) c.delta);
+        }
+      }
+      known.remove(e.getKey());
+    }
+    final int[] v = new int[values.size()];
+    for (int i = 0; i < v.length; i++) {
+      v[i] = values.get(i);
+    }
+    final List<Lease> releases = new ArrayList<Lease>();
+    for (Lease lease; (lease = pendingReleases.poll()) != null;) {
+      releases.add(lease);
+    }
+    try {
+      service.pipelined(ops, subjects, v);
+    } catch (RuntimeException ex) {
+      for (Map.Entry<String, Change> e : replayed) {
+        changes.putIfAbsent(e.getKey(), e.getValue());
+      }
+      pendingReleases.addAll(releases);
+      return;
+    }
+    try {
+      service.releaseAll(releases);
+    } catch (RuntimeException ex) {
+      // the leases expire on their own
+    }
+  }
+
+  /***
+   * Stops the threads of the call timeout and of the recovery.
+   */
+  public void close() {
+    guard.close();
+  }
+
+  private long add(final String subject, final int delta) {
+    return guard.execute(new CallGuard.Call<Long>() {
+
+      @Override
+      public Long call() {
+        final long buffer = delta > 0 ? service.incrementCurrentBufferSize(subject) : service.decrementCurrentBufferSize(subject);
+        remember(subject, (int) buffer);
+        return buffer;
+      }
+
+      @Override
+      Long fallback(JedisConnectionException cause) {
+        switch (policy) {
+        case FAIL_OPEN:
+          return 0l;
+        case FAIL_CLOSED:
+          throw cause;
+        default:
+          final Change c = change(subject);
+          if (c == null) {
+            return 0l;
+          }
+          synchronized (c) {
+            c.delta += delta;
+            return c.apply(known.get(subject));
+          }
+        }
+      }
+    });
+  }
+
+  private Lease localAcquire(long time, String subject, int max) {
+    Map<String, Long> leases = localLeases.get(subject);
+    if (leases == null) {
+      if (localLeases.size() >= maxSubjects) {
+        evictExpired(time);
+      }
+      leases = new HashMap<String, Long>();
+      final Map<String, Long> existing = localLeases.putIfAbsent(subject, leases);
+      if (existing != null) {
+        leases = existing;
+      }
+    }
+    synchronized (leases) {
+      long firstExpiry = Long.MAX_VALUE;
+      for (Iterator<Long> it = leases.values().iterator(); it.hasNext();) {
+        final long expiresAt = it.next();
+        if (expiresAt <= time) {
+          it.remove();
+        } else {
+          firstExpiry = Math.min(firstExpiry, expiresAt);
+        }
+      }
+      if (leases.size() >= max) {
+        return new Lease(subject, null, false, leases.size(), firstExpiry - time);
+      }
+      final String id = nextLocalId();
+      leases.put(id, time + service.getLeaseTime());
+      return new Lease(subject, id, true, leases.size(), 0);
+    }
+  }
+
+  private void evictExpired(long time) {
+    for (Iterator<Map<String, Long>> it = localLeases.values().iterator(); it.hasNext();) {
+      final Map<String, Long> leases = it.next();
+      synchronized (leases) {
+        for (Iterator<Long> l = leases.values().iterator(); l.hasNext();) {
+          if (l.next() <= time) {
+            l.remove();
+          }
+        }
+        if (leases.isEmpty()) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private void remember(String subject, int buffer) {
+    if (policy == FailurePolicy.FAIL_LOCAL && (known.size() < maxSubjects || known.containsKey(subject))) {
+      known.put(subject, buffer);
+    }
+  }
+
+  /***
+   * Gets the pending changes of the subject, null when too many subjects
+   * changed already.
+   */
+  private Change change(String subject) {
+    Change c = changes.get(subject);
+    if (c == null) {
+      if (changes.size() >= maxSubjects) {
+        return null;
+      }
+      c = new Change();
+      final Change existing = changes.putIfAbsent(subject, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  private boolean isLocal(Lease lease) {
+    return lease.getId() != null && lease.getId().startsWith(localPrefix);
+  }
+
+  private String nextLocalId() {
+    return localPrefix + localSequence.incrementAndGet();
+  }
+
+  /***
+   * Buffer size set and increments made while redis was unavailable.
+   */
+  private static class Change {
+    private Integer set;
+    private long delta;
+
+    long apply(Integer known) {
+      if (set != null) {
+        return set + delta;
+      }
+      // -1 is a missing buffer, incremented from 0 by redis
+      return (known == null || known == -1 ? 0 : known) + delta;
+    }
+  }
+}
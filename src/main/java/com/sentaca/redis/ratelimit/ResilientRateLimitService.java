@@ -0,0 +1,373 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * {@link RateLimiter} keeping the request path alive while redis is slow or
+ * down. Every call to the wrapped {@link RateLimitService} goes through a
+ * {@link CircuitBreaker} and an optional per call timeout; calls that fail,
+ * time out or are refused by the open circuit are answered by the
+ * {@link FailurePolicy}:
+ * <ul>
+ * <li>FAIL_OPEN allows every hit and reports empty windows,</li>
+ * <li>FAIL_CLOSED denies every hit and rethrows the failure of the other
+ * calls,</li>
+ * <li>FAIL_LOCAL answers from a {@link LocalRateLimitService}. The hits it
+ * records are also journaled by bucket and sent to redis in one batch once
+ * the circuit closes again, so the shared windows catch up with the outage.</li>
+ * </ul>
+ * The local limiter starts empty and sees the hits of this node only, so
+ * during an outage every node enforces the limit on its own share of the
+ * traffic; see {@link #setLocalLimitShare(double)}.
+ *
+ * @author hamster
+ *
+ */
+public class ResilientRateLimitService implements RateLimiter {
+
+  private static final int DEFAULT_MAX_CALLS = 64;
+  private static final int DEFAULT_MAX_SUBJECTS = 100000;
+  private static final int RECONCILE_BATCH_SIZE = 1000;
+
+  private final RateLimitService service;
+  private final FailurePolicy policy;
+  private final CallGuard guard;
+  private final int bucketsUsedForTps;
+  private final int maxSubjects;
+  private volatile LocalRateLimitService local;
+  private double localLimitShare = 1;
+  // hits recorded locally by subject and bucket index, not sent to redis yet
+  private final ConcurrentMap<String, Map<Long, Integer>> journal = new ConcurrentHashMap<String, Map<Long, Integer>>();
+
+  /***
+   *
+   * @param service
+   *          - redis limiter
+   * @param policy
+   *          - what to answer when redis cannot be reached
+   * @param breaker
+   * @param timeout
+   *          - in milliseconds, max time of a call, 0 relies on the socket
+   *          timeout of the pool
+   * @param maxSubjects
+   *          - max number of subjects kept by the local limiter and the
+   *          journal
+   */
+  public ResilientRateLimitService(RateLimitService service, FailurePolicy policy, CircuitBreaker breaker, long timeout, int maxSubjects) {
+    this.service = service;
+    this.policy = policy;
+    this.bucketsUsedForTps = service.getTpsInterval() / service.getBucketInterval();
+    this.maxSubjects = maxSubjects;
+    this.local = newLocal();
+    this.guard = new CallGuard("ratelimit-guard", breaker, timeout, DEFAULT_MAX_CALLS, new Runnable() {
+
+      @Override
+      public void run() {
+        reconcile();
+      }
+    });
+  }
+
+  /***
+   * @see #ResilientRateLimitService(RateLimitService, FailurePolicy,
+   *      CircuitBreaker, long, int)
+   */
+  public ResilientRateLimitService(RateLimitService service, FailurePolicy policy, long timeout) {
+    this(service, policy, new CircuitBreaker(), timeout, DEFAULT_MAX_SUBJECTS);
+  }
+
+  public CircuitBreaker getBreaker() {
+    return guard.getBreaker();
+  }
+
+  public FailurePolicy getPolicy() {
+    return policy;
+  }
+
+  /***
+   * Sets the part of the limit the local limiter allows, e.g. 0.25 for one of
+   * four nodes sharing the traffic evenly. 1 by default.
+   *
+   * @param localLimitShare
+   */
+  public void setLocalLimitShare(double localLimitShare) {
+    this.localLimitShare = localLimitShare;
+  }
+
+  /***
+   * Gets the number of subjects with hits waiting to be sent to redis.
+   *
+   * @return
+   */
+  public int getJournalSize() {
+    return journal.size();
+  }
+
+  public void addAll(final long time, final Set<String> subjects) {
+    guard.execute(new CallGuard.Call<Void>() {
+
+      @Override
+      public Void call() {
+        service.addAll(time, subjects);
+        return null;
+      }
+
+      @Override
+      Void fallback(JedisConnectionException cause) {
+        for (String subject : subjects) {
+          fallbackAdd(cause, time, subject);
+        }
+        return null;
+      }
+    });
+  }
+
+  public void add(final long time, final String subject) {
+    guard.execute(new CallGuard.Call<Void>() {
+
+      @Override
+      public Void call() {
+        service.add(time, subject);
+        return null;
+      }
+
+      @Override
+      Void fallback(JedisConnectionException cause) {
+        fallbackAdd(cause, time, subject);
+        return null;
+      }
+    });
+  }
+
+  public CountResult count(final long time, final String subject) {
+    return guard.execute(new CallGuard.Call<CountResult>() {
+
+      @Override
+      public CountResult call() {
+        return service.count(time, subject);
+      }
+
+      @Override
+      CountResult fallback(JedisConnectionException cause) {
+        return fallbackCount(cause, time, subject);
+      }
+    });
+  }
+
+  public CountResult addAndCount(final long time, final String subject) {
+    return guard.execute(new CallGuard.Call<CountResult>() {
+
+      @Override
+      public CountResult call() {
+        return service.addAndCount(time, subject);
+      }
+
+      @Override
+      CountResult fallback(JedisConnectionException cause) {
+        fallbackAdd(cause, time, subject);
+        return fallbackCount(cause, time, subject);
+      }
+    });
+  }
+
+  public Map<String, CountResult> countAll(final long time, final Collection<String> subjects) {
+    return guard.execute(new CallGuard.Call<Map<String, CountResult>>() {
+
+      @Override
+      public Map<String, CountResult> call() {
+        return service.countAll(time, subjects);
+      }
+
+      @Override
+      Map<String, CountResult> fallback(JedisConnectionException cause) {
+        final Map<String, CountResult> map = new LinkedHashMap<String, CountResult>();
+        for (String subject : subjects) {
+          map.put(subject, fallbackCount(cause, time, subject));
+        }
+        return map;
+      }
+    });
+  }
+
+  public Map<String, Tps> tpsAll(final Collection<String> subjects) {
+    final Map<String, Tps> map = new LinkedHashMap<String, Tps>();
+    for (Map.Entry<String, CountResult> e : countAll(now(), subjects).entrySet()) {
+      map.put(e.getKey(), tps(e.getValue()));
+    }
+    return map;
+  }
+
+  public Tps tps(String subject) {
+    return tps(count(now(), subject));
+  }
+
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(now(), subject, limit, rule);
+  }
+
+  public AcquireResult tryAcquire(final long time, final String subject, final double limit, final ThrottleRule rule) {
+    return guard.execute(new CallGuard.Call<AcquireResult>() {
+
+      @Override
+      public AcquireResult call() {
+        return service.tryAcquire(time, subject, limit, rule);
+      }
+
+      @Override
+      AcquireResult fallback(JedisConnectionException cause) {
+        switch (policy) {
+        case FAIL_OPEN:
+          return new AcquireResult(true, 0, tps(empty()));
+        case FAIL_CLOSED:
+          return new AcquireResult(false, Math.max(getBreaker().getRetryAfter(), 1), tps(empty()));
+        default:
+          final AcquireResult result = local.tryAcquire(time, subject, limit * localLimitShare, rule);
+          if (result.isAllowed()) {
+            journal(time, subject);
+          }
+          return result;
+        }
+      }
+    });
+  }
+
+  /***
+   * Sends the journaled hits of the buckets still in the tps window to redis,
+   * oldest buckets first, and starts the next outage with an empty local
+   * limiter. Run in the background when the circuit closes; hits that cannot
+   * be sent stay in the journal for the next recovery.
+   * <p>
+   * The hits are backfilled into the buckets of their time without clearing
+   * the buckets ahead, which already hold the hits recorded since the circuit
+   * closed.
+   */
+  void reconcile() {
+    local = newLocal();
+    final long now = now();
+    final long oldest = service.getBucketIndex(now) - bucketsUsedForTps;
+    final long bucketMillis = service.getBucketInterval() * 1000l;
+    final List<String> subjects = new ArrayList<String>();
+    final List<Long> indexes = new ArrayList<Long>();
+    final List<Integer> hits = new ArrayList<Integer>();
+    for (String subject : journal.keySet()) {
+      // removed before it is read, a concurrent journal() then starts a new
+      // map instead of adding to this one
+      final Map<Long, Integer> buckets = journal.remove(subject);
+      if (buckets == null) {
+        continue;
+      }
+      synchronized (buckets) {
+        for (Map.Entry<Long, Integer> b : buckets.entrySet()) {
+          if (b.getKey() > oldest) {
+            subjects.add(subject);
+            indexes.add(b.getKey());
+            hits.add(b.getValue());
+          }
+        }
+      }
+    }
+    for (int from = 0; from < subjects.size(); from += RECONCILE_BATCH_SIZE) {
+      final int to = Math.min(from + RECONCILE_BATCH_SIZE, subjects.size());
+      final long[] times = new long[to - from];
+      final int[] batchHits = new int[to - from];
+      for (int i = from; i < to; i++) {
+        times[i - from] = indexes.get(i) * bucketMillis;
+        batchHits[i - from] = hits.get(i);
+      }
+      try {
+        service.backfill(now, times, subjects.subList(from, to), batchHits, false);
+      } catch (RuntimeException ex) {
+        for (int i = from; i < subjects.size(); i++) {
+          journal(subjects.get(i), indexes.get(i), hits.get(i));
+        }
+        return;
+      }
+    }
+  }
+
+  /***
+   * Stops the threads of the call timeout and of the recovery.
+   */
+  public void close() {
+    guard.close();
+  }
+
+  private void fallbackAdd(JedisConnectionException cause, long time, String subject) {
+    switch (policy) {
+    case FAIL_OPEN:
+      return;
+    case FAIL_CLOSED:
+      throw cause;
+    default:
+      local.add(time, subject);
+      journal(time, subject);
+    }
+  }
+
+  private CountResult fallbackCount(JedisConnectionException cause, long time, String subject) {
+    switch (policy) {
+    case FAIL_OPEN:
+      return empty();
+    case FAIL_CLOSED:
+      throw cause;
+    default:
+      return local.count(time, subject);
+    }
+  }
+
+  private void journal(long time, String subject) {
+    journal(subject, service.getBucketIndex(time), 1);
+  }
+
+  private void journal(String subject, long index, int hits) {
+    while (true) {
+      Map<Long, Integer> buckets = journal.get(subject);
+      if (buckets == null) {
+        if (journal.size() >= maxSubjects) {
+          // the local limiter still counts the hit, redis will not see it
+          return;
+        }
+        buckets = new TreeMap<Long, Integer>();
+        final Map<Long, Integer> existing = journal.putIfAbsent(subject, buckets);
+        if (existing != null) {
+          buckets = existing;
+        }
+      }
+      synchronized (buckets) {
+        // taken by reconcile() meanwhile, retry with a new map
+        if (journal.get(subject) != buckets) {
+          continue;
+        }
+        final Integer current = buckets.get(index);
+        buckets.put(index, current == null ? hits : current + hits);
+        return;
+      }
+    }
+  }
+
+  private LocalRateLimitService newLocal() {
+    return new LocalRateLimitService(service.getBucketInterval(), service.getTpsInterval(), maxSubjects);
+  }
+
+  private CountResult empty() {
+    return new CountResult(0, bucketsUsedForTps, 0, 0);
+  }
+
+  private Tps tps(CountResult cr) {
+    return Tps.calculate(cr, service.getTpsInterval(), service.getBucketInterval());
+  }
+
+  private long now() {
+    return service.getClock().millis();
+  }
+}
@@ -0,0 +1,286 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.util.Hashing;
+import redis.clients.util.ShardInfo;
+import redis.clients.util.Sharded;
+
+/***
+ * Connection pools of several redis servers with keys distributed by
+ * consistent hashing, the same way as jedis' ShardedJedisPool (murmur hash,
+ * shard names and weights, <code>{tag}</code> key tags). Keys with the same
+ * tag always land on the same server, see
+ * {@link SubjectKeyGenerator#SubjectKeyGenerator(boolean)}.
+ * <p>
+ * The services route every single key call to the pool of its key and split
+ * batches per shard, sending the shard batches in parallel. A single pool is a
+ * valid, unsharded, configuration.
+ * 
+ * @author hamster
+ * 
+ */
+public class ShardedPool {
+
+  private final List<JedisPool> pools;
+  private final Sharded<JedisPool, PoolShardInfo> sharded;
+  private final boolean owned;
+  private volatile ExecutorService executor;
+
+  /***
+   * Creates a pool per shard.
+   * 
+   * @param shards
+   *          - servers, names and weights as for ShardedJedisPool
+   * @param config
+   *          - configuration of every pool
+   */
+  public ShardedPool(List<JedisShardInfo> shards, GenericObjectPool.Config config) {
+    final List<PoolShardInfo> infos = new ArrayList<PoolShardInfo>(shards.size());
+    for (JedisShardInfo shard : shards) {
+      final JedisPool pool = new JedisPool(config, shard.getHost(), shard.getPort(), shard.getTimeout(), shard.getPassword());
+      infos.add(new PoolShardInfo(pool, shard.getName(), shard.getWeight()));
+    }
+    this.pools = pools(infos);
+    this.sharded = new Sharded<JedisPool, PoolShardInfo>(infos, Hashing.MURMUR_HASH, Sharded.DEFAULT_KEY_TAG_PATTERN);
+    this.owned = true;
+  }
+
+  /***
+   * Shards over existing pools, identified by their position in the list.
+   * 
+   * @param pools
+   */
+  public ShardedPool(List<JedisPool> pools) {
+    final List<PoolShardInfo> infos = new ArrayList<PoolShardInfo>(pools.size());
+    for (JedisPool pool : pools) {
+      infos.add(new PoolShardInfo(pool, null, Sharded.DEFAULT_WEIGHT));
+    }
+    this.pools = pools(infos);
+    this.sharded = new Sharded<JedisPool, PoolShardInfo>(infos, Hashing.MURMUR_HASH, Sharded.DEFAULT_KEY_TAG_PATTERN);
+    this.owned = false;
+  }
+
+  /***
+   * Single pool, every key goes to it.
+   * 
+   * @param pool
+   */
+  public ShardedPool(JedisPool pool) {
+    this.pools = Collections.singletonList(pool);
+    this.sharded = null;
+    this.owned = false;
+  }
+
+  public List<JedisPool> getPools() {
+    return pools;
+  }
+
+  public boolean isSharded() {
+    return sharded != null && pools.size() > 1;
+  }
+
+  /***
+   * Gets the pool of the server the key is stored on.
+   * 
+   * @param key
+   * @return
+   */
+  public JedisPool getPool(String key) {
+    if (!isSharded()) {
+      return pools.get(0);
+    }
+    return sharded.getShard(key);
+  }
+
+  /***
+   * Closes the socket of a connection that failed, so it reconnects on its
+   * next command instead of going back to the pool with unread replies or to a
+   * server that is gone.
+   * 
+   * @param j
+   */
+  static void disconnect(Jedis j) {
+    try {
+      j.disconnect();
+    } catch (RuntimeException ex) {
+      // already closed
+    }
+  }
+
+  /***
+   * Stops the threads sending shard batches and destroys the pools created by
+   * this instance.
+   */
+  public void destroy() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (owned) {
+      for (JedisPool pool : pools) {
+        pool.destroy();
+      }
+    }
+  }
+
+  /***
+   * Executes the batch once per shard with the indexes of the keys stored
+   * there, the other shards in parallel with the first one which runs on the
+   * calling thread. Results are merged back into the order of the keys.
+   * 
+   * @param size
+   *          - number of keys
+   * @param batch
+   * @return results of the batch, one per key
+   */
+  <T> List<T> forEachShard(int size, final ShardBatch<T> batch) {
+    if (!isSharded()) {
+      final List<Integer> indexes = new ArrayList<Integer>(size);
+      for (int i = 0; i < size; i++) {
+        indexes.add(i);
+      }
+      return batch.execute(pools.get(0), indexes);
+    }
+
+    final Map<JedisPool, List<Integer>> groups = new LinkedHashMap<JedisPool, List<Integer>>();
+    for (int i = 0; i < size; i++) {
+      final JedisPool pool = sharded.getShard(batch.key(i));
+      List<Integer> indexes = groups.get(pool);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>();
+        groups.put(pool, indexes);
+      }
+      indexes.add(i);
+    }
+
+    final List<Map.Entry<JedisPool, List<Integer>>> entries = new ArrayList<Map.Entry<JedisPool, List<Integer>>>(groups.entrySet());
+    final List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(entries.size());
+    for (int g = 1; g < entries.size(); g++) {
+      final Map.Entry<JedisPool, List<Integer>> e = entries.get(g);
+      futures.add(executor().submit(new Callable<List<T>>() {
+
+        @Override
+        public List<T> call() throws Exception {
+          return batch.execute(e.getKey(), e.getValue());
+        }
+      }));
+    }
+
+    final List<T> results = new ArrayList<T>(Collections.<T> nCopies(size, null));
+    merge(results, entries.get(0).getValue(), batch.execute(entries.get(0).getKey(), entries.get(0).getValue()));
+    for (int g = 1; g < entries.size(); g++) {
+      merge(results, entries.get(g).getValue(), get(futures.get(g - 1)));
+    }
+    return results;
+  }
+
+  private static <T> void merge(List<T> results, List<Integer> indexes, List<T> shardResults) {
+    for (int i = 0; i < indexes.size(); i++) {
+      results.set(indexes.get(i), shardResults.get(i));
+    }
+  }
+
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for a shard", ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      if (ex.getCause() instanceof Error) {
+        throw (Error) ex.getCause();
+      }
+      throw new IllegalStateException("Shard batch failed", ex.getCause());
+    }
+  }
+
+  private ExecutorService executor() {
+    if (executor == null) {
+      synchronized (this) {
+        if (executor == null) {
+          final AtomicInteger counter = new AtomicInteger();
+          executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+              final Thread thread = new Thread(r, "ratelimit-shard-" + counter.getAndIncrement());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+        }
+      }
+    }
+    return executor;
+  }
+
+  private static List<JedisPool> pools(List<PoolShardInfo> infos) {
+    final List<JedisPool> pools = new ArrayList<JedisPool>(infos.size());
+    for (PoolShardInfo info : infos) {
+      pools.add(info.pool);
+    }
+    return Collections.unmodifiableList(pools);
+  }
+
+  /***
+   * Part of a batch sent to one shard.
+   * 
+   * @param <T>
+   *          - result per key
+   */
+  abstract static class ShardBatch<T> {
+
+    /***
+     * Gets the routing key of the i-th element, called only when sharded.
+     */
+    abstract String key(int index);
+
+    /***
+     * Executes the elements of the given indexes over one connection of the
+     * pool.
+     * 
+     * @return results in the order of the indexes
+     */
+    abstract List<T> execute(JedisPool pool, List<Integer> indexes);
+  }
+
+  private static class PoolShardInfo extends ShardInfo<JedisPool> {
+    private final JedisPool pool;
+    private final String name;
+
+    PoolShardInfo(JedisPool pool, String name, int weight) {
+      super(weight);
+      this.pool = pool;
+      this.name = name;
+    }
+
+    @Override
+    protected JedisPool createResource() {
+      return pool;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+  }
+}
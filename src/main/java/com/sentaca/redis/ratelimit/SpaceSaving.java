@@ -0,0 +1,147 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Space-Saving summary of the most frequent items of a stream, in capacity
+ * counters. A new item takes over the smallest counter when all are in use and
+ * inherits its count as the error, so a count is an upper bound exceeding the
+ * true count by at most the smallest count; any item with more than
+ * total / capacity hits is guaranteed to be kept. Counters sit in a min-heap,
+ * an offer costs O(log capacity).
+ *
+ * @author hamster
+ *
+ */
+class SpaceSaving {
+
+  private final int capacity;
+  private Map<String, Counter> counters;
+  private Counter[] heap;
+  private int size;
+
+  SpaceSaving(int capacity) {
+    this.capacity = capacity;
+    reset();
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized void offer(String item, long hits) {
+    Counter c = counters.get(item);
+    if (c == null) {
+      if (size < capacity) {
+        c = new Counter(item, size);
+        heap[size++] = c;
+        counters.put(item, c);
+        c.count = hits;
+        siftUp(c.position);
+        return;
+      }
+      // the smallest counter goes to the new item, its count is the error
+      c = heap[0];
+      counters.remove(c.item);
+      c.item = item;
+      counters.put(item, c);
+    }
+    c.count += hits;
+    siftDown(c.position);
+  }
+
+  /***
+   * Gets the counted items, most frequent first.
+   *
+   * @return counts by item
+   */
+  synchronized Map<String, Long> top() {
+    return sorted(counters);
+  }
+
+  /***
+   * Gets the counted items, most frequent first, and starts a new summary.
+   *
+   * @return counts by item
+   */
+  synchronized Map<String, Long> drain() {
+    final Map<String, Counter> drained = counters;
+    reset();
+    return sorted(drained);
+  }
+
+  private void reset() {
+    counters = new HashMap<String, Counter>();
+    heap = new Counter[capacity];
+    size = 0;
+  }
+
+  private static Map<String, Long> sorted(Map<String, Counter> counters) {
+    final List<Counter> list = new ArrayList<Counter>(counters.values());
+    Collections.sort(list, new Comparator<Counter>() {
+
+      @Override
+      public int compare(Counter a, Counter b) {
+        return Long.compare(b.count, a.count);
+      }
+    });
+    final Map<String, Long> map = new LinkedHashMap<String, Long>();
+    for (Counter c : list) {
+      map.put(c.item, c.count);
+    }
+    return map;
+  }
+
+  private void siftUp(int position) {
+    final Counter c = heap[position];
+    while (position > 0) {
+      final int parent = (position - 1) / 2;
+      if (heap[parent].count <= c.count) {
+        break;
+      }
+      heap[position] = heap[parent];
+      heap[position].position = position;
+      position = parent;
+    }
+    heap[position] = c;
+    c.position = position;
+  }
+
+  private void siftDown(int position) {
+    final Counter c = heap[position];
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (heap[child].count >= c.count) {
+        break;
+      }
+      heap[position] = heap[child];
+      heap[position].position = position;
+      position = child;
+    }
+    heap[position] = c;
+    c.position = position;
+  }
+
+  private static class Counter {
+    private String item;
+    private long count;
+    private int position;
+
+    Counter(String item, int position) {
+      this.item = item;
+      this.position = position;
+    }
+  }
+}
@@ -1,10 +1,84 @@
 package com.sentaca.redis.ratelimit;
 
+import redis.clients.util.SafeEncoder;
+
 public class SubjectKeyGenerator {
+
+  private final boolean hashTags;
+
+  public SubjectKeyGenerator() {
+    this(false);
+  }
+
+  /***
+   * 
+   * @param hashTags
+   *          - wraps the subject in a <code>{subject}</code> hash tag, so that
+   *          all the keys of a subject (every action and namespace) are
+   *          stored on the same shard of a {@link ShardedPool} or redis
+   *          cluster. Changes the keys, existing counters are not found.
+   */
+  public SubjectKeyGenerator(boolean hashTags) {
+    this.hashTags = hashTags;
+  }
+
+  public boolean isHashTags() {
+    return hashTags;
+  }
+
   public String getKeyForSubject(String namespace, String action, String subject) {
+    final String tagged = hashTags ? "{" + subject + "}" : subject;
     if (namespace == null) {
-      return action + ":" + subject;
+      return action + ":" + tagged;
+    }
+    return namespace + ":" + action + ":" + tagged;
+  }
+
+  /***
+   * Gets the encoded part of the key shared by all the subjects, computed once
+   * per service for {@link #getKeyForSubject(byte[], String)}.
+   * 
+   * @param namespace
+   * @param action
+   * @return
+   */
+  public byte[] getKeyPrefix(String namespace, String action) {
+    final String prefix = namespace == null ? action + ":" : namespace + ":" + action + ":";
+    return SafeEncoder.encode(hashTags ? prefix + "{" : prefix);
+  }
+
+  /***
+   * Encodes the key of the subject, the same bytes as
+   * {@link #getKeyForSubject(String, String, String)} but with one allocation
+   * for ASCII subjects.
+   * 
+   * @param prefix
+   *          - see {@link #getKeyPrefix(String, String)}
+   * @param subject
+   * @return
+   */
+  public byte[] getKeyForSubject(byte[] prefix, String subject) {
+    final int length = subject.length();
+    final int suffix = hashTags ? 1 : 0;
+    final byte[] key = new byte[prefix.length + length + suffix];
+    System.arraycopy(prefix, 0, key, 0, prefix.length);
+    for (int i = 0; i < length; i++) {
+      final char c = subject.charAt(i);
+      if (c >= 0x80) {
+        final byte[] encoded = SafeEncoder.encode(subject);
+        final byte[] utf8 = new byte[prefix.length + encoded.length + suffix];
+        System.arraycopy(prefix, 0, utf8, 0, prefix.length);
+        System.arraycopy(encoded, 0, utf8, prefix.length, encoded.length);
+        if (hashTags) {
+          utf8[utf8.length - 1] = '}';
+        }
+        return utf8;
+      }
+      key[prefix.length + i] = (byte) c;
+    }
+    if (hashTags) {
+      key[key.length - 1] = '}';
     }
-    return namespace + ":" + action + ":" + subject;
+    return key;
   }
 }
@@ -0,0 +1,39 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * Tps window of one subject, as read by {@link RateLimitService#export}.
+ * 
+ * @author hamster
+ * 
+ */
+public class SubjectWindow {
+  private final String subject;
+  private final BucketSeries series;
+
+  public SubjectWindow(String subject, BucketSeries series) {
+    this.subject = subject;
+    this.series = series;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  /***
+   * Gets the hits per bucket, oldest bucket first.
+   * 
+   * @return
+   */
+  public BucketSeries getSeries() {
+    return series;
+  }
+
+  /***
+   * Gets the same counters as {@link RateLimitService#count(long, String)}.
+   * 
+   * @return
+   */
+  public CountResult getCountResult() {
+    return series.toCountResult();
+  }
+}
@@ -0,0 +1,23 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * Selects which of the {@link Tps} rates is compared against the allowed tps.
+ */
+public enum ThrottleRule {
+  /***
+   * @see Tps#getTps()
+   */
+  BY_AVERAGE_TPS,
+  /***
+   * @see Tps#getTpsNoEmptyBuckets()
+   */
+  BY_NO_EMPTY_BUCKETS_TPS,
+  /***
+   * @see Tps#getPeakTps()
+   */
+  BY_PEAK_TPS,
+  /***
+   * @see Tps#getLatestBucketTps()
+   */
+  BY_LATEST_BUCKET_TPS
+}
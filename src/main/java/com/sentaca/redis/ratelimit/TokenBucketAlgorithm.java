@@ -0,0 +1,18 @@
+package com.sentaca.redis.ratelimit;
+
+/***
+ * How {@link TokenBucketRateLimitService} stores the state of a subject. Both
+ * make the same decisions, they differ only in what is kept in redis.
+ */
+public enum TokenBucketAlgorithm {
+  /***
+   * Generic cell rate algorithm, a string key with the theoretical arrival
+   * time of the next hit.
+   */
+  GCRA,
+  /***
+   * Classic token bucket, a hash key with the tokens left and the time of the
+   * last refill.
+   */
+  TOKEN_BUCKET
+}
@@ -0,0 +1,316 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * {@link RateLimiter} with constant state per subject, for actions with
+ * millions of subjects where a hash of buckets per subject is too much. Hits
+ * drain at the limit rate and up to limit * window hits may be pending, so a
+ * subject may burst through a whole window of hits and is then held at the
+ * limit rate. Every call is one lua script, see {@link TokenBucketAlgorithm}
+ * for the stored state.
+ * <p>
+ * There are no buckets: the counters report the pending hits in the window
+ * and all the rates of {@link Tps} are pending hits / window. A subject
+ * hitting at the limit rate or faster reports the limit. The rule given to
+ * {@link #tryAcquire(long, String, double, ThrottleRule)} is therefore
+ * ignored; the limit given there overrides the default limit of the service
+ * for that call.
+ * <p>
+ * Uses different redis types than {@link RateLimitService}, do not share an
+ * action between them.
+ * 
+ * @author hamster
+ * 
+ */
+public class TokenBucketRateLimitService implements RateLimiter {
+
+  private static final LuaScript GCRA_SCRIPT = new LuaScript("gcra.lua");
+  private static final LuaScript TOKEN_BUCKET_SCRIPT = new LuaScript("token-bucket.lua");
+  private static final String ADD = "add";
+  private static final String COUNT = "count";
+  private static final String ADD_AND_COUNT = "addAndCount";
+  private static final String TRY_ACQUIRE = "tryAcquire";
+  private static final String BATCH = "batch";
+
+  private String namespace;
+  private String action;
+  private ShardedPool shards;
+  private double limit;
+  private int window;
+  private TokenBucketAlgorithm algorithm = TokenBucketAlgorithm.GCRA;
+  private RateLimitMetrics metrics = RateLimitMetrics.NONE;
+  private Clock clock = Clock.systemUTC();
+
+  private SubjectKeyGenerator subjectKeyGenerator = new SubjectKeyGenerator();
+
+  /***
+   * 
+   * @param pool
+   *          -redis pool to be used
+   * @param namespace
+   *          - used to create redis key, might be null
+   * @param action
+   *          - required, used to create redis key
+   * @param limit
+   *          - tps at which the hits drain, used by every call but
+   *          tryAcquire
+   * @param window
+   *          - in seconds, limit * window hits may be pending
+   */
+  public TokenBucketRateLimitService(JedisPool pool, String namespace, String action, double limit, int window) {
+    this(new ShardedPool(pool), namespace, action, limit, window);
+  }
+
+  /***
+   * @see #TokenBucketRateLimitService(JedisPool, String, String, double, int)
+   * @param shards
+   *          - redis servers the subjects are distributed over
+   * @param namespace
+   * @param action
+   * @param limit
+   * @param window
+   */
+  public TokenBucketRateLimitService(ShardedPool shards, String namespace, String action, double limit, int window) {
+    checkLimit(limit, window);
+    this.shards = shards;
+    this.namespace = namespace;
+    this.action = action;
+    this.limit = limit;
+    this.window = window;
+  }
+
+  /***
+   * Sets the stored state, {@link TokenBucketAlgorithm#GCRA} by default.
+   * Subjects stored with the other algorithm are not converted.
+   * 
+   * @param algorithm
+   */
+  public void setAlgorithm(TokenBucketAlgorithm algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  public TokenBucketAlgorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /***
+   * Sets the hook notified about every call, {@link RateLimitMetrics#NONE} by
+   * default.
+   * 
+   * @param metrics
+   */
+  public void setMetrics(RateLimitMetrics metrics) {
+    this.metrics = metrics == null ? RateLimitMetrics.NONE : metrics;
+  }
+
+  public RateLimitMetrics getMetrics() {
+    return metrics;
+  }
+
+  /***
+   * Sets the clock giving the time of the calls without a time argument,
+   * {@link Clock#systemUTC()} by default. See {@link RedisClock} for a clock
+   * shared by all nodes.
+   * 
+   * @param clock
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+
+  /***
+   * Sets how the subject keys are built, e.g. with hash tags for a
+   * {@link ShardedPool}.
+   * 
+   * @param subjectKeyGenerator
+   */
+  public void setSubjectKeyGenerator(SubjectKeyGenerator subjectKeyGenerator) {
+    this.subjectKeyGenerator = subjectKeyGenerator;
+  }
+
+  /***
+   * Records a hit for every subject in a single pipeline of scripts.
+   */
+  public void addAll(long time, Set<String> subjects) {
+    batch(time, new ArrayList<String>(subjects), 1);
+  }
+
+  /***
+   * Records a hit, also when the subject is over the limit.
+   */
+  public void add(long time, String subject) {
+    eval(ADD, time, subject, limit, 1, false);
+  }
+
+  public CountResult count(long time, String subject) {
+    return countResult(level(eval(COUNT, time, subject, limit, 0, false)));
+  }
+
+  public CountResult addAndCount(long time, String subject) {
+    return countResult(level(eval(ADD_AND_COUNT, time, subject, limit, 1, false)));
+  }
+
+  /***
+   * Counts many subjects in a single pipeline of scripts.
+   */
+  public Map<String, CountResult> countAll(long time, Collection<String> subjects) {
+    final List<String> list = new ArrayList<String>(new LinkedHashSet<String>(subjects));
+    final List<Object> replies = batch(time, list, 0);
+    final Map<String, CountResult> map = new LinkedHashMap<String, CountResult>();
+    for (int i = 0; i < list.size(); i++) {
+      map.put(list.get(i), countResult(level(replies.get(i))));
+    }
+    return map;
+  }
+
+  public Map<String, Tps> tpsAll(Collection<String> subjects) {
+    final List<String> list = new ArrayList<String>(new LinkedHashSet<String>(subjects));
+    final List<Object> replies = batch(clock.millis(), list, 0);
+    final Map<String, Tps> map = new LinkedHashMap<String, Tps>();
+    for (int i = 0; i < list.size(); i++) {
+      map.put(list.get(i), tps(level(replies.get(i))));
+    }
+    return map;
+  }
+
+  public Tps tps(String subject) {
+    return tps(level(eval(COUNT, clock.millis(), subject, limit, 0, false)));
+  }
+
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(clock.millis(), subject, limit, rule);
+  }
+
+  /***
+   * Records the hit only if it fits in limit * window pending hits. The rule
+   * is ignored, see {@link TokenBucketRateLimitService}.
+   */
+  public AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule) {
+    checkLimit(limit, window);
+    final List<Object> r = list(eval(TRY_ACQUIRE, time, subject, limit, 1, true));
+    final boolean allowed = "1".equals(r.get(0));
+    metrics.decision(action, allowed);
+    return new AcquireResult(allowed, Long.parseLong((String) r.get(1)), tps(level(r)));
+  }
+
+  private Object eval(String operation, long time, String subject, double limit, int hits, boolean conditional) {
+    final long start = System.nanoTime();
+    final String subjectKey = subjectKeyGenerator.getKeyForSubject(namespace, action, subject);
+    final JedisPool pool = shards.getPool(subjectKey);
+    final Jedis j = getResource(pool);
+    try {
+      return script().eval(j, Collections.singletonList(subjectKey), args(time, limit, hits, conditional));
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(operation, System.nanoTime() - start, 1);
+    }
+  }
+
+  private List<Object> batch(long time, List<String> subjects, int hits) {
+    if (subjects.isEmpty()) {
+      return new ArrayList<Object>();
+    }
+    final List<String> keys = new ArrayList<String>(subjects.size());
+    for (String subject : subjects) {
+      keys.add(subjectKeyGenerator.getKeyForSubject(namespace, action, subject));
+    }
+    final List<String> args = args(time, limit, hits, false);
+    return shards.forEachShard(keys.size(), new ShardedPool.ShardBatch<Object>() {
+
+      @Override
+      String key(int index) {
+        return keys.get(index);
+      }
+
+      @Override
+      List<Object> execute(JedisPool pool, List<Integer> indexes) {
+        final long start = System.nanoTime();
+        final List<String> shardKeys = new ArrayList<String>(indexes.size());
+        for (int i : indexes) {
+          shardKeys.add(keys.get(i));
+        }
+        final Jedis j = getResource(pool);
+        try {
+          return script().evalAll(j, shardKeys, Collections.nCopies(shardKeys.size(), args));
+        } catch (JedisConnectionException ex) {
+          ShardedPool.disconnect(j);
+          throw ex;
+        } finally {
+          pool.returnResource(j);
+          metrics.record(BATCH, System.nanoTime() - start, shardKeys.size());
+        }
+      }
+    });
+  }
+
+  private Jedis getResource(JedisPool pool) {
+    final long start = System.nanoTime();
+    final Jedis j = pool.getResource();
+    metrics.poolWait(System.nanoTime() - start);
+    return j;
+  }
+
+  private LuaScript script() {
+    return algorithm == TokenBucketAlgorithm.TOKEN_BUCKET ? TOKEN_BUCKET_SCRIPT : GCRA_SCRIPT;
+  }
+
+  /***
+   * Arguments expected by gcra.lua and token-bucket.lua. Times are in whole
+   * microseconds, the interval is rounded down so that limit * window hits
+   * always fit in the window.
+   */
+  private List<String> args(long time, double limit, int hits, boolean conditional) {
+    final long interval = Math.max(1, (long) (1000000 / limit));
+    return Arrays.asList(String.valueOf(time * 1000), String.valueOf(interval), String.valueOf(window * 1000000l), String.valueOf(hits),
+        conditional ? "1" : "0");
+  }
+
+  private double level(Object reply) {
+    return Double.parseDouble((String) list(reply).get(2));
+  }
+
+  /***
+   * Pending hits as a single full window bucket.
+   */
+  private CountResult countResult(double level) {
+    final int count = (int) Math.ceil(level);
+    return new CountResult(count, 0, count, count);
+  }
+
+  private Tps tps(double level) {
+    final double tps = level / window;
+    return new Tps(tps, tps, tps, tps, countResult(level));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Object> list(Object reply) {
+    return (List<Object>) reply;
+  }
+
+  private static void checkLimit(double limit, int window) {
+    if (limit * window < 1) {
+      throw new IllegalArgumentException("limit * window must allow at least one hit, got " + limit + " * " + window);
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * Heavy hitters of every action, without scanning the subject keys. The
+ * limiters offer their hits (see {@link RateLimitService#setTopSubjects}) to a
+ * {@link SpaceSaving} summary of capacity subjects per action, and a
+ * background thread merges the summaries into one sorted set per action and
+ * period every flushInterval milliseconds. The sorted set is trimmed to twice
+ * the capacity and expires after two periods.
+ * <p>
+ * {@link #topSubjects(String, int)} reads the sorted sets of the current and
+ * the previous period, so the hits of the last one to two periods of every
+ * node are ranked. Counts are upper bounds: a subject entering a full summary
+ * inherits the count of the subject it replaces.
+ *
+ * @author hamster
+ *
+ */
+public class TopSubjects {
+
+  private static final String TOP_SUBJECT = "~top:";
+  private static final String FLUSH = "topSubjectsFlush";
+  private static final String TOP = "topSubjects";
+
+  private final ShardedPool shards;
+  private final String namespace;
+  private final int capacity;
+  private final int period;
+  private final ConcurrentMap<String, SpaceSaving> summaries = new ConcurrentHashMap<String, SpaceSaving>();
+  private final ScheduledExecutorService scheduler;
+  private SubjectKeyGenerator subjectKeyGenerator = new SubjectKeyGenerator();
+  private RateLimitMetrics metrics = RateLimitMetrics.NONE;
+  private Clock clock = Clock.systemUTC();
+
+  /***
+   *
+   * @param shards
+   *          - redis servers the sorted sets are distributed over
+   * @param namespace
+   *          - used to create redis key, might be null
+   * @param capacity
+   *          - subjects counted per action on every node
+   * @param period
+   *          - in seconds, length of the sorted sets
+   * @param flushInterval
+   *          - in milliseconds, how often the summaries are merged, 0 to only
+   *          merge on {@link #flush()}
+   */
+  public TopSubjects(ShardedPool shards, String namespace, int capacity, int period, long flushInterval) {
+    this.shards = shards;
+    this.namespace = namespace;
+    this.capacity = capacity;
+    this.period = period;
+    if (flushInterval > 0) {
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "ratelimit-top-subjects");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.scheduler.scheduleWithFixedDelay(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            flush();
+          } catch (RuntimeException ex) {
+            // counts stay in the summaries until the next flush
+          }
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    } else {
+      this.scheduler = null;
+    }
+  }
+
+  /***
+   * @see #TopSubjects(ShardedPool, String, int, int, long)
+   */
+  public TopSubjects(JedisPool pool, String namespace, int capacity, int period, long flushInterval) {
+    this(new ShardedPool(pool), namespace, capacity, period, flushInterval);
+  }
+
+  /***
+   * Sets the hook notified about every merge and read,
+   * {@link RateLimitMetrics#NONE} by default.
+   *
+   * @param metrics
+   */
+  public void setMetrics(RateLimitMetrics metrics) {
+    this.metrics = metrics == null ? RateLimitMetrics.NONE : metrics;
+  }
+
+  /***
+   * Sets the clock selecting the period, {@link Clock#systemUTC()} by default.
+   *
+   * @param clock
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /***
+   * Sets how the keys of the sorted sets are built, e.g. with hash tags for a
+   * {@link ShardedPool}.
+   *
+   * @param subjectKeyGenerator
+   */
+  public void setSubjectKeyGenerator(SubjectKeyGenerator subjectKeyGenerator) {
+    this.subjectKeyGenerator = subjectKeyGenerator;
+  }
+
+  /***
+   * Counts hits of the subject, called by the limiters on every write.
+   *
+   * @param action
+   * @param subject
+   * @param hits
+   */
+  public void offer(String action, String subject, long hits) {
+    SpaceSaving summary = summaries.get(action);
+    if (summary == null) {
+      summary = new SpaceSaving(capacity);
+      final SpaceSaving existing = summaries.putIfAbsent(action, summary);
+      if (existing != null) {
+        summary = existing;
+      }
+    }
+    summary.offer(subject, hits);
+  }
+
+  /***
+   * Gets the subjects of the action with the most hits over the last one to
+   * two periods, as merged by all nodes so far.
+   *
+   * @param action
+   * @param k
+   *          - max number of subjects
+   * @return hits by subject, most hits first
+   */
+  public Map<String, Long> topSubjects(String action, int k) {
+    final long current = periodIndex(clock.millis());
+    final Map<String, Long> hits = new HashMap<String, Long>();
+    for (long p = current - 1; p <= current; p++) {
+      final String key = key(action, p);
+      final JedisPool pool = shards.getPool(key);
+      final long start = System.nanoTime();
+      final Jedis j = pool.getResource();
+      try {
+        for (Tuple t : j.zrevrangeWithScores(key, 0, -1)) {
+          final Long h = hits.get(t.getElement());
+          hits.put(t.getElement(), (h == null ? 0 : h) + (long) t.getScore());
+        }
+      } catch (JedisConnectionException ex) {
+        ShardedPool.disconnect(j);
+        throw ex;
+      } finally {
+        pool.returnResource(j);
+        metrics.record(TOP, System.nanoTime() - start, 1);
+      }
+    }
+    final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(hits.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+
+      @Override
+      public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+        return Long.compare(b.getValue(), a.getValue());
+      }
+    });
+    final Map<String, Long> top = new LinkedHashMap<String, Long>();
+    for (Map.Entry<String, Long> e : entries.subList(0, Math.min(k, entries.size()))) {
+      top.put(e.getKey(), e.getValue());
+    }
+    return top;
+  }
+
+  /***
+   * Merges the summary of every action into the sorted set of the current
+   * period, one pipeline per action, and starts new summaries. Called
+   * periodically by the background thread.
+   */
+  public void flush() {
+    final long index = periodIndex(clock.millis());
+    for (Map.Entry<String, SpaceSaving> e : summaries.entrySet()) {
+      final Map<String, Long> counts = e.getValue().drain();
+      if (counts.isEmpty()) {
+        continue;
+      }
+      try {
+        merge(key(e.getKey(), index), counts);
+      } catch (RuntimeException ex) {
+        // put the counts back, they are merged with the next flush
+        for (Map.Entry<String, Long> c : counts.entrySet()) {
+          e.getValue().offer(c.getKey(), c.getValue());
+        }
+        throw ex;
+      }
+    }
+  }
+
+  /***
+   * Merges the remaining counts and stops the background thread.
+   */
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+    flush();
+  }
+
+  private void merge(String key, Map<String, Long> counts) {
+    final JedisPool pool = shards.getPool(key);
+    final long start = System.nanoTime();
+    final Jedis j = pool.getResource();
+    try {
+      final Pipeline p = j.pipelined();
+      for (Map.Entry<String, Long> c : counts.entrySet()) {
+        p.zincrby(key, c.getValue(), c.getKey());
+      }
+      p.zremrangeByRank(key, 0, -2 * capacity - 1);
+      p.expire(key, 2 * period);
+      p.sync();
+    } catch (JedisConnectionException ex) {
+      ShardedPool.disconnect(j);
+      throw ex;
+    } finally {
+      pool.returnResource(j);
+      metrics.record(FLUSH, System.nanoTime() - start, counts.size() + 2);
+    }
+  }
+
+  private long periodIndex(long time) {
+    return time / 1000 / period;
+  }
+
+  private String key(String action, long periodIndex) {
+    return subjectKeyGenerator.getKeyForSubject(namespace, action, TOP_SUBJECT + periodIndex);
+  }
+}
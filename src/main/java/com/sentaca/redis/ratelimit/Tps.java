@@ -29,6 +29,58 @@ public class Tps {
     this.counters = counters;
   }
 
+  /***
+   * Calculates the rates from the counters of the tps window.
+   * 
+   * @param cr
+   * @param tpsInterval
+   *          - in seconds
+   * @param bucketInterval
+   *          - in seconds
+   * @return
+   */
+  static Tps calculate(CountResult cr, int tpsInterval, int bucketInterval) {
+    final int count = cr.getCount();
+    final int numberOfEmptyBuckets = cr.getNumberOfEmptyBuckets();
+    final int peakCount = cr.getPeakCount();
+    final int latestBucketCount = cr.getLatestBucketCount();
+    return new Tps(rate(ThrottleRule.BY_AVERAGE_TPS, count, numberOfEmptyBuckets, peakCount, latestBucketCount, tpsInterval, bucketInterval),
+        rate(ThrottleRule.BY_NO_EMPTY_BUCKETS_TPS, count, numberOfEmptyBuckets, peakCount, latestBucketCount, tpsInterval, bucketInterval),
+        rate(ThrottleRule.BY_PEAK_TPS, count, numberOfEmptyBuckets, peakCount, latestBucketCount, tpsInterval, bucketInterval),
+        rate(ThrottleRule.BY_LATEST_BUCKET_TPS, count, numberOfEmptyBuckets, peakCount, latestBucketCount, tpsInterval, bucketInterval), cr);
+  }
+
+  /***
+   * Calculates only the rate selected by the rule, without allocating. The
+   * counters the rule does not use are ignored.
+   * 
+   * @param rule
+   * @param count
+   * @param numberOfEmptyBuckets
+   * @param peakCount
+   * @param latestBucketCount
+   * @param tpsInterval
+   *          - in seconds
+   * @param bucketInterval
+   *          - in seconds
+   * @return
+   */
+  static double rate(ThrottleRule rule, int count, int numberOfEmptyBuckets, int peakCount, int latestBucketCount, int tpsInterval,
+      int bucketInterval) {
+    switch (rule) {
+    case BY_NO_EMPTY_BUCKETS_TPS:
+      final double factor = (double) (tpsInterval - numberOfEmptyBuckets * bucketInterval);
+      return factor == 0 ? 0 : count / factor;
+    case BY_PEAK_TPS:
+      return ((double) peakCount) / ((double) bucketInterval);
+    case BY_LATEST_BUCKET_TPS:
+      return ((double) latestBucketCount) / ((double) bucketInterval);
+    default:
+    case BY_AVERAGE_TPS:
+      return (double) count / (double) tpsInterval;
+    }
+  }
+
   /***
    * Gets the tps accross the tps window.
    * 
@@ -66,6 +118,26 @@ public class Tps {
     return latestBucketTps;
   }
 
+  /***
+   * Gets the rate selected by the throttle rule.
+   * 
+   * @param rule
+   * @return
+   */
+  public double get(ThrottleRule rule) {
+    switch (rule) {
+    case BY_NO_EMPTY_BUCKETS_TPS:
+      return tpsNoEmptyBuckets;
+    case BY_PEAK_TPS:
+      return peakTps;
+    case BY_LATEST_BUCKET_TPS:
+      return latestBucketTps;
+    default:
+    case BY_AVERAGE_TPS:
+      return tps;
+    }
+  }
+
   /***
    * Gets the counters that were used to calculate the tps rates.
    * 
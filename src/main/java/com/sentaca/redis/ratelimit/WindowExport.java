@@ -0,0 +1,68 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import redis.clients.jedis.JedisPool;
+
+/***
+ * Iterator of {@link RateLimitService#export(long, int)}: walks the shards one
+ * after the other and fetches the next batch of a shard only when the
+ * previous one was consumed, so a slow consumer slows down the export instead
+ * of buffering it.
+ * 
+ * @author hamster
+ * 
+ */
+class WindowExport implements Iterator<SubjectWindow> {
+
+  private static final String START = "0";
+
+  private final RateLimitService service;
+  private final long time;
+  private final int count;
+  private final List<JedisPool> pools;
+  private int shard;
+  private String cursor = START;
+  private List<SubjectWindow> batch = new ArrayList<SubjectWindow>();
+  private int position;
+
+  WindowExport(RateLimitService service, long time, int count) {
+    this.service = service;
+    this.time = time;
+    this.count = count;
+    this.pools = service.getShards().getPools();
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (position == batch.size()) {
+      if (shard == pools.size()) {
+        return false;
+      }
+      batch = new ArrayList<SubjectWindow>(count);
+      position = 0;
+      cursor = service.exportBatch(pools.get(shard), cursor, time, count, batch);
+      if (START.equals(cursor)) {
+        // SCAN is done with this shard
+        shard++;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public SubjectWindow next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return batch.get(position++);
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
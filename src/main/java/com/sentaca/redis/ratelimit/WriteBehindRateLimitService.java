@@ -0,0 +1,448 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * Write-behind {@link RateLimiter} for hot subjects. Hits are accumulated in
+ * striped local counters per subject and bucket, and a background thread
+ * flushes them to the wrapped {@link RateLimitService} in one batch every
+ * maxStaleness milliseconds. The flush also brings back the remote window of
+ * every flushed subject.
+ * <p>
+ * Reads combine the last fetched remote window with the hits that were not
+ * flushed yet. The remote window is fetched again when it is older than
+ * maxStaleness or belongs to a previous bucket, so hits from other nodes show
+ * up after at most maxStaleness milliseconds. Unflushed hits are known only by
+ * bucket, so peak and empty bucket counts are exact for the latest bucket and
+ * approximate for the older ones.
+ * <p>
+ * All times not given by the caller come from the clock of the wrapped
+ * service, see {@link RateLimitService#setClock(java.time.Clock)}.
+ */
+public class WriteBehindRateLimitService implements RateLimiter {
+
+  private static final long CLOSE_TIMEOUT = 5000;
+
+  private final RateLimitService service;
+  private final long maxStaleness;
+  private final int bucketsUsedForTps;
+  private final ConcurrentMap<String, Subject> subjects = new ConcurrentHashMap<String, Subject>();
+  private final ScheduledExecutorService scheduler;
+
+  /***
+   *
+   * @param service
+   *          - remote limiter the hits are flushed to
+   * @param maxStaleness
+   *          - in milliseconds, flush interval and max age of the remote
+   *          window used for reads
+   */
+  public WriteBehindRateLimitService(RateLimitService service, long maxStaleness) {
+    this.service = service;
+    this.maxStaleness = maxStaleness;
+    this.bucketsUsedForTps = service.getTpsInterval() / service.getBucketInterval();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "ratelimit-write-behind");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.scheduler.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException ex) {
+          // hits stay in the local counters until the next flush
+        }
+      }
+    }, maxStaleness, maxStaleness, TimeUnit.MILLISECONDS);
+  }
+
+  public void addAll(long time, Set<String> subjects) {
+    for (String subject : subjects) {
+      add(time, subject);
+    }
+  }
+
+  public void add(long time, String subject) {
+    final long index = service.getBucketIndex(time);
+    while (!subject(subject).add(index, time)) {
+      // evicted meanwhile, retry with a new subject
+    }
+  }
+
+  public CountResult count(long time, String subject) {
+    final Subject s = subject(subject);
+    final long index = service.getBucketIndex(time);
+    return s.combine(remote(s, time, subject, index).counters, index);
+  }
+
+  public CountResult addAndCount(long time, String subject) {
+    add(time, subject);
+    return count(time, subject);
+  }
+
+  public Map<String, CountResult> countAll(long time, Collection<String> subjects) {
+    final Map<String, CountResult> map = new LinkedHashMap<String, CountResult>();
+    for (String subject : subjects) {
+      map.put(subject, count(time, subject));
+    }
+    return map;
+  }
+
+  public Map<String, Tps> tpsAll(Collection<String> subjects) {
+    final Map<String, Tps> map = new LinkedHashMap<String, Tps>();
+    for (Map.Entry<String, CountResult> e : countAll(now(), subjects).entrySet()) {
+      map.put(e.getKey(), tps(e.getValue()));
+    }
+    return map;
+  }
+
+  public Tps tps(String subject) {
+    return tps(count(now(), subject));
+  }
+
+  public AcquireResult tryAcquire(String subject, double limit, ThrottleRule rule) {
+    return tryAcquire(now(), subject, limit, rule);
+  }
+
+  /***
+   * Decides on the combined local and remote window, so concurrent hits on
+   * other nodes are seen only after they are flushed. Decisions on the same
+   * subject are serialized, so the local hits never overshoot the limit. The
+   * retry-after of a denied hit is the time until the next bucket.
+   */
+  public AcquireResult tryAcquire(long time, String subject, double limit, ThrottleRule rule) {
+    final long index = service.getBucketIndex(time);
+    while (true) {
+      final Subject s = subject(subject);
+      // fetched outside the lock, a slow redis must not hold back the others
+      final Remote remote = remote(s, time, subject, index);
+      synchronized (s) {
+        if (s.evicted) {
+          continue;
+        }
+        final CountResult cr = s.combine(remote.counters, index);
+        final int latest = cr.getLatestBucketCount() + 1;
+        final int empty = cr.getNumberOfEmptyBuckets() - (cr.getLatestBucketCount() == 0 ? 1 : 0);
+        final CountResult withHit = new CountResult(cr.getCount() + 1, empty, Math.max(cr.getPeakCount(), latest), latest);
+        if (tps(withHit).get(rule) <= limit) {
+          s.add(index, time);
+          return new AcquireResult(true, 0, tps(withHit));
+        }
+        final long bucketMillis = service.getBucketInterval() * 1000l;
+        return new AcquireResult(false, bucketMillis - time % bucketMillis, tps(cr));
+      }
+    }
+  }
+
+  /***
+   * Sends the accumulated hits to redis in one batch. Called periodically by
+   * the background thread.
+   */
+  public void flush() {
+    final List<Delta> deltas = new ArrayList<Delta>();
+    final List<String> names = new ArrayList<String>();
+    final List<Subject> owners = new ArrayList<Subject>();
+    final List<Long> flushed = new ArrayList<Long>();
+    final long now = now();
+
+    for (Iterator<Map.Entry<String, Subject>> it = subjects.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<String, Subject> entry = it.next();
+      final Subject s = entry.getValue();
+      final int before = deltas.size();
+      s.drain(deltas, flushed);
+      // nothing left to flush and not hit for the whole window
+      if (before == deltas.size() && s.retired.isEmpty() && now - s.lastAccess > maxStaleness + service.getTpsInterval() * 1000l) {
+        s.evict();
+        it.remove();
+        // hits that got in before the subject was marked
+        s.drain(deltas, flushed);
+      }
+      for (int i = before; i < deltas.size(); i++) {
+        names.add(entry.getKey());
+        owners.add(s);
+      }
+    }
+    if (deltas.isEmpty()) {
+      return;
+    }
+
+    final long time = service.getClock().millis();
+    final long[] times = new long[deltas.size()];
+    final int[] hits = new int[deltas.size()];
+    for (int i = 0; i < deltas.size(); i++) {
+      times[i] = deltas.get(i).time;
+      hits[i] = flushed.get(i).intValue();
+    }
+    final List<CountResult> results;
+    try {
+      // older buckets must not clear the buckets ahead of them, other nodes
+      // may already write to them
+      results = service.backfill(time, times, names, hits, true);
+    } catch (RuntimeException ex) {
+      // put the hits back, they are sent with the next flush
+      for (int i = 0; i < deltas.size(); i++) {
+        deltas.get(i).hits.add(hits[i]);
+        // the hits of an evicted subject go to its successor
+        final Subject s = owners.get(i).evicted ? subject(names.get(i)) : owners.get(i);
+        s.requeue(deltas.get(i));
+      }
+      throw ex;
+    }
+    final long index = service.getBucketIndex(time);
+    for (int i = 0; i < deltas.size(); i++) {
+      final Delta d = deltas.get(i);
+      final Subject s = owners.get(i);
+      if (s.current == d && d.index == index) {
+        s.remote = new Remote(index, results.get(i), now);
+      }
+    }
+  }
+
+  /***
+   * Flushes the remaining hits and stops the background thread.
+   */
+  public void close() {
+    scheduler.shutdown();
+    try {
+      // a scheduled flush still running must not interleave with the last one
+      if (!scheduler.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        throw new JedisConnectionException("Flush still running after " + CLOSE_TIMEOUT + " ms");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new JedisConnectionException(ex);
+    }
+    flush();
+  }
+
+  private long now() {
+    return service.getClock().millis();
+  }
+
+  private Tps tps(CountResult cr) {
+    return Tps.calculate(cr, service.getTpsInterval(), service.getBucketInterval());
+  }
+
+  /***
+   * Gets the remote window of the subject, fetched again when it is stale.
+   */
+  private Remote remote(Subject s, long time, String subject, long index) {
+    Remote remote = s.remote;
+    final long now = now();
+    if (remote == null || remote.index != index || now - remote.fetched > maxStaleness) {
+      remote = new Remote(index, service.count(time, subject), now);
+      s.remote = remote;
+    }
+    return remote;
+  }
+
+  /***
+   * Gets the subject, a new one when it was evicted.
+   */
+  private Subject subject(String subject) {
+    while (true) {
+      Subject s = subjects.get(subject);
+      if (s == null) {
+        s = new Subject(now());
+        final Subject existing = subjects.putIfAbsent(subject, s);
+        if (existing == null) {
+          return s;
+        }
+        s = existing;
+      }
+      if (!s.evicted) {
+        return s;
+      }
+      // marked by the flush that did not remove it yet
+      subjects.remove(subject, s);
+    }
+  }
+
+  private static class Remote {
+    private final long index;
+    private final long fetched;
+    private final CountResult counters;
+
+    Remote(long index, CountResult counters, long fetched) {
+      this.index = index;
+      this.counters = counters;
+      this.fetched = fetched;
+    }
+  }
+
+  /***
+   * Hits of one bucket not flushed yet.
+   */
+  private static class Delta {
+    private final long index;
+    private final long time;
+    private final LongAdder hits = new LongAdder();
+    // retired deltas are drained twice to catch increments racing the rotation
+    private boolean drained;
+
+    Delta(long index, long time) {
+      this.index = index;
+      this.time = time;
+    }
+  }
+
+  private class Subject {
+    private volatile Delta current;
+    private final Queue<Delta> retired = new ConcurrentLinkedQueue<Delta>();
+    private volatile Remote remote;
+    private volatile long lastAccess;
+    private volatile boolean evicted;
+    // callers inside add, the flush waits for them after marking the subject
+    private final LongAdder adding = new LongAdder();
+
+    Subject(long now) {
+      this.lastAccess = now;
+    }
+
+    /***
+     * @return false if the subject was evicted, nothing is added then
+     */
+    boolean add(long index, long time) {
+      adding.increment();
+      try {
+        if (evicted) {
+          return false;
+        }
+        Delta d = current;
+        if (d == null || d.index != index) {
+          d = rotate(index, time);
+        }
+        d.hits.increment();
+        lastAccess = now();
+        return true;
+      } finally {
+        adding.decrement();
+      }
+    }
+
+    /***
+     * Marks the subject under its lock, so no decision of tryAcquire is half
+     * done, and waits for the callers of add that did not see the mark. Their
+     * hits are in the deltas once this returns.
+     */
+    void evict() {
+      synchronized (this) {
+        evicted = true;
+      }
+      while (adding.sum() != 0) {
+        Thread.yield();
+      }
+    }
+
+    private synchronized Delta rotate(long index, long time) {
+      Delta d = current;
+      if (d == null || d.index < index) {
+        if (d != null) {
+          retired.add(d);
+        }
+        d = new Delta(index, time);
+        current = d;
+        return d;
+      }
+      if (d.index == index) {
+        return d;
+      }
+      // late hit for an older bucket
+      for (Delta r : retired) {
+        if (r.index == index) {
+          return r;
+        }
+      }
+      d = new Delta(index, time);
+      retired.add(d);
+      return d;
+    }
+
+    /***
+     * Puts back a delta whose flush failed and which was already removed from
+     * the retired ones, so its hits are sent with the next flush.
+     */
+    synchronized void requeue(Delta d) {
+      if (d != current && !retired.contains(d)) {
+        d.drained = false;
+        retired.add(d);
+      }
+    }
+
+    /***
+     * Oldest buckets first.
+     */
+    void drain(List<Delta> deltas, List<Long> flushed) {
+      final Delta d = current;
+      for (Iterator<Delta> it = retired.iterator(); it.hasNext();) {
+        final Delta r = it.next();
+        drain(r, deltas, flushed);
+        if (r.drained) {
+          it.remove();
+        }
+        r.drained = true;
+      }
+      if (d != null) {
+        drain(d, deltas, flushed);
+      }
+    }
+
+    private void drain(Delta d, List<Delta> deltas, List<Long> flushed) {
+      final long hits = d.hits.sumThenReset();
+      if (hits > 0) {
+        deltas.add(d);
+        flushed.add(hits);
+      }
+    }
+
+    CountResult combine(CountResult cr, long index) {
+      long latest = 0;
+      long older = 0;
+      final Delta d = current;
+      if (d != null) {
+        if (d.index == index) {
+          latest += d.hits.sum();
+        } else if (d.index < index && index - d.index < bucketsUsedForTps) {
+          older += d.hits.sum();
+        }
+      }
+      for (Delta r : retired) {
+        if (r.index == index) {
+          latest += r.hits.sum();
+        } else if (r.index < index && index - r.index < bucketsUsedForTps) {
+          older += r.hits.sum();
+        }
+      }
+      if (latest == 0 && older == 0) {
+        return cr;
+      }
+      final int latestBucketCount = cr.getLatestBucketCount() + (int) latest;
+      final int empty = cr.getNumberOfEmptyBuckets() - (cr.getLatestBucketCount() == 0 && latest > 0 ? 1 : 0);
+      return new CountResult(cr.getCount() + (int) (latest + older), empty, Math.max(cr.getPeakCount(), latestBucketCount), latestBucketCount);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+-- Evaluates the throttle rule on the tps window and records the hit only when
+-- it is allowed, see RateLimitService#tryAcquire.
+--
+-- ARGV[7] - bucket interval in seconds
+-- ARGV[8] - tps interval in seconds
+-- ARGV[9] - milliseconds until the next bucket starts
+-- ARGV[10] - throttle rule, one of ThrottleRule names
+-- ARGV[11] - allowed tps
+--
+-- Returns {allowed, retryAfter, sum, numberOfEmptyBuckets, peakCount,
+-- latestBucketCount} as strings, counters include the hit when allowed.
+local bucketInterval = tonumber(ARGV[7])
+local tpsInterval = tonumber(ARGV[8])
+local untilNextBucket = tonumber(ARGV[9])
+local rule = ARGV[10]
+local limit = tonumber(ARGV[11])
+if now then
+  untilNextBucket = bucketInterval * 1000 - now % (bucketInterval * 1000)
+end
+
+prepare()
+
+-- counts[1] is the current bucket, counts[bucketsUsedForTps] the oldest one
+local counts = {}
+for i = 0, bucketsUsedForTps - 1 do
+  counts[i + 1] = get(i)
+end
+
+-- rate of the window where the current bucket holds latest hits and the
+-- previous buckets are counts[from..to]
+local function rate(latest, from, to)
+  local sum = latest
+  local nonEmpty = 0
+  local peak = latest
+  if latest > 0 then
+    nonEmpty = 1
+  end
+  for i = from, to do
+    local c = counts[i]
+    sum = sum + c
+    if c > 0 then
+      nonEmpty = nonEmpty + 1
+    end
+    if c > peak then
+      peak = c
+    end
+  end
+  if rule == 'BY_NO_EMPTY_BUCKETS_TPS' then
+    local factor = tpsInterval - (bucketsUsedForTps - nonEmpty) * bucketInterval
+    if factor == 0 then
+      return 0
+    end
+    return sum / factor
+  elseif rule == 'BY_PEAK_TPS' then
+    return peak / bucketInterval
+  elseif rule == 'BY_LATEST_BUCKET_TPS' then
+    return latest / bucketInterval
+  end
+  return sum / tpsInterval
+end
+
+local allowed = 0
+local retryAfter = 0
+if rate(counts[1] + 1, 2, bucketsUsedForTps) <= limit then
+  allowed = 1
+  counts[1] = counts[1] + 1
+  record(1)
+else
+  -- find the first bucket boundary after which the hit would be allowed: the
+  -- hit lands in a fresh bucket and the oldest buckets drop out one by one
+  local k = 1
+  while k < bucketsUsedForTps and rate(1, 1, bucketsUsedForTps - k) > limit do
+    k = k + 1
+  end
+  retryAfter = untilNextBucket + (k - 1) * bucketInterval * 1000
+end
+
+local sum = 0
+local empty = 0
+local peak = 0
+for i = 1, bucketsUsedForTps do
+  local c = counts[i]
+  sum = sum + c
+  if c == 0 then
+    empty = empty + 1
+  end
+  if c > peak then
+    peak = c
+  end
+end
+
+return {tostring(allowed), tostring(retryAfter), tostring(sum), tostring(empty), tostring(peak), tostring(counts[1])}
@@ -0,0 +1,37 @@
+-- Increments and sums the tps window, see RateLimitService#add and
+-- RateLimitService#count.
+--
+-- ARGV[7] - increment, 0 for read only calls
+-- ARGV[8] - optional, buckets before the current one the increment belongs
+--           to, for hits recorded late (see RateLimitService#backfill); the
+--           buckets ahead are still cleared relative to the current one
+--
+-- Returns {sum, numberOfEmptyBuckets, peakCount, latestBucketCount} as strings,
+-- jedis only decodes multi bulk script replies made of bulk strings.
+local increment = tonumber(ARGV[7])
+local late = tonumber(ARGV[8] or '0')
+
+prepare()
+if increment > 0 and late < bucketsUsedForTps then
+  record(increment, late)
+end
+
+local sum = 0
+local empty = 0
+local peak = 0
+local latest = 0
+for i = 0, bucketsUsedForTps - 1 do
+  local c = get(i)
+  sum = sum + c
+  if c == 0 then
+    empty = empty + 1
+  end
+  if c > peak then
+    peak = c
+  end
+  if i == 0 then
+    latest = c
+  end
+end
+
+return {tostring(sum), tostring(empty), tostring(peak), tostring(latest)}
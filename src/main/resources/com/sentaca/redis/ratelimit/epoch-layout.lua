@@ -0,0 +1,44 @@
+-- Fields indexed by the absolute bucket index, stale fields are never read and
+-- only the few that may outlive the key TTL are deleted on write. A hash
+-- written by the ring layout is converted on first touch, the marker field
+-- tells the two formats apart.
+local MARKER = '_epoch'
+
+local function prepare()
+  if redis.call('HEXISTS', key, MARKER) == 1 or redis.call('EXISTS', key) == 0 then
+    return
+  end
+  local values = {}
+  for i = 0, bucketsUsedForTps - 1 do
+    values[i + 1] = redis.call('HGET', key, (bucket - i + bucketCount) % bucketCount)
+  end
+  redis.call('DEL', key)
+  for i = 0, bucketsUsedForTps - 1 do
+    if values[i + 1] then
+      redis.call('HSET', key, index - i, values[i + 1])
+    end
+  end
+  redis.call('HSET', key, MARKER, 1)
+  redis.call('EXPIRE', key, expiry)
+end
+
+-- field of the bucket i buckets before the current one
+local function field(i)
+  return index - i
+end
+
+-- hits of the bucket i buckets before the current one
+local function get(i)
+  return tonumber(redis.call('HGET', key, field(i)) or 0)
+end
+
+local function record(increment, i)
+  redis.call('HINCRBY', key, field(i or 0), increment)
+  local fields = {}
+  for i = 1, bucketsToClear do
+    fields[i] = index - bucketsUsedForTps - i + 1
+  end
+  hdel(fields)
+  redis.call('HSET', key, MARKER, 1)
+  redis.call('EXPIRE', key, expiry)
+end
@@ -0,0 +1,80 @@
+-- Scans one batch of subject keys and reads their tps windows without writing
+-- anything, see RateLimitService#export. The layout of every key is told by
+-- its type, so keys of the ring, epoch and packed layouts can be mixed. Stale
+-- buckets are skipped the same way the layouts skip them, the ring buckets
+-- ahead are not cleared.
+--
+-- ARGV[7] - SCAN cursor
+-- ARGV[8] - SCAN pattern of the subject keys
+-- ARGV[9] - SCAN count, bounds the work of one call
+-- ARGV[10] - length of the key prefix, subjects starting with ~ are internal
+--            keys (sketches, top subjects) and skipped
+--
+-- Returns {nextCursor, key, counts..., key, counts..., ...} as strings, the
+-- bucketsUsedForTps counts of every key oldest bucket first.
+local PACKED_HEADER = 8
+local MARKER = '_epoch'
+local prefixLength = tonumber(ARGV[10])
+
+-- unsigned 32 bit big endian integer at the 1-based byte position, bytes past
+-- the end of the string are zero like for BITFIELD
+local function u32(s, position)
+  local b1, b2, b3, b4 = string.byte(s, position, position + 3)
+  return (((b1 or 0) * 256 + (b2 or 0)) * 256 + (b3 or 0)) * 256 + (b4 or 0)
+end
+
+-- counts of the window, current bucket first
+local function packed(k)
+  local s = redis.call('GET', k)
+  local last = u32(s, 1) * 4294967296 + u32(s, 5)
+  local counts = {}
+  for i = 0, bucketsUsedForTps - 1 do
+    local b = index - i
+    if b > last or b <= last - bucketsUsedForTps then
+      counts[i + 1] = 0
+    else
+      counts[i + 1] = u32(s, PACKED_HEADER + (b % bucketsUsedForTps) * 4 + 1)
+    end
+  end
+  return counts
+end
+
+local function hash(k)
+  local fields = {}
+  local epoch = redis.call('HEXISTS', k, MARKER) == 1
+  for i = 0, bucketsUsedForTps - 1 do
+    if epoch then
+      fields[i + 1] = index - i
+    else
+      fields[i + 1] = (bucket - i + bucketCount) % bucketCount
+    end
+  end
+  local values = redis.call('HMGET', k, unpack(fields))
+  local counts = {}
+  for i = 1, bucketsUsedForTps do
+    counts[i] = tonumber(values[i] or 0)
+  end
+  return counts
+end
+
+local scan = redis.call('SCAN', ARGV[7], 'MATCH', ARGV[8], 'COUNT', ARGV[9])
+local reply = {scan[1]}
+for _, k in ipairs(scan[2]) do
+  if string.sub(k, prefixLength + 1, prefixLength + 1) ~= '~' then
+    local t = redis.call('TYPE', k).ok
+    local counts
+    if t == 'hash' then
+      counts = hash(k)
+    elseif t == 'string' then
+      counts = packed(k)
+    end
+    if counts then
+      reply[#reply + 1] = k
+      for i = bucketsUsedForTps, 1, -1 do
+        reply[#reply + 1] = tostring(counts[i])
+      end
+    end
+  end
+end
+
+return reply
@@ -0,0 +1,41 @@
+-- Generic cell rate algorithm, see TokenBucketRateLimitService. The key holds
+-- only the theoretical arrival time (TAT) of the next hit in microseconds; the
+-- hits not drained yet at the limit rate are (TAT - now) / interval.
+--
+-- KEYS[1] - key of the subject
+-- ARGV[1] - now, in microseconds
+-- ARGV[2] - emission interval, microseconds per hit at the limit rate
+-- ARGV[3] - window in microseconds, the burst is window / interval hits
+-- ARGV[4] - hits to record, 0 for read only calls
+-- ARGV[5] - 1 to record the hits only if they fit in the burst
+--
+-- Times are whole microseconds, exact in lua numbers.
+--
+-- Returns {allowed, retryAfter (ms), level} as strings, level is the number of hits
+-- not drained yet, including the recorded ones.
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+local interval = tonumber(ARGV[2])
+local window = tonumber(ARGV[3])
+local hits = tonumber(ARGV[4])
+local conditional = ARGV[5] == '1'
+
+local tat = tonumber(redis.call('GET', key)) or now
+if tat < now then
+  tat = now
+end
+
+local allowed = 1
+local retryAfter = 0
+local newTat = tat + hits * interval
+if conditional and newTat - now > window then
+  allowed = 0
+  retryAfter = math.ceil((newTat - window - now) / 1000)
+  newTat = tat
+end
+if hits > 0 and allowed == 1 then
+  -- the key is useless once the TAT is in the past
+  redis.call('SET', key, string.format('%d', newTat), 'PX', math.max(1, math.ceil((newTat - now) / 1000)))
+end
+
+return {tostring(allowed), tostring(retryAfter), string.format('%.6f', (newTat - now) / interval)}
@@ -0,0 +1,45 @@
+-- Arguments shared by all bucket layouts, the layout script defines
+-- prepare(), get(i) and record(increment, i) on top of them; record adds to the
+-- bucket i buckets before the current one, the current one when i is nil.
+--
+-- KEYS[1] - subject key, the key of the sketches of the action for
+--           sketch-layout.lua
+-- ARGV[1] - current bucket in the ring, empty to take the time from the redis
+--           server, see RateLimitService#setServerTime
+-- ARGV[2] - number of buckets in the ring
+-- ARGV[3] - number of buckets to clear on each call, the counters of the
+--           subject for sketch-layout.lua
+-- ARGV[4] - number of buckets used for tps
+-- ARGV[5] - subject expiry in seconds
+-- ARGV[6] - absolute index of the current bucket (time / bucket interval), the
+--           bucket interval in seconds when ARGV[1] is empty
+local key = KEYS[1]
+local bucket = tonumber(ARGV[1])
+local bucketCount = tonumber(ARGV[2])
+local bucketsToClear = tonumber(ARGV[3])
+local bucketsUsedForTps = tonumber(ARGV[4])
+local expiry = tonumber(ARGV[5])
+local index = tonumber(ARGV[6])
+
+-- server time in milliseconds, nil when the caller gave the buckets
+local now
+if ARGV[1] == '' then
+  -- TIME is not deterministic, replicate the effects of the script instead
+  -- (always the case since redis 5)
+  if redis.replicate_commands then
+    redis.replicate_commands()
+  end
+  local time = redis.call('TIME')
+  local seconds = tonumber(time[1])
+  local bucketInterval = index
+  now = seconds * 1000 + math.floor(tonumber(time[2]) / 1000)
+  bucket = math.floor((seconds % (bucketCount * bucketInterval)) / bucketInterval)
+  index = math.floor(seconds / bucketInterval)
+end
+
+-- deletes the fields in chunks to stay below the unpack() limit
+local function hdel(fields)
+  for i = 1, #fields, 1000 do
+    redis.call('HDEL', key, unpack(fields, i, math.min(i + 999, #fields)))
+  end
+end
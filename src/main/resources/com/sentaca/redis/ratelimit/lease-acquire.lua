@@ -0,0 +1,41 @@
+-- Takes a slot of a bounded set of leases, see BufferSizeService#tryAcquire.
+-- The key is a sorted set of lease ids scored by their expiry time, so leases
+-- of crashed holders drop out without a release.
+--
+-- KEYS[1] - leases key of the subject
+-- ARGV[1] - now, in milliseconds, empty for the time of the server
+-- ARGV[2] - max number of leases
+-- ARGV[3] - lease time in milliseconds
+-- ARGV[4] - id of the new lease
+--
+-- Returns {acquired, holders, retryAfter} as strings, holders include the new
+-- lease, retryAfter is the time until the first lease expires when denied.
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+if ARGV[1] == '' then
+  -- TIME is not deterministic, replicate the effects of the script instead
+  -- (always the case since redis 5)
+  if redis.replicate_commands then
+    redis.replicate_commands()
+  end
+  local time = redis.call('TIME')
+  now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+end
+local max = tonumber(ARGV[2])
+local leaseTime = tonumber(ARGV[3])
+
+redis.call('ZREMRANGEBYSCORE', key, '-inf', now)
+local holders = redis.call('ZCARD', key)
+if holders < max then
+  redis.call('ZADD', key, string.format('%d', now + leaseTime), ARGV[4])
+  -- the key lives as long as its longest lease
+  local last = redis.call('ZRANGE', key, -1, -1, 'WITHSCORES')
+  redis.call('PEXPIRE', key, string.format('%d', tonumber(last[2]) - now))
+  return {'1', tostring(holders + 1), '0'}
+end
+local first = redis.call('ZRANGE', key, 0, 0, 'WITHSCORES')
+if #first == 0 then
+  -- no lease at all, max is 0 or less
+  return {'0', '0', '0'}
+end
+return {'0', tostring(holders), string.format('%d', tonumber(first[2]) - now)}
@@ -0,0 +1,36 @@
+-- Releases or renews a lease taken by lease-acquire.lua.
+--
+-- KEYS[1] - leases key of the subject
+-- ARGV[1] - now, in milliseconds, empty for the time of the server
+-- ARGV[2] - id of the lease
+-- ARGV[3] - new lease time in milliseconds, 0 releases the lease
+--
+-- Returns {found, holders} as strings, found is 0 when the lease was already
+-- released or expired; an expired lease is not renewed.
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+if ARGV[1] == '' then
+  -- TIME is not deterministic, replicate the effects of the script instead
+  -- (always the case since redis 5)
+  if redis.replicate_commands then
+    redis.replicate_commands()
+  end
+  local time = redis.call('TIME')
+  now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+end
+local id = ARGV[2]
+local leaseTime = tonumber(ARGV[3])
+
+redis.call('ZREMRANGEBYSCORE', key, '-inf', now)
+local found = 0
+if leaseTime > 0 then
+  if redis.call('ZSCORE', key, id) then
+    found = 1
+    redis.call('ZADD', key, string.format('%d', now + leaseTime), id)
+    local last = redis.call('ZRANGE', key, -1, -1, 'WITHSCORES')
+    redis.call('PEXPIRE', key, string.format('%d', tonumber(last[2]) - now))
+  end
+else
+  found = redis.call('ZREM', key, id)
+end
+return {tostring(found), tostring(redis.call('ZCARD', key))}
@@ -0,0 +1,121 @@
+-- Several sliding windows of one subject in one hash, see
+-- MultiWindowRateLimitService. Every distinct bucket interval is a level of
+-- fields named '<bucketInterval>:<absolute bucket index>'; a hit increments one
+-- field per level and the windows of the same level share its fields. The
+-- field '_<bucketInterval>' holds the last index written on the level, so only
+-- the fields that left the level since then are deleted.
+--
+-- KEYS[1] - subject key
+-- ARGV[1] - time in milliseconds
+-- ARGV[2] - hits to record
+-- ARGV[3] - 'acquire' records the hits only if every window allows them, 'add'
+--           records them anyway, 'count' never records
+-- ARGV[4] - subject expiry in seconds
+-- ARGV[5] - number of levels, followed by bucketInterval (seconds) and number
+--           of buckets kept for every level
+-- then     - number of windows, followed by level (1 based), number of buckets
+--           and limit for every window
+--
+-- Returns {allowed, retryAfter, count of every window} as strings, counts
+-- include the recorded hits.
+local key = KEYS[1]
+local time = tonumber(ARGV[1])
+local hits = tonumber(ARGV[2])
+local mode = ARGV[3]
+local expiry = tonumber(ARGV[4])
+
+local a = 5
+local levels = {}
+for l = 1, tonumber(ARGV[a]) do
+  local bucketInterval = tonumber(ARGV[a + 1])
+  levels[l] = {
+    bucketInterval = bucketInterval,
+    span = tonumber(ARGV[a + 2]),
+    index = math.floor(time / 1000 / bucketInterval)
+  }
+  a = a + 2
+end
+a = a + 1
+local windows = {}
+for w = 1, tonumber(ARGV[a]) do
+  windows[w] = {
+    level = levels[tonumber(ARGV[a + 1])],
+    buckets = tonumber(ARGV[a + 2]),
+    limit = tonumber(ARGV[a + 3])
+  }
+  a = a + 3
+end
+
+local function field(level, index)
+  return string.format('%d:%d', level.bucketInterval, index)
+end
+
+-- counts[1] is the current bucket of the level, one HMGET per level
+for _, level in ipairs(levels) do
+  local fields = {}
+  for i = 0, level.span - 1 do
+    fields[i + 1] = field(level, level.index - i)
+  end
+  local values = redis.call('HMGET', key, unpack(fields))
+  level.counts = {}
+  for i = 1, level.span do
+    level.counts[i] = tonumber(values[i] or 0)
+  end
+end
+
+local function sum(level, from, to)
+  local s = 0
+  for i = from, to do
+    s = s + level.counts[i]
+  end
+  return s
+end
+
+-- the hits are checked against every window, 'count' checks a single hit
+local checked = math.max(hits, 1)
+local allowed = 1
+local retryAfter = 0
+for _, w in ipairs(windows) do
+  local level = w.level
+  if sum(level, 1, w.buckets) + checked > w.limit then
+    allowed = 0
+    -- the hits land in a fresh bucket and the oldest buckets drop out one by
+    -- one
+    local k = 1
+    while k < w.buckets and sum(level, 1, w.buckets - k) + checked > w.limit do
+      k = k + 1
+    end
+    local millis = level.bucketInterval * 1000
+    retryAfter = math.max(retryAfter, millis - time % millis + (k - 1) * millis)
+  end
+end
+
+if hits > 0 and (mode == 'add' or (mode == 'acquire' and allowed == 1)) then
+  for _, level in ipairs(levels) do
+    local lastField = '_' .. level.bucketInterval
+    local last = tonumber(redis.call('HGET', key, lastField))
+    if last and last < level.index then
+      -- the fields kept are (last - span, last], drop those before the new
+      -- window (index - span, index]
+      local stale = {}
+      for i = last - level.span + 1, math.min(last, level.index - level.span) do
+        stale[#stale + 1] = field(level, i)
+      end
+      for i = 1, #stale, 1000 do
+        redis.call('HDEL', key, unpack(stale, i, math.min(i + 999, #stale)))
+      end
+    end
+    if not last or last < level.index then
+      redis.call('HSET', key, lastField, level.index)
+    end
+    redis.call('HINCRBY', key, field(level, level.index), hits)
+    level.counts[1] = level.counts[1] + hits
+  end
+  redis.call('EXPIRE', key, expiry)
+end
+
+local reply = {tostring(allowed), tostring(retryAfter)}
+for w = 1, #windows do
+  reply[w + 2] = tostring(sum(windows[w].level, 1, windows[w].buckets))
+end
+return reply
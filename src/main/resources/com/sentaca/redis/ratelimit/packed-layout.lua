@@ -0,0 +1,90 @@
+-- One string per subject: a signed 64 bit header holding the absolute index of
+-- the last bucket written, followed by a ring of bucketsUsedForTps unsigned 32
+-- bit counters, accessed with BITFIELD. Slot index % bucketsUsedForTps holds
+-- the bucket index while it is one of the bucketsUsedForTps buckets ending with
+-- the header; the other slots are stale and zeroed on the next write. A hash
+-- written by the other layouts is converted on first touch.
+local COUNTER = 'u32'
+local MAX_COUNT = 4294967295
+-- the header takes the place of two counters
+local HEADER_SLOTS = 2
+
+local last = 0
+local slots = {}
+
+-- BITFIELD offset of the counter of the absolute bucket index
+local function offset(index)
+  return '#' .. (index % bucketsUsedForTps + HEADER_SLOTS)
+end
+
+local function convert()
+  local epoch = redis.call('HEXISTS', key, '_epoch') == 1
+  local args = {'SET', 'i64', 0, index}
+  for i = 0, bucketsUsedForTps - 1 do
+    local f = (bucket - i + bucketCount) % bucketCount
+    if epoch then
+      f = index - i
+    end
+    local value = tonumber(redis.call('HGET', key, f) or 0)
+    for _, a in ipairs({'SET', COUNTER, offset(index - i), math.min(value, MAX_COUNT)}) do
+      args[#args + 1] = a
+    end
+  end
+  redis.call('DEL', key)
+  redis.call('BITFIELD', key, unpack(args))
+  redis.call('EXPIRE', key, expiry)
+end
+
+-- reads the header and every counter with one BITFIELD
+local function prepare()
+  if redis.call('TYPE', key).ok == 'hash' then
+    convert()
+  end
+  local args = {'GET', 'i64', 0}
+  for slot = 0, bucketsUsedForTps - 1 do
+    args[#args + 1] = 'GET'
+    args[#args + 1] = COUNTER
+    args[#args + 1] = '#' .. (slot + HEADER_SLOTS)
+  end
+  local values = redis.call('BITFIELD', key, unpack(args))
+  last = values[1]
+  for slot = 0, bucketsUsedForTps - 1 do
+    slots[slot] = values[slot + 2]
+  end
+end
+
+-- hits of the bucket i buckets before the current one
+local function get(i)
+  local b = index - i
+  if b > last or b <= last - bucketsUsedForTps then
+    return 0
+  end
+  return slots[b % bucketsUsedForTps]
+end
+
+local function record(increment, i)
+  local b = index - (i or 0)
+  if b <= math.max(last, index) - bucketsUsedForTps then
+    -- older than the window of the last write
+    return
+  end
+  local args = {}
+  local function add(...)
+    for _, a in ipairs({...}) do
+      args[#args + 1] = a
+    end
+  end
+  if index > last then
+    -- zero the slots of the buckets started since the last write
+    for b = math.max(last + 1, index - bucketsUsedForTps + 1), index do
+      add('SET', COUNTER, offset(b), 0)
+      slots[b % bucketsUsedForTps] = 0
+    end
+    add('SET', 'i64', 0, index)
+    last = index
+  end
+  add('OVERFLOW', 'SAT', 'INCRBY', COUNTER, offset(b), increment)
+  slots[b % bucketsUsedForTps] = math.min(slots[b % bucketsUsedForTps] + increment, MAX_COUNT)
+  redis.call('BITFIELD', key, unpack(args))
+  redis.call('EXPIRE', key, expiry)
+end
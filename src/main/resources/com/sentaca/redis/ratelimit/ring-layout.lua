@@ -0,0 +1,25 @@
+-- Ring of bucketCount fields indexed by (time / 1000) % bucketSpan, the buckets
+-- ahead of the current one are cleared on every call.
+
+local function prepare()
+  local fields = {}
+  for i = 1, bucketsToClear do
+    fields[i] = (bucket + i) % bucketCount
+  end
+  hdel(fields)
+end
+
+-- field of the bucket i buckets before the current one
+local function field(i)
+  return (bucket - i + bucketCount) % bucketCount
+end
+
+-- hits of the bucket i buckets before the current one
+local function get(i)
+  return tonumber(redis.call('HGET', key, field(i)) or 0)
+end
+
+local function record(increment, i)
+  redis.call('HINCRBY', key, field(i or 0), increment)
+  redis.call('EXPIRE', key, expiry)
+end
@@ -0,0 +1,11 @@
+-- Reads the tps window bucket by bucket, see RateLimitService#countSeries.
+--
+-- Returns the bucket counts as strings, oldest bucket first.
+prepare()
+
+local series = {}
+for i = bucketsUsedForTps - 1, 0, -1 do
+  series[#series + 1] = tostring(get(i))
+end
+
+return series
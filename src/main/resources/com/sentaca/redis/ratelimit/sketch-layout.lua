@@ -0,0 +1,121 @@
+-- One string per action holding a ring of bucketsUsedForTps Count-Min
+-- Sketches instead of a key per subject, accessed with BITFIELD, so the script
+-- touches only KEYS[1]. The string starts with a signed 64 bit header per slot
+-- holding the absolute index of the bucket in the slot, followed by the
+-- sketches, each of depth rows of width unsigned 32 bit counters. Slot
+-- index % bucketsUsedForTps holds the bucket while the header says so, a stale
+-- sketch reads as zero and is zeroed when its slot is written again.
+--
+-- ARGV[3] lists the number of counters of a sketch, then the counter of the
+-- subject in every row, see CountMinSketch. The hits of a bucket are estimated
+-- by the smallest of these counters and the string expires after the tps
+-- window, so memory does not depend on the number of subjects.
+local COUNTER = 'u32'
+local MAX_COUNT = 4294967295
+-- every header takes the place of two counters
+local HEADER_SLOTS = 2 * bucketsUsedForTps
+
+local cells
+local offsets = {}
+for number in string.gmatch(ARGV[3], '%d+') do
+  if cells == nil then
+    cells = tonumber(number)
+  else
+    offsets[#offsets + 1] = tonumber(number)
+  end
+end
+
+-- bucket index held by every slot
+local headers = {}
+-- counters of the subject in the sketches read by get(i)
+local counters = {}
+local estimates = {}
+
+local function slot(b)
+  return b % bucketsUsedForTps
+end
+
+-- BITFIELD offset of the counter of the subject in row r of the bucket
+local function offset(b, r)
+  return '#' .. (HEADER_SLOTS + slot(b) * cells + offsets[r])
+end
+
+-- reads the headers of every slot with one BITFIELD
+local function prepare()
+  local args = {}
+  for s = 0, bucketsUsedForTps - 1 do
+    args[#args + 1] = 'GET'
+    args[#args + 1] = 'i64'
+    args[#args + 1] = '#' .. s
+  end
+  local values = redis.call('BITFIELD', key, unpack(args))
+  for s = 0, bucketsUsedForTps - 1 do
+    headers[s] = values[s + 1]
+  end
+end
+
+-- estimated hits of the bucket i buckets before the current one
+local function get(i)
+  if estimates[i] == nil then
+    local b = index - i
+    local values = {}
+    if headers[slot(b)] == b then
+      local args = {}
+      for r = 1, #offsets do
+        args[#args + 1] = 'GET'
+        args[#args + 1] = COUNTER
+        args[#args + 1] = offset(b, r)
+      end
+      values = redis.call('BITFIELD', key, unpack(args))
+    else
+      for r = 1, #offsets do
+        values[r] = 0
+      end
+    end
+    local estimate = values[1]
+    for _, value in ipairs(values) do
+      if value < estimate then
+        estimate = value
+      end
+    end
+    counters[i] = values
+    estimates[i] = estimate
+  end
+  return estimates[i]
+end
+
+-- conservative update: only the counters below the new estimate are raised to
+-- it, which keeps the overestimate of the other subjects sharing them lower
+local function record(increment, i)
+  i = i or 0
+  local b = index - i
+  local s = slot(b)
+  if headers[s] > b then
+    -- the slot already holds a newer bucket
+    return
+  end
+  if headers[s] ~= b then
+    -- zero the stale sketch of the slot
+    redis.call('SETRANGE', key, (HEADER_SLOTS + s * cells) * 4, string.rep('\0', cells * 4))
+    redis.call('BITFIELD', key, 'SET', 'i64', '#' .. s, b)
+    headers[s] = b
+    estimates[i] = nil
+  end
+  local estimate = math.min(get(i) + increment, MAX_COUNT)
+  local current = counters[i]
+  local args = {}
+  for r = 1, #offsets do
+    if current[r] < estimate then
+      args[#args + 1] = 'SET'
+      args[#args + 1] = COUNTER
+      args[#args + 1] = offset(b, r)
+      args[#args + 1] = estimate
+      current[r] = estimate
+    end
+  end
+  if #args > 0 then
+    redis.call('BITFIELD', key, unpack(args))
+  end
+  redis.call('EXPIRE', key, expiry)
+  estimates[i] = estimate
+end
@@ -0,0 +1,2 @@
+-- Returns the redis server time as {seconds, microseconds}, see RedisClock.
+return redis.call('TIME')
@@ -0,0 +1,46 @@
+-- Token bucket, see TokenBucketRateLimitService. The key is a hash with the
+-- tokens left and the time of the last refill in microseconds; the bucket
+-- holds window / interval tokens and refills one token per interval.
+--
+-- KEYS[1] - key of the subject
+-- ARGV[1] - now, in microseconds
+-- ARGV[2] - refill interval, microseconds per token at the limit rate
+-- ARGV[3] - window in microseconds, the capacity is window / interval tokens
+-- ARGV[4] - hits to record, 0 for read only calls
+-- ARGV[5] - 1 to record the hits only if there are enough tokens
+--
+-- Times are whole microseconds, exact in lua numbers.
+--
+-- Returns {allowed, retryAfter (ms), level} as strings, level is the number of
+-- tokens taken and not refilled yet, including the recorded hits.
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+local interval = tonumber(ARGV[2])
+local window = tonumber(ARGV[3])
+local hits = tonumber(ARGV[4])
+local conditional = ARGV[5] == '1'
+local capacity = window / interval
+
+local state = redis.call('HMGET', key, 'tokens', 'ts')
+local tokens = tonumber(state[1]) or capacity
+local ts = tonumber(state[2]) or now
+if now > ts then
+  tokens = math.min(capacity, tokens + (now - ts) / interval)
+  ts = now
+end
+
+local allowed = 1
+local retryAfter = 0
+if conditional and tokens < hits then
+  allowed = 0
+  retryAfter = math.ceil((hits - tokens) * interval / 1000)
+else
+  tokens = tokens - hits
+end
+if hits > 0 and allowed == 1 then
+  redis.call('HMSET', key, 'tokens', string.format('%.17g', tokens), 'ts', string.format('%d', ts))
+  -- a full bucket is the same as no key
+  redis.call('PEXPIRE', key, math.max(1, math.ceil((capacity - tokens) * interval / 1000)))
+end
+
+return {tostring(allowed), tostring(retryAfter), string.format('%.6f', capacity - tokens)}
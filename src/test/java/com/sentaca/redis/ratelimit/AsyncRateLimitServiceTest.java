@@ -0,0 +1,180 @@
+package com.sentaca.redis.ratelimit;
+
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class AsyncRateLimitServiceTest extends TestCase {
+
+  @Mock
+  private RateLimitService remote;
+
+  private AsyncRateLimitService service;
+
+  private CountDownLatch released = new CountDownLatch(1);
+
+  @SuppressWarnings("unchecked")
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(remote.getTpsInterval()).thenReturn(10);
+    when(remote.getBucketInterval()).thenReturn(1);
+    when(remote.getClock()).thenReturn(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    when(remote.batchEach(any(long[].class), anyList(), any(int[].class), anyBoolean())).thenAnswer(new Answer<List<Object>>() {
+
+      @Override
+      public List<Object> answer(InvocationOnMock invocation) throws Throwable {
+        // hold the first batch so the following calls queue up
+        released.await(5, TimeUnit.SECONDS);
+        final List<String> subjects = (List<String>) invocation.getArguments()[1];
+        final List<Object> results = new ArrayList<Object>();
+        for (int i = 0; i < subjects.size(); i++) {
+          if (subjects.get(i).equals("wrongtype")) {
+            results.add(new JedisDataException("WRONGTYPE"));
+          } else {
+            results.add(new CountResult(i, 0, 0, 0));
+          }
+        }
+        return results;
+      }
+    });
+    service = new AsyncRateLimitService(remote, 1, 100);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    service.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testCallsAreCoalesced() throws Exception {
+    final CompletableFuture<CountResult> first = service.count(712233, "127.0.0.0");
+    Thread.sleep(100);
+    final List<CompletableFuture<CountResult>> futures = new ArrayList<CompletableFuture<CountResult>>();
+    for (int i = 1; i <= 10; i++) {
+      futures.add(service.count(712233, "127.0.0." + i));
+    }
+    final CompletableFuture<Void> added = service.add(712233, "127.0.0.11");
+    assertFalse(first.isDone());
+    released.countDown();
+
+    assertEquals(0, first.get(5, TimeUnit.SECONDS).getCount());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, futures.get(i).get(5, TimeUnit.SECONDS).getCount());
+    }
+    assertNull(added.get(5, TimeUnit.SECONDS));
+    verify(remote, times(2)).batchEach(any(long[].class), anyList(), any(int[].class), anyBoolean());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testFailuresCompleteTheFutures() throws Exception {
+    released.countDown();
+    when(remote.batchEach(any(long[].class), anyList(), any(int[].class), anyBoolean())).thenThrow(new IllegalStateException("down"));
+    try {
+      service.tps("127.0.0.1").get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException ex) {
+      assertEquals("down", ex.getCause().getMessage());
+    }
+  }
+
+  public void testErrorFailsOnlyItsCall() throws Exception {
+    final CompletableFuture<CountResult> first = service.count(712233, "127.0.0.0");
+    Thread.sleep(100);
+    final CompletableFuture<CountResult> good = service.count(712233, "127.0.0.1");
+    final CompletableFuture<CountResult> bad = service.count(712233, "wrongtype");
+    released.countDown();
+
+    assertEquals(0, first.get(5, TimeUnit.SECONDS).getCount());
+    assertEquals(0, good.get(5, TimeUnit.SECONDS).getCount());
+    try {
+      bad.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof JedisDataException);
+    }
+  }
+
+  public void testFullQueueFailsTheCall() throws Exception {
+    service.close();
+    service = new AsyncRateLimitService(remote, 1, 100, 1);
+    final CompletableFuture<CountResult> first = service.count(712233, "127.0.0.0");
+    Thread.sleep(100);
+    final CompletableFuture<CountResult> queued = service.count(712233, "127.0.0.1");
+    final CompletableFuture<CountResult> rejected = service.count(712233, "127.0.0.2");
+    try {
+      rejected.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof JedisConnectionException);
+    }
+    assertFalse(first.isDone());
+    released.countDown();
+
+    assertEquals(0, first.get(5, TimeUnit.SECONDS).getCount());
+    assertEquals(0, queued.get(5, TimeUnit.SECONDS).getCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testTpsUsesTheServiceClock() throws Exception {
+    released.countDown();
+    service.tps("127.0.0.1").get(5, TimeUnit.SECONDS);
+    verify(remote).batchEach(aryEq(new long[] { 712233 }), anyList(), any(int[].class), anyBoolean());
+  }
+
+  public void testCallsRacingCloseComplete() throws Exception {
+    released.countDown();
+    final List<CompletableFuture<CountResult>> futures = new ArrayList<CompletableFuture<CountResult>>();
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          for (int i = 0; i < 2000; i++) {
+            final CompletableFuture<CountResult> future = service.count(712233, "127.0.0.1");
+            synchronized (futures) {
+              futures.add(future);
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    Thread.sleep(5);
+    service.close();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (CompletableFuture<CountResult> future : futures) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+      } catch (ExecutionException ex) {
+        // failed by the stop
+      } catch (TimeoutException ex) {
+        fail("A call submitted while closing was never completed");
+      }
+    }
+  }
+}
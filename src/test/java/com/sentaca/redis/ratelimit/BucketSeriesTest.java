@@ -0,0 +1,42 @@
+package com.sentaca.redis.ratelimit;
+
+import junit.framework.TestCase;
+
+public class BucketSeriesTest extends TestCase {
+
+  public void testStatistics() throws Exception {
+    BucketSeries series = new BucketSeries(new int[] { 1, 2, 3, 4 });
+
+    assertEquals(10, series.getCount());
+    assertEquals(0, series.getNumberOfEmptyBuckets());
+    assertEquals(4, series.getPeakCount());
+    assertEquals(4, series.getLatestBucketCount());
+    assertEquals(2.5, series.getMean(), 1e-9);
+    assertEquals(1.25, series.getVariance(), 1e-9);
+    assertEquals(1, series.getSlope(), 1e-9);
+  }
+
+  public void testDecreasingTrend() throws Exception {
+    BucketSeries series = new BucketSeries(new int[] { 6, 0, 0, 0 });
+
+    assertEquals(3, series.getNumberOfEmptyBuckets());
+    assertEquals(0, series.getLatestBucketCount());
+    assertEquals(-1.8, series.getSlope(), 1e-9);
+  }
+
+  public void testFlatSeries() throws Exception {
+    BucketSeries series = new BucketSeries(new int[] { 5, 5, 5 });
+
+    assertEquals(0, series.getVariance(), 1e-9);
+    assertEquals(0, series.getSlope(), 1e-9);
+  }
+
+  public void testCountResult() throws Exception {
+    CountResult result = new BucketSeries(new int[] { 0, 7, 2 }).toCountResult();
+
+    assertEquals(9, result.getCount());
+    assertEquals(1, result.getNumberOfEmptyBuckets());
+    assertEquals(7, result.getPeakCount());
+    assertEquals(2, result.getLatestBucketCount());
+  }
+}
@@ -0,0 +1,86 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class BufferSizeServiceRedisTest extends RedisTestCase {
+
+  private BufferSizeService service;
+  private long now;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    service = new BufferSizeService(pool, "test", "buffer");
+    service.setLeaseTime(30000);
+    // release and releaseAll take the time of the server
+    now = System.currentTimeMillis();
+  }
+
+  public void testLeasesAreBounded() throws Exception {
+    final Lease first = service.tryAcquire(now, "127.0.0.1", 2);
+    final Lease second = service.tryAcquire(now + 1000, "127.0.0.1", 2);
+    assertTrue(first.isAcquired());
+    assertEquals(2, second.getHolders());
+
+    final Lease denied = service.tryAcquire(now + 1000, "127.0.0.1", 2);
+    assertFalse(denied.isAcquired());
+    assertEquals(2, denied.getHolders());
+    // until the first lease expires
+    assertEquals(29000, denied.getRetryAfter());
+
+    assertTrue(service.release(first));
+    assertFalse(service.release(first));
+    assertTrue(service.tryAcquire(now + 1000, "127.0.0.1", 2).isAcquired());
+  }
+
+  public void testExpiredLeasesFreeTheirSlots() throws Exception {
+    final Lease lease = service.tryAcquire(now, "127.0.0.1", 1);
+    assertTrue(service.renew(now + 20000, lease));
+    assertFalse(service.tryAcquire(now + 40000, "127.0.0.1", 1).isAcquired());
+
+    final Lease next = service.tryAcquire(now + 50001, "127.0.0.1", 1);
+    assertTrue(next.isAcquired());
+    assertEquals(1, next.getHolders());
+    assertFalse(service.renew(now + 50001, lease));
+  }
+
+  public void testCallsWithoutTimeTakeTheServerTime() throws Exception {
+    // taken by a node whose clock is an hour behind, expired for the server
+    assertTrue(service.tryAcquire(now - 3600000, "127.0.0.1", 1).isAcquired());
+    final Lease lease = service.tryAcquire("127.0.0.1", 1);
+    assertTrue(lease.isAcquired());
+    assertEquals(1, lease.getHolders());
+    assertTrue(service.renew(lease));
+    // a node whose clock is an hour ahead sees it expired
+    assertTrue(service.tryAcquire(now + 3600000, "127.0.0.1", 1).isAcquired());
+  }
+
+  public void testNoLeaseWithoutSlots() throws Exception {
+    final Lease lease = service.tryAcquire(now, "127.0.0.1", 0);
+    assertFalse(lease.isAcquired());
+    assertEquals(0, lease.getHolders());
+    assertEquals(0, lease.getRetryAfter());
+  }
+
+  public void testBatch() throws Exception {
+    final List<Lease> leases = service.tryAcquireAll(now, Arrays.asList("127.0.0.1", "127.0.0.1", "127.0.0.2"), 1);
+    assertTrue(leases.get(0).isAcquired());
+    assertFalse(leases.get(1).isAcquired());
+    assertTrue(leases.get(2).isAcquired());
+
+    service.releaseAll(leases);
+    assertTrue(service.tryAcquire(now, "127.0.0.1", 1).isAcquired());
+    assertTrue(service.tryAcquire(now, "127.0.0.2", 1).isAcquired());
+  }
+
+  public void testBufferSize() throws Exception {
+    assertEquals(-1, service.getCurrentBufferSize("127.0.0.1"));
+    service.setCurrentBufferSize("127.0.0.1", 5);
+    assertEquals(6, service.incrementCurrentBufferSize("127.0.0.1"));
+    final List<Object> results = service.pipelined(Arrays.asList(BufferSizeService.Op.INCRBY, BufferSizeService.Op.INCRBY, BufferSizeService.Op.GET),
+        Arrays.asList("127.0.0.1", "127.0.0.1", "127.0.0.1"), new int[] { 50000, -50003, 0 });
+    assertEquals(50006l, results.get(0));
+    assertEquals(3, results.get(2));
+  }
+}
@@ -0,0 +1,78 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import junit.framework.TestCase;
+
+public class BufferSizeServiceTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+
+  private BufferSizeService service;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    service = new BufferSizeService(pool, null, "access");
+    service.setLeaseTime(30000);
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+  }
+
+  public void testMissingOrInvalidBufferIsNotDeleted() throws Exception {
+    assertEquals(-1, service.getCurrentBufferSize("127.0.0.1"));
+    when(jedis.get("access:127.0.0.1")).thenReturn("x");
+    assertEquals(-1, service.getCurrentBufferSize("127.0.0.1"));
+    verify(jedis, never()).del(anyString());
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void testTryAcquire() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "3", "0"));
+
+    Lease lease = service.tryAcquire(712233, "127.0.0.1", 5);
+
+    ArgumentCaptor<List> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis).evalsha(eq("sha"), eq(Collections.singletonList("access:127.0.0.1:leases")), args.capture());
+    assertEquals(Arrays.asList("712233", "5", "30000", lease.getId()), args.getValue());
+    assertTrue(lease.isAcquired());
+    assertEquals(3, lease.getHolders());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testTryAcquireDenied() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("0", "5", "1200"));
+
+    Lease lease = service.tryAcquire(712233, "127.0.0.1", 5);
+
+    assertFalse(lease.isAcquired());
+    assertNull(lease.getId());
+    assertEquals(1200, lease.getRetryAfter());
+    assertFalse(service.release(lease));
+    verify(jedis, times(1)).evalsha(eq("sha"), anyList(), anyList());
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void testRelease() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "0"));
+
+    assertTrue(service.release(new Lease("127.0.0.1", "id", true, 1, 0)));
+
+    ArgumentCaptor<List> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis).evalsha(eq("sha"), eq(Collections.singletonList("access:127.0.0.1:leases")), args.capture());
+    // the time of the server
+    assertEquals(Arrays.asList("", "id", "0"), args.getValue());
+  }
+}
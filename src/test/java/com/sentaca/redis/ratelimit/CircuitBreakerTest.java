@@ -0,0 +1,85 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+  private CircuitBreaker breaker;
+
+  @Override
+  protected void setUp() throws Exception {
+    breaker = new CircuitBreaker(10, 4, 0.5, 100, 1000);
+    at(0);
+  }
+
+  public void testOpensOnFailureRate() throws Exception {
+    breaker.onSuccess(1);
+    breaker.onFailure();
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker.onSuccess(1);
+    breaker.onSuccess(1);
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquirePermission());
+    assertEquals(1000, breaker.getRetryAfter());
+  }
+
+  public void testSlowCallsCountAsFailed() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      breaker.onSuccess(101);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  public void testOldOutcomesLeaveTheWindow() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure();
+      for (int k = 0; k < 3; k++) {
+        breaker.onSuccess(1);
+      }
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(0.2, breaker.getFailureRate(), 0.001);
+  }
+
+  public void testHalfOpenLetsOneProbeThrough() throws Exception {
+    open();
+    at(999);
+    assertFalse(breaker.tryAcquirePermission());
+
+    at(1000);
+    assertTrue(breaker.tryAcquirePermission());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquirePermission());
+
+    assertTrue(breaker.onSuccess(1));
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquirePermission());
+  }
+
+  public void testFailedProbeOpensAgain() throws Exception {
+    open();
+    at(1500);
+    assertTrue(breaker.tryAcquirePermission());
+    breaker.onFailure();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(1000, breaker.getRetryAfter());
+  }
+
+  private void open() {
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure();
+    }
+  }
+
+  private void at(long millis) {
+    breaker.setClock(Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  }
+}
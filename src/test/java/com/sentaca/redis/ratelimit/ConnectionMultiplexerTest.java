@@ -0,0 +1,211 @@
+package com.sentaca.redis.ratelimit;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class ConnectionMultiplexerTest extends TestCase {
+
+  private static final LuaScript SCRIPT = new LuaScript("time.lua");
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+  @Mock
+  private Client client;
+
+  private ConnectionMultiplexer multiplexer;
+  // keys sent since the last getAll(), replied back as they are
+  private final List<Object> pipeline = Collections.synchronizedList(new ArrayList<Object>());
+  private final AtomicInteger batches = new AtomicInteger();
+  private final CountDownLatch released = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.getClient()).thenReturn(client);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    doAnswer(new Answer<Void>() {
+
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        pipeline.add(invocation.getArguments()[2]);
+        return null;
+      }
+    }).when(client).evalsha(eq("sha"), eq(1), (String[]) anyVararg());
+    when(client.getAll()).thenAnswer(new Answer<List<Object>>() {
+
+      @Override
+      public List<Object> answer(InvocationOnMock invocation) throws Throwable {
+        if (batches.incrementAndGet() == 1) {
+          // hold the first batch so the following calls queue up
+          released.await(5, TimeUnit.SECONDS);
+        }
+        synchronized (pipeline) {
+          final List<Object> replies = new ArrayList<Object>(pipeline);
+          pipeline.clear();
+          return replies;
+        }
+      }
+    });
+    multiplexer = new ConnectionMultiplexer(1, 100);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    multiplexer.close();
+  }
+
+  public void testCallsSharePipelinesOfOneConnection() throws Exception {
+    final List<Object> replies = Collections.synchronizedList(new ArrayList<Object>());
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i <= 10; i++) {
+      final String key = "key" + i;
+      threads.add(new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          replies.add(multiplexer.eval(pool, SCRIPT, key, Collections.<String> emptyList()));
+        }
+      }));
+      threads.get(i).start();
+      if (i == 0) {
+        Thread.sleep(100);
+      }
+    }
+    Thread.sleep(100);
+    released.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertEquals(11, replies.size());
+    assertTrue(replies.contains("key10"));
+    assertEquals(2, batches.get());
+    assertEquals(1, multiplexer.getConnectionCount());
+    verify(pool, times(1)).getResource();
+  }
+
+  public void testErrorFailsOnlyItsCall() throws Exception {
+    released.countDown();
+    when(client.getAll()).thenReturn(Arrays.<Object> asList(new JedisDataException("WRONGTYPE"))).thenReturn(Arrays.<Object> asList("ok"));
+
+    try {
+      multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList());
+      fail();
+    } catch (JedisDataException ex) {
+      // expected
+    }
+    assertEquals("ok", multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList()));
+    verify(pool, times(1)).getResource();
+  }
+
+  public void testBrokenConnectionIsReplaced() throws Exception {
+    released.countDown();
+    when(client.getAll()).thenThrow(new JedisConnectionException("reset")).thenReturn(Arrays.<Object> asList("ok"));
+
+    try {
+      multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList());
+      fail();
+    } catch (JedisConnectionException ex) {
+      // expected
+    }
+    assertEquals("ok", multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList()));
+    verify(jedis).disconnect();
+    verify(pool, times(2)).getResource();
+  }
+
+  public void testCallerWaitsAtMostTimeout() throws Exception {
+    multiplexer.setTimeout(100);
+
+    try {
+      multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList());
+      fail();
+    } catch (JedisConnectionException ex) {
+      // expected
+    }
+    released.countDown();
+    assertEquals("key", multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList()));
+  }
+
+  public void testCloseReturnsConnections() throws Exception {
+    released.countDown();
+    multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList());
+
+    multiplexer.close();
+
+    verify(pool).returnResource(jedis);
+    assertEquals(0, multiplexer.getConnectionCount());
+  }
+
+  public void testConnectionOfBusyThreadIsNotReturned() throws Exception {
+    final CountDownLatch stuck = new CountDownLatch(1);
+    when(client.getAll()).thenAnswer(new Answer<List<Object>>() {
+
+      @Override
+      public List<Object> answer(InvocationOnMock invocation) throws Throwable {
+        // a blocked socket read does not notice the interrupt of close()
+        final long until = System.currentTimeMillis() + 20000;
+        while (stuck.getCount() > 0 && System.currentTimeMillis() < until) {
+          try {
+            stuck.await(100, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException ex) {
+            // ignored
+          }
+        }
+        return Arrays.<Object> asList("key");
+      }
+    });
+    multiplexer.setTimeout(100);
+    try {
+      multiplexer.eval(pool, SCRIPT, "key", Collections.<String> emptyList());
+      fail();
+    } catch (JedisConnectionException ex) {
+      // expected
+    }
+
+    multiplexer.close();
+
+    verify(pool).returnBrokenResource(jedis);
+    verify(pool, never()).returnResource(jedis);
+    stuck.countDown();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testRateLimitServiceSkipsThePool() throws Exception {
+    released.countDown();
+    when(client.getAll()).thenReturn(Arrays.<Object> asList(Arrays.asList("3", "9", "3", "3")));
+    RateLimitService service = new RateLimitService(pool, "access", 10);
+    service.setMultiplexer(multiplexer);
+    assertTrue(service.isScripted());
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(3, service.count(712233, "127.0.0.1").getCount());
+    }
+
+    verify(pool, times(1)).getResource();
+    verify(jedis, never()).evalsha(anyString(), anyList(), anyList());
+  }
+}
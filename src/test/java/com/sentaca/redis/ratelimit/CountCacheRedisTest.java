@@ -0,0 +1,87 @@
+package com.sentaca.redis.ratelimit;
+
+import redis.clients.jedis.Jedis;
+
+public class CountCacheRedisTest extends RedisTestCase {
+
+  private static final long NOW = 1700000000500l;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // the hash events only, the cache must add the string ones
+    config("Khgx");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    config("");
+    super.tearDown();
+  }
+
+  public void testRingWritesOfOtherNodesInvalidate() throws Exception {
+    writesOfOtherNodesInvalidate(BucketLayout.RING);
+  }
+
+  public void testPackedWritesOfOtherNodesInvalidate() throws Exception {
+    writesOfOtherNodesInvalidate(BucketLayout.PACKED);
+  }
+
+  private void writesOfOtherNodesInvalidate(BucketLayout layout) throws Exception {
+    final RateLimitService other = service(layout);
+    final CountCache cache = new CountCache(service(layout));
+    try {
+      for (int i = 0; i < 100 && !cache.isEnabled(); i++) {
+        Thread.sleep(20);
+      }
+      assertTrue(cache.isEnabled());
+      // BITFIELD notifies string events only
+      assertTrue(config().contains("$"));
+      other.add(NOW, "127.0.0.1");
+      awaitInvalidations(cache, 0);
+      // the notifications of one write may arrive one by one
+      Thread.sleep(100);
+      assertEquals(1, cache.count(NOW, "127.0.0.1").getCount());
+      assertEquals(1, cache.count(NOW, "127.0.0.1").getCount());
+      assertEquals(1, cache.getHits());
+
+      final long invalidations = cache.getInvalidations();
+      other.add(NOW, "127.0.0.1");
+      awaitInvalidations(cache, invalidations);
+      assertEquals(2, cache.count(NOW, "127.0.0.1").getCount());
+    } finally {
+      cache.close();
+    }
+  }
+
+  private void awaitInvalidations(CountCache cache, long before) throws InterruptedException {
+    for (int i = 0; i < 100 && cache.getInvalidations() == before; i++) {
+      Thread.sleep(20);
+    }
+    assertTrue(cache.getInvalidations() > before);
+  }
+
+  private RateLimitService service(BucketLayout layout) {
+    final RateLimitService service = new RateLimitService(pool, "test", "cache", 10);
+    service.setBucketLayout(layout);
+    return service;
+  }
+
+  private String config() {
+    final Jedis j = pool.getResource();
+    try {
+      return j.configGet("notify-keyspace-events").get(1);
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  private void config(String events) {
+    final Jedis j = pool.getResource();
+    try {
+      j.configSet("notify-keyspace-events", events);
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+}
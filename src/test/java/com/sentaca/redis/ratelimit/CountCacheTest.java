@@ -0,0 +1,106 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import junit.framework.TestCase;
+
+public class CountCacheTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+  @Mock
+  private RateLimitService service;
+
+  private CountCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.configGet("notify-keyspace-events")).thenReturn(Arrays.asList("notify-keyspace-events", "KA"));
+    when(service.getShards()).thenReturn(new ShardedPool(pool));
+    when(service.getKeyPrefix()).thenReturn("access:");
+    when(service.subjectKey("127.0.0.1")).thenReturn("access:127.0.0.1");
+    when(service.getBucketIndex(anyLong())).thenAnswer(new Answer<Long>() {
+
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        return (Long) invocation.getArguments()[0] / 1000;
+      }
+    });
+    when(service.countSeries(anyLong(), eq("127.0.0.1"))).thenReturn(new BucketSeries(new int[] { 1, 2, 3 }));
+    cache = new CountCache(service, 10);
+    // stands in for the subscription to the keyspace notifications
+    cache.subscribed(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    cache.close();
+  }
+
+  public void testSketchLayoutIsRejected() throws Exception {
+    when(service.getBucketLayout()).thenReturn(BucketLayout.SKETCH);
+    assertFalse(cache.isEnabled());
+    try {
+      new CountCache(service, 10);
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // expected
+    }
+  }
+
+  public void testCachedUntilInvalidated() throws Exception {
+    assertEquals(6, cache.count(712000, "127.0.0.1").getCount());
+    assertEquals(6, cache.count(712500, "127.0.0.1").getCount());
+    verify(service, times(1)).countSeries(anyLong(), eq("127.0.0.1"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    cache.invalidate("access:127.0.0.1");
+    cache.count(712000, "127.0.0.1");
+    verify(service, times(2)).countSeries(anyLong(), eq("127.0.0.1"));
+  }
+
+  public void testWindowShiftsWithTime() throws Exception {
+    cache.count(712000, "127.0.0.1");
+
+    CountResult result = cache.count(714000, "127.0.0.1");
+
+    verify(service, times(1)).countSeries(anyLong(), eq("127.0.0.1"));
+    assertEquals(3, result.getCount());
+    assertEquals(2, result.getNumberOfEmptyBuckets());
+    assertEquals(3, result.getPeakCount());
+    assertEquals(0, result.getLatestBucketCount());
+  }
+
+  public void testWriteInvalidates() throws Exception {
+    cache.count(712000, "127.0.0.1");
+    cache.add(712000, "127.0.0.1");
+    cache.count(712000, "127.0.0.1");
+
+    verify(service).add(712000, "127.0.0.1");
+    verify(service, times(2)).countSeries(anyLong(), eq("127.0.0.1"));
+  }
+
+  public void testDisabledWhileUnsubscribed() throws Exception {
+    when(service.count(712000, "127.0.0.1")).thenReturn(new CountResult(6, 0, 3, 3));
+    cache.subscribed(false);
+
+    cache.count(712000, "127.0.0.1");
+    cache.count(712000, "127.0.0.1");
+
+    verify(service, times(2)).count(712000, "127.0.0.1");
+    assertEquals(0, cache.size());
+  }
+}
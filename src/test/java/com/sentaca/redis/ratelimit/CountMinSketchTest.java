@@ -0,0 +1,45 @@
+package com.sentaca.redis.ratelimit;
+
+import junit.framework.TestCase;
+
+public class CountMinSketchTest extends TestCase {
+
+  public void testSizeFollowsErrorBounds() throws Exception {
+    CountMinSketch sketch = new CountMinSketch(0.001, 0.01);
+
+    assertEquals(2719, sketch.getWidth());
+    assertEquals(5, sketch.getDepth());
+    assertEquals(4 * 2719 * 5, sketch.getSize());
+  }
+
+  public void testOneCounterPerRow() throws Exception {
+    CountMinSketch sketch = new CountMinSketch(0.01, 0.001);
+
+    for (int i = 0; i < 1000; i++) {
+      int[] offsets = sketch.offsets("127.0.0." + i);
+      assertEquals(sketch.getDepth(), offsets.length);
+      for (int r = 0; r < offsets.length; r++) {
+        assertTrue(offsets[r] >= r * sketch.getWidth());
+        assertTrue(offsets[r] < (r + 1) * sketch.getWidth());
+      }
+    }
+  }
+
+  public void testOffsetListIsStable() throws Exception {
+    CountMinSketch sketch = new CountMinSketch(0.01, 0.05);
+    int[] offsets = sketch.offsets("127.0.0.1");
+
+    assertEquals(3, offsets.length);
+    assertEquals(3 * sketch.getWidth() + "," + offsets[0] + "," + offsets[1] + "," + offsets[2], sketch.offsetList("127.0.0.1"));
+    assertEquals(sketch.offsetList("127.0.0.1"), new CountMinSketch(0.01, 0.05).offsetList("127.0.0.1"));
+  }
+
+  public void testRejectsInvalidBounds() throws Exception {
+    try {
+      new CountMinSketch(0, 0.01);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import junit.framework.TestCase;
+
+public class DeniedSubjectCacheTest extends TestCase {
+
+  @Mock
+  private RateLimiter limiter;
+
+  private DeniedSubjectCache cache;
+  private Tps tps = new Tps(5, 5, 5, 5, new CountResult(50, 0, 5, 5));
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    cache = new DeniedSubjectCache(limiter, 2);
+    when(limiter.tryAcquire(anyLong(), anyString(), anyDouble(), any(ThrottleRule.class))).thenReturn(new AcquireResult(false, 500, tps));
+  }
+
+  public void testDenialIsCachedUntilRetryAfter() throws Exception {
+    assertFalse(cache.tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+
+    AcquireResult cached = cache.tryAcquire(1200, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+    assertFalse(cached.isAllowed());
+    assertEquals(300, cached.getRetryAfter());
+    assertSame(tps, cached.getTps());
+    verify(limiter, times(1)).tryAcquire(anyLong(), anyString(), anyDouble(), any(ThrottleRule.class));
+
+    cache.tryAcquire(1500, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+    verify(limiter, times(2)).tryAcquire(anyLong(), anyString(), anyDouble(), any(ThrottleRule.class));
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  public void testHigherLimitOrOtherRuleAsksTheLimiter() throws Exception {
+    cache.tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+
+    cache.tryAcquire(1100, "a", 2, ThrottleRule.BY_AVERAGE_TPS);
+    cache.tryAcquire(1100, "a", 4, ThrottleRule.BY_AVERAGE_TPS);
+    cache.tryAcquire(1100, "a", 3, ThrottleRule.BY_PEAK_TPS);
+
+    verify(limiter).tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+    verify(limiter).tryAcquire(1100, "a", 4, ThrottleRule.BY_AVERAGE_TPS);
+    verify(limiter).tryAcquire(1100, "a", 3, ThrottleRule.BY_PEAK_TPS);
+    verifyNoMoreInteractions(limiter);
+  }
+
+  public void testCallWithoutTimeUsesTheClock() throws Exception {
+    cache.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+
+    cache.tryAcquire("a", 3, ThrottleRule.BY_AVERAGE_TPS);
+
+    verify(limiter).tryAcquire(712233, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+  }
+
+  public void testAllowedIsNotCached() throws Exception {
+    when(limiter.tryAcquire(anyLong(), anyString(), anyDouble(), any(ThrottleRule.class))).thenReturn(new AcquireResult(true, 0, tps));
+
+    cache.tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+    cache.tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+
+    verify(limiter, times(2)).tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+    assertEquals(0, cache.size());
+  }
+
+  public void testSizeIsBounded() throws Exception {
+    cache.tryAcquire(1000, "a", 3, ThrottleRule.BY_AVERAGE_TPS);
+    cache.tryAcquire(1100, "b", 3, ThrottleRule.BY_AVERAGE_TPS);
+    cache.tryAcquire(1200, "c", 3, ThrottleRule.BY_AVERAGE_TPS);
+
+    // a expired first and made room for c
+    assertEquals(2, cache.size());
+    cache.tryAcquire(1300, "b", 3, ThrottleRule.BY_AVERAGE_TPS);
+    cache.tryAcquire(1300, "c", 3, ThrottleRule.BY_AVERAGE_TPS);
+    assertEquals(2, cache.getHits());
+  }
+}
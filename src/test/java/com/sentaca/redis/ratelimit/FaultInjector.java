@@ -0,0 +1,49 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * Stand-in for an unreliable redis, answers a stubbed call like
+ * {@link redis.clients.jedis.JedisPool#getResource()} with the given value,
+ * after a delay or with a connection failure.
+ */
+class FaultInjector implements Answer<Object> {
+
+  private final Object value;
+  private final AtomicInteger calls = new AtomicInteger();
+  private volatile boolean down;
+  private volatile long delay;
+
+  FaultInjector(Object value) {
+    this.value = value;
+  }
+
+  void setDown(boolean down) {
+    this.down = down;
+  }
+
+  void setDelay(long delay) {
+    this.delay = delay;
+  }
+
+  int getCalls() {
+    return calls.get();
+  }
+
+  @Override
+  public Object answer(InvocationOnMock invocation) throws Throwable {
+    calls.incrementAndGet();
+    if (delay > 0) {
+      Thread.sleep(delay);
+    }
+    if (down) {
+      throw new JedisConnectionException("Connection refused");
+    }
+    return value;
+  }
+}
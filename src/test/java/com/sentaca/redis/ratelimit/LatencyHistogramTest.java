@@ -0,0 +1,55 @@
+package com.sentaca.redis.ratelimit;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+  public void testEmpty() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.getPercentile(99));
+    assertEquals(0.0, h.getMean(), 0.0);
+  }
+
+  public void testSmallValuesAreExact() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      h.record(i);
+    }
+    assertEquals(10, h.getCount());
+    assertEquals(5, h.getPercentile(50));
+    assertEquals(10, h.getPercentile(99));
+    assertEquals(5.5, h.getMean(), 0.001);
+  }
+
+  public void testPercentileWithinBucketPrecision() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 100000; i++) {
+      h.record(i * 1000l);
+    }
+    long p99 = h.getPercentile(99);
+    assertTrue(p99 >= 99000000l);
+    assertTrue(p99 <= 99000000l * 17 / 16);
+    assertEquals(100000000l, h.getPercentile(100));
+    assertEquals(100000000l, h.getMax());
+  }
+
+  public void testBucketBoundaries() throws Exception {
+    for (long v : new long[] { 0, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE }) {
+      int index = LatencyHistogram.index(v);
+      assertTrue(v <= LatencyHistogram.upperBound(index));
+      if (index > 0) {
+        assertTrue(v > LatencyHistogram.upperBound(index - 1));
+      }
+    }
+  }
+
+  public void testReset() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    h.record(42);
+    h.reset();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.getMax());
+    assertEquals(0, h.getPercentile(50));
+  }
+}
@@ -0,0 +1,140 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import junit.framework.TestCase;
+
+public class LocalRateLimitServiceTest extends TestCase {
+
+  private LocalRateLimitService service;
+
+  @Override
+  protected void setUp() throws Exception {
+    service = new LocalRateLimitService(1, 10, 100);
+  }
+
+  public void testCountMultiBuckets() throws Exception {
+    service.add(712233, "127.0.0.1");
+    service.add(712233, "127.0.0.1");
+    service.add(712233, "127.0.0.1");
+
+    service.add(712233 + 1000, "127.0.0.1");
+    service.add(712233 + 1000, "127.0.0.1");
+
+    service.add(712233 + 2000, "127.0.0.1");
+    service.add(712233 + 2000, "127.0.0.1");
+    service.add(712233 + 2000, "127.0.0.1");
+    service.add(712233 + 2000, "127.0.0.1");
+
+    CountResult result = service.count(712233 + 3000, "127.0.0.1");
+    assertEquals(9, result.getCount());
+    assertEquals(7, result.getNumberOfEmptyBuckets());
+    assertEquals(4, result.getPeakCount());
+    assertEquals(0, result.getLatestBucketCount());
+
+    result = service.count(712233 + 2000, "127.0.0.1");
+    assertEquals(4, result.getLatestBucketCount());
+  }
+
+  public void testStaleBucketsAreIgnored() throws Exception {
+    service.add(712233, "127.0.0.1");
+    service.add(712233 + 9000, "127.0.0.1");
+    assertEquals(2, service.count(712233 + 9000, "127.0.0.1").getCount());
+    assertEquals(1, service.count(712233 + 10000, "127.0.0.1").getCount());
+
+    // the slot of the first bucket is reused
+    assertEquals(1, service.addAndCount(712233 + 10000, "127.0.0.1").getLatestBucketCount());
+    assertEquals(2, service.count(712233 + 10000, "127.0.0.1").getCount());
+  }
+
+  public void testLateHitDoesNotClearNewerBucket() throws Exception {
+    service.add(712233 + 10000, "127.0.0.1");
+    // same slot, a whole window earlier
+    service.add(712233, "127.0.0.1");
+    assertEquals(1, service.count(712233 + 10000, "127.0.0.1").getLatestBucketCount());
+  }
+
+  public void testCallsWithoutTimeUseTheClock() throws Exception {
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    service.add(712233, "127.0.0.1");
+    assertEquals(1, service.tps("127.0.0.1").getCounters().getCount());
+    assertTrue(service.tryAcquire("127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    assertEquals(2, service.count(712233, "127.0.0.1").getCount());
+  }
+
+  public void testTryAcquire() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      assertTrue(service.tryAcquire(712233, "127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    }
+    AcquireResult result = service.tryAcquire(712233, "127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS);
+    assertFalse(result.isAllowed());
+    assertEquals(9767, result.getRetryAfter());
+    assertEquals(2.0, result.getTps().getTps(), 0.001);
+    assertTrue(service.tryAcquire(712233 + 9767, "127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+
+    result = service.tryAcquire(712233 + 9767, "127.0.0.1", 1, ThrottleRule.BY_LATEST_BUCKET_TPS);
+    assertFalse(result.isAllowed());
+    assertEquals(1000, result.getRetryAfter());
+  }
+
+  public void testIdleSubjectsAreEvicted() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      service.add(712233, "10.0.0." + i);
+    }
+    assertEquals(50, service.size());
+
+    service.add(712233 + 5000, "127.0.0.1");
+    assertEquals(51, service.size());
+    assertEquals(1, service.count(712233, "10.0.0.1").getCount());
+
+    service.add(712233 + 12000, "127.0.0.2");
+    assertEquals(2, service.size());
+    assertEquals(0, service.count(712233 + 12000, "10.0.0.1").getCount());
+  }
+
+  public void testSubjectsAreBounded() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      service.add(712233 + i * 10, "10.0.0." + i);
+      assertTrue(service.size() <= 100);
+    }
+    assertEquals(1, service.count(712233 + 4990, "10.0.0.499").getCount());
+  }
+
+  public void testBurstOfNewSubjectsIsBounded() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      service.add(712233, "10.0.0." + i);
+      assertTrue(service.size() <= 100);
+    }
+    service.add(712233 + 1, "127.0.0.1");
+    assertEquals(1, service.count(712233 + 1, "127.0.0.1").getCount());
+    assertEquals(1, service.count(712233, "10.0.0.999").getCount());
+  }
+
+  public void testBoundHoldsUnderConcurrentWrites() throws Exception {
+    service = new LocalRateLimitService(1, 10, 10);
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            if (id == 0) {
+              service.add(712233, "hot");
+            } else {
+              service.add(712233, "cold-" + id + "-" + i);
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(service.size() <= 10);
+  }
+}
@@ -0,0 +1,54 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class MultiWindowRateLimitServiceRedisTest extends RedisTestCase {
+
+  private static final long NOW = 1700000000500l;
+
+  private MultiWindowRateLimitService service;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // 2/s and 5/10s share the buckets of a second, 8/2min has its own level
+    service = new MultiWindowRateLimitService(pool, "test", "multi", Arrays.asList(new RateLimitWindow(2, 1), new RateLimitWindow(5, 10),
+        new RateLimitWindow(8, 120, 60)));
+  }
+
+  public void testEveryWindowIsEnforced() throws Exception {
+    assertTrue(service.tryAcquire(NOW, "127.0.0.1", 1).isAllowed());
+    assertTrue(service.tryAcquire(NOW, "127.0.0.1", 1).isAllowed());
+    MultiWindowResult denied = service.tryAcquire(NOW, "127.0.0.1", 1);
+    assertFalse(denied.isAllowed());
+    assertEquals(500, denied.getRetryAfter());
+
+    assertTrue(service.tryAcquire(NOW + 1000, "127.0.0.1", 2).isAllowed());
+    assertTrue(service.tryAcquire(NOW + 2000, "127.0.0.1", 1).isAllowed());
+    denied = service.tryAcquire(NOW + 2000, "127.0.0.1", 1);
+    assertFalse(denied.isAllowed());
+    // until the hits of NOW leave the 10 seconds window
+    assertEquals(7500, denied.getRetryAfter());
+
+    final MultiWindowResult counted = service.count(NOW + 2000, "127.0.0.1");
+    assertEquals(1, counted.getCount(0));
+    assertEquals(5, counted.getCount(1));
+    assertEquals(5, counted.getCount(2));
+    assertEquals(3, counted.getRemaining(2));
+  }
+
+  public void testAddAndCountRecordsOverTheLimit() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      service.addAndCount(NOW, "127.0.0.1");
+    }
+    final MultiWindowResult result = service.addAndCount(NOW, "127.0.0.1");
+    assertFalse(result.isAllowed());
+    assertEquals(3, result.getCount(0));
+
+    final Map<String, MultiWindowResult> all = service.countAll(NOW + 10000, Arrays.asList("127.0.0.1", "127.0.0.2"));
+    assertEquals(0, all.get("127.0.0.1").getCount(1));
+    assertEquals(3, all.get("127.0.0.1").getCount(2));
+    assertEquals(0, all.get("127.0.0.2").getCount(2));
+  }
+}
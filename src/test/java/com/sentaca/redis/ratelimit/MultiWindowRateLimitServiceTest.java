@@ -0,0 +1,80 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import junit.framework.TestCase;
+
+public class MultiWindowRateLimitServiceTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+
+  private MultiWindowRateLimitService service;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    service = new MultiWindowRateLimitService(pool, null, "access", Arrays.asList(new RateLimitWindow(10, 1), new RateLimitWindow(300, 60),
+        new RateLimitWindow(5000, 3600)));
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testWindowsShareLevels() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("0", "986", "10", "120", "700"));
+
+    MultiWindowResult result = service.tryAcquire(712014, "127.0.0.1", 1);
+
+    // two levels: 60 buckets of 1s and 60 buckets of 60s
+    List<String> args = Arrays.asList("712014", "1", "acquire", "3660", "2", "1", "60", "60", "60", "3", "1", "1", "10", "1", "60", "300", "2",
+        "60", "5000");
+    verify(jedis, times(1)).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    assertFalse(result.isAllowed());
+    assertEquals(986, result.getRetryAfter());
+    assertEquals(10, result.getCount(0));
+    assertEquals(0, result.getRemaining(0));
+    assertEquals(180, result.getRemaining(1));
+    assertEquals(4300, result.getRemaining(2));
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void testCountDoesNotRecord() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "0", "1", "2", "3"));
+
+    MultiWindowResult result = service.count(712014, "127.0.0.1");
+
+    ArgumentCaptor<List> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis).evalsha(eq("sha"), eq(Collections.singletonList("access:127.0.0.1")), args.capture());
+    assertEquals(Arrays.asList("712014", "0", "count"), args.getValue().subList(0, 3));
+    assertTrue(result.isAllowed());
+    assertEquals(3, result.getCount(2));
+  }
+
+  public void testDefaultBucketInterval() throws Exception {
+    assertEquals(1, new RateLimitWindow(10, 1).getBucketInterval());
+    assertEquals(1, new RateLimitWindow(300, 60).getBucketInterval());
+    assertEquals(60, new RateLimitWindow(5000, 3600).getBucketInterval());
+    assertEquals(1440, new RateLimitWindow(5000, 86400).getBucketInterval());
+  }
+
+  public void testInvalidWindow() throws Exception {
+    try {
+      new RateLimitWindow(10, 60, 7);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/***
+ * Runs the lua scripts of every bucket layout against redis, with the
+ * MULTI/EXEC ring layout as the reference.
+ */
+public class RateLimitServiceRedisTest extends RedisTestCase {
+
+  private static final long NOW = 1700000000500l;
+
+  private enum Mode {
+    MULTI, RING, EPOCH, PACKED, SKETCH
+  }
+
+  private RateLimitService service(Mode mode) {
+    final RateLimitService service = new RateLimitService(pool, "test", mode.name(), 10);
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    if (mode == Mode.MULTI) {
+      return service;
+    }
+    service.setScripted(true);
+    service.setBucketLayout(BucketLayout.valueOf(mode.name()));
+    return service;
+  }
+
+  public void testCounts() throws Exception {
+    for (Mode mode : Mode.values()) {
+      final RateLimitService service = service(mode);
+      service.add(NOW - 3000, "127.0.0.1");
+      service.add(NOW - 1000, "127.0.0.1", 2);
+      service.add(NOW, "127.0.0.1");
+      service.add(NOW, "127.0.0.1");
+      final CountResult added = service.addAndCount(NOW, "127.0.0.1");
+      assertEquals(mode.name(), 6, added.getCount());
+
+      final CountResult cr = service.count(NOW, "127.0.0.1");
+      assertEquals(mode.name(), 6, cr.getCount());
+      assertEquals(mode.name(), 7, cr.getNumberOfEmptyBuckets());
+      assertEquals(mode.name(), 3, cr.getPeakCount());
+      assertEquals(mode.name(), 3, cr.getLatestBucketCount());
+      assertEquals(mode.name(), "[0, 0, 0, 0, 0, 0, 1, 0, 2, 3]", Arrays.toString(service.countSeries(NOW, "127.0.0.1").getCounts()));
+      assertEquals(mode.name(), 0.6, service.tps("127.0.0.1", ThrottleRule.BY_AVERAGE_TPS), 0.001);
+      assertEquals(mode.name(), 3.0, service.tps("127.0.0.1", ThrottleRule.BY_LATEST_BUCKET_TPS), 0.001);
+
+      final Map<String, CountResult> all = service.countAll(NOW, Arrays.asList("127.0.0.1", "127.0.0.2"));
+      assertEquals(mode.name(), 6, all.get("127.0.0.1").getCount());
+      assertEquals(mode.name(), 0, all.get("127.0.0.2").getCount());
+    }
+  }
+
+  public void testWindowMovesOn() throws Exception {
+    for (Mode mode : Mode.values()) {
+      final RateLimitService service = service(mode);
+      service.add(NOW, "127.0.0.1");
+      service.add(NOW, "127.0.0.1");
+      assertEquals(mode.name(), 2, service.count(NOW + 9000, "127.0.0.1").getCount());
+      assertEquals(mode.name(), 0, service.count(NOW + 10000, "127.0.0.1").getCount());
+      service.add(NOW + 10000, "127.0.0.1");
+      assertEquals(mode.name(), 1, service.count(NOW + 10000, "127.0.0.1").getCount());
+    }
+  }
+
+  public void testTryAcquire() throws Exception {
+    for (Mode mode : Mode.values()) {
+      final RateLimitService service = service(mode);
+      // 0.3 tps over 10 seconds allows 3 hits
+      for (int i = 0; i < 3; i++) {
+        assertTrue(mode.name(), service.tryAcquire(NOW, "127.0.0.1", 0.3, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+      }
+      final AcquireResult denied = service.tryAcquire(NOW, "127.0.0.1", 0.3, ThrottleRule.BY_AVERAGE_TPS);
+      assertFalse(mode.name(), denied.isAllowed());
+      assertTrue(mode.name(), denied.getRetryAfter() > 0);
+      assertEquals(mode.name(), 3, service.count(NOW, "127.0.0.1").getCount());
+    }
+  }
+
+  public void testBackfillKeepsNewerBuckets() throws Exception {
+    for (Mode mode : Mode.values()) {
+      final RateLimitService service = service(mode);
+      service.add(NOW, "127.0.0.1");
+      service.add(NOW, "127.0.0.1");
+      service.backfill(NOW, new long[] { NOW - 3000, NOW - 20000 }, Arrays.asList("127.0.0.1", "127.0.0.1"), new int[] { 1, 5 }, false);
+
+      final CountResult cr = service.count(NOW, "127.0.0.1");
+      assertEquals(mode.name(), 3, cr.getCount());
+      assertEquals(mode.name(), 2, cr.getLatestBucketCount());
+    }
+  }
+
+  public void testSketchesShareTheKeyOfTheAction() throws Exception {
+    final RateLimitService service = service(Mode.SKETCH);
+    for (int i = 0; i < 20; i++) {
+      service.add(NOW + i * 1000, "127.0.0." + i % 3);
+    }
+    // a whole window late, the newer bucket in its slot is kept
+    service.add(NOW + 9000, "127.0.0.1");
+    assertEquals(1, service.count(NOW + 19000, "127.0.0.1").getLatestBucketCount());
+    assertEquals(4, service.count(NOW + 19000, "127.0.0.1").getCount());
+    assertEquals(0, service.count(NOW + 29000, "127.0.0.1").getCount());
+
+    final Jedis j = pool.getResource();
+    try {
+      assertEquals(Collections.singleton("test:SKETCH:~cms"), j.keys("*"));
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  public void testBatchEachFailsOnlyTheBrokenSubject() throws Exception {
+    final RateLimitService service = service(Mode.RING);
+    final Jedis j = pool.getResource();
+    try {
+      j.set(service.subjectKey("127.0.0.2"), "not a hash");
+    } finally {
+      pool.returnResource(j);
+    }
+
+    final List<Object> results = service.batchEach(new long[] { NOW, NOW }, Arrays.asList("127.0.0.1", "127.0.0.2"), new int[] { 1, 1 }, true);
+    assertEquals(1, ((CountResult) results.get(0)).getCount());
+    assertTrue(results.get(1) instanceof JedisDataException);
+  }
+
+  public void testRingKeysAreConverted() throws Exception {
+    for (BucketLayout layout : new BucketLayout[] { BucketLayout.EPOCH, BucketLayout.PACKED }) {
+      final RateLimitService ring = service(Mode.MULTI);
+      ring.add(NOW - 2000, layout.name());
+      ring.add(NOW, layout.name());
+
+      final RateLimitService service = service(Mode.MULTI);
+      service.setBucketLayout(layout);
+      assertEquals(layout.name(), "[0, 0, 0, 0, 0, 0, 0, 1, 0, 1]", Arrays.toString(service.countSeries(NOW, layout.name()).getCounts()));
+      service.add(NOW, layout.name());
+      assertEquals(layout.name(), 3, service.count(NOW, layout.name()).getCount());
+    }
+  }
+
+  public void testServerTime() throws Exception {
+    final RedisClock clock = new RedisClock(pool);
+    assertTrue(Math.abs(clock.getOffset()) < 1000);
+    final long now = clock.millis();
+    assertTrue(Math.abs(now - System.currentTimeMillis()) < 1000);
+    for (Mode mode : Mode.values()) {
+      final RateLimitService service = service(mode);
+      service.setServerTime(true);
+      // the caller time is ignored
+      service.add(0, "127.0.0.1");
+      service.add(0, "127.0.0.1");
+      assertEquals(mode.name(), 2, service.count(0, "127.0.0.1").getCount());
+      assertTrue(mode.name(), service.tryAcquire(0, "127.0.0.1", 100, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+      assertEquals(mode.name(), 3, service.count(0, "127.0.0.1").getCount());
+    }
+  }
+
+  public void testExport() throws Exception {
+    final Map<String, String> expected = new HashMap<String, String>();
+    // subjects of the three layouts under one action
+    for (BucketLayout layout : new BucketLayout[] { BucketLayout.RING, BucketLayout.EPOCH, BucketLayout.PACKED }) {
+      final RateLimitService writer = new RateLimitService(pool, "test", "export", 10);
+      writer.setBucketLayout(layout);
+      final String subject = "127.0.0." + layout.ordinal();
+      writer.add(NOW - 1000, subject);
+      writer.add(NOW, subject);
+      writer.add(NOW, subject);
+      expected.put(subject, "[0, 0, 0, 0, 0, 0, 0, 0, 1, 2]");
+    }
+    final RateLimitService service = new RateLimitService(pool, "test", "export", 10);
+    final Map<String, String> exported = new HashMap<String, String>();
+    for (Iterator<SubjectWindow> it = service.export(NOW, 1); it.hasNext();) {
+      final SubjectWindow w = it.next();
+      exported.put(w.getSubject(), Arrays.toString(w.getSeries().getCounts()));
+    }
+    assertEquals(expected, exported);
+
+    service.setBucketLayout(BucketLayout.SKETCH);
+    try {
+      service.export(NOW, 1);
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // expected
+    }
+  }
+}
@@ -1,17 +1,31 @@
 package com.sentaca.redis.ratelimit;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 import junit.framework.TestCase;
 
 public class RateLimitServiceTest extends TestCase {
@@ -135,4 +149,343 @@ public class RateLimitServiceTest extends TestCase {
 
   }
 
+  @SuppressWarnings("unchecked")
+  public void testScriptedAddAndCount() throws Exception {
+    service.setScripted(true);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("9", "7", "4", "1"));
+
+    CountResult result = service.addAndCount(712233, "127.0.0.1");
+
+    List<String> args = Arrays.asList("112", "300", "290", "10", "299", "712", "1");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    verifyZeroInteractions(tx);
+    assertEquals(9, result.getCount());
+    assertEquals(7, result.getNumberOfEmptyBuckets());
+    assertEquals(4, result.getPeakCount());
+    assertEquals(1, result.getLatestBucketCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testScriptedCountFallsBackToEval() throws Exception {
+    service.setScripted(true);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenThrow(new JedisDataException("NOSCRIPT No matching script."));
+    when(jedis.eval(anyString(), anyList(), anyList())).thenReturn(Arrays.asList("0", "10", "0", "0"));
+
+    CountResult result = service.count(712233, "127.0.0.1");
+
+    List<String> args = Arrays.asList("112", "300", "290", "10", "299", "712", "0");
+    verify(jedis).eval(anyString(), eq(Collections.singletonList("access:127.0.0.1")), eq(args));
+    assertEquals(0, result.getCount());
+    assertEquals(10, result.getNumberOfEmptyBuckets());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testTryAcquireDenied() throws Exception {
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("0", "767", "40", "0", "4", "4"));
+
+    AcquireResult result = service.tryAcquire(712233, "127.0.0.1", 3.5, ThrottleRule.BY_AVERAGE_TPS);
+
+    List<String> args = Arrays.asList("112", "300", "290", "10", "299", "712", "1", "10", "767", "BY_AVERAGE_TPS", "3.5");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    assertFalse(result.isAllowed());
+    assertEquals(767, result.getRetryAfter());
+    assertEquals(4.0, result.getTps().getTps(), 0.001);
+    assertEquals(4.0, result.getTps().get(ThrottleRule.BY_PEAK_TPS), 0.001);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testEpochLayoutIsScripted() throws Exception {
+    service.setBucketLayout(BucketLayout.EPOCH);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "9", "1", "1"));
+
+    service.add(712233, "127.0.0.1");
+
+    List<String> args = Arrays.asList("112", "300", "12", "10", "11", "712", "1");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    verifyZeroInteractions(tx);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testPackedLayoutUsesBitfieldScript() throws Exception {
+    service.setBucketLayout(BucketLayout.PACKED);
+    assertTrue(service.isScripted());
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "9", "1", "1"));
+
+    service.add(712233, "127.0.0.1");
+
+    List<String> args = Arrays.asList("112", "300", "12", "10", "11", "712", "1");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    ArgumentCaptor<String> script = ArgumentCaptor.forClass(String.class);
+    verify(jedis).scriptLoad(script.capture());
+    assertTrue(script.getValue().contains("BITFIELD"));
+    verifyZeroInteractions(tx);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testSketchLayoutSharesOneKeyPerAction() throws Exception {
+    service.setBucketLayout(BucketLayout.SKETCH);
+    service.setSketchErrorBounds(0.01, 0.05);
+    assertTrue(service.isScripted());
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "9", "1", "1"));
+
+    service.add(712233, "127.0.0.1");
+
+    String offsets = new CountMinSketch(0.01, 0.05).offsetList("127.0.0.1");
+    List<String> args = Arrays.asList("112", "300", offsets, "10", "11", "712", "1");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:~cms"), args);
+    assertEquals(4 * 272 * 3, service.getSketchSize());
+    verifyZeroInteractions(tx);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testExportScansWithoutWriting() throws Exception {
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    List<Object> first = new ArrayList<Object>(Arrays.<Object> asList("17", "access:127.0.0.1"));
+    for (int i = 0; i < 10; i++) {
+      first.add(i == 9 ? "3" : "0");
+    }
+    List<Object> last = new ArrayList<Object>(Arrays.<Object> asList("0", "access:127.0.0.2"));
+    for (int i = 0; i < 10; i++) {
+      last.add("1");
+    }
+    when(jedis.evalsha(eq("sha"), eq(Collections.<String> emptyList()), anyList())).thenReturn(Arrays.asList("17"),
+        first, last);
+
+    Iterator<SubjectWindow> export = service.export(712233, 100);
+
+    assertTrue(export.hasNext());
+    SubjectWindow window = export.next();
+    assertEquals("127.0.0.1", window.getSubject());
+    assertEquals(3, window.getCountResult().getCount());
+    assertEquals(3, window.getCountResult().getLatestBucketCount());
+    assertEquals(9, window.getCountResult().getNumberOfEmptyBuckets());
+    window = export.next();
+    assertEquals("127.0.0.2", window.getSubject());
+    assertEquals(10, window.getSeries().getCount());
+    assertFalse(export.hasNext());
+
+    List<String> args = Arrays.asList("112", "300", "290", "10", "299", "712", "0", "access:*", "100", "7");
+    verify(jedis).evalsha("sha", Collections.<String> emptyList(), args);
+    verify(jedis, times(3)).evalsha(eq("sha"), eq(Collections.<String> emptyList()), anyList());
+    verifyZeroInteractions(tx);
+  }
+
+  public void testAddAllUsesOneTransaction() throws Exception {
+    service.addAll(712233, new HashSet<String>(Arrays.asList("127.0.0.1", "127.0.0.2")));
+
+    verify(jedis, times(1)).multi();
+    verify(tx).hincrBy("access:127.0.0.1", "112", 1);
+    verify(tx).hincrBy("access:127.0.0.2", "112", 1);
+    verify(tx, never()).hget(anyString(), anyString());
+    verify(tx).exec();
+  }
+
+  public void testCountAllUsesOneTransaction() throws Exception {
+    List<Object> replies = new ArrayList<Object>();
+    for (int i = 0; i < 290; i++) {
+      replies.add(1l);
+    }
+    replies.addAll(Arrays.<Object> asList("3", null, null, null, null, null, null, null, null, "2"));
+    for (int i = 0; i < 290; i++) {
+      replies.add(1l);
+    }
+    replies.addAll(Arrays.<Object> asList("1", "1", null, null, null, null, null, null, null, null));
+    when(tx.exec()).thenReturn(replies);
+
+    Map<String, CountResult> result = service.countAll(712233, Arrays.asList("127.0.0.1", "127.0.0.2", "127.0.0.1"));
+
+    verify(jedis, times(1)).multi();
+    assertEquals(Arrays.asList("127.0.0.1", "127.0.0.2"), new ArrayList<String>(result.keySet()));
+    assertEquals(5, result.get("127.0.0.1").getCount());
+    assertEquals(3, result.get("127.0.0.1").getLatestBucketCount());
+    assertEquals(2, result.get("127.0.0.2").getCount());
+    assertEquals(8, result.get("127.0.0.2").getNumberOfEmptyBuckets());
+  }
+
+  public void testMetricsRecordAdd() throws Exception {
+    RateLimitMetrics metrics = mock(RateLimitMetrics.class);
+    service.setMetrics(metrics);
+
+    service.add(712233, "127.0.0.1");
+
+    // multi, hincrBy, 290 hdels, expire and exec
+    verify(metrics).record(eq("add"), anyLong(), eq(294));
+    verify(metrics).poolWait(anyLong());
+    verifyNoMoreInteractions(metrics);
+  }
+
+  public void testDiscardedTransactionIsReported() throws Exception {
+    RateLimitMetrics metrics = mock(RateLimitMetrics.class);
+    service.setMetrics(metrics);
+    when(tx.exec()).thenReturn(null);
+
+    try {
+      service.add(712233, "127.0.0.1");
+      fail();
+    } catch (JedisException ex) {
+      // expected
+    }
+
+    verify(metrics).execFailed("add");
+    verify(metrics).record(eq("add"), anyLong(), eq(294));
+  }
+
+  public void testFailedCommandIsReported() throws Exception {
+    RateLimitMetrics metrics = mock(RateLimitMetrics.class);
+    service.setMetrics(metrics);
+    when(tx.exec()).thenReturn(Arrays.<Object> asList(new JedisDataException("WRONGTYPE")));
+
+    try {
+      service.count(712233, "127.0.0.1");
+      fail();
+    } catch (JedisDataException ex) {
+      assertEquals("WRONGTYPE", ex.getMessage());
+    }
+
+    verify(metrics).execFailed("count");
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testMetricsRecordDecision() throws Exception {
+    DefaultRateLimitMetrics metrics = new DefaultRateLimitMetrics();
+    service.setMetrics(metrics);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("0", "767", "40", "0", "4", "4"));
+
+    service.tryAcquire(712233, "127.0.0.1", 3.5, ThrottleRule.BY_AVERAGE_TPS);
+
+    assertEquals(Long.valueOf(1), metrics.getDenied().get("access"));
+    assertNull(metrics.getAllowed().get("access"));
+    assertEquals(Long.valueOf(1), metrics.getCalls().get("tryAcquire"));
+    assertEquals(1, metrics.getPoolWaits());
+  }
+
+  public void testBinaryAdd() throws Exception {
+    service.setBinary(true);
+
+    service.add(712233, "127.0.0.1");
+
+    verify(tx).hincrBy(aryEq(SafeEncoder.encode("access:127.0.0.1")), aryEq(SafeEncoder.encode("112")), eq(1l));
+    for (int i = 0; i < 300 - 10; i++) {
+      verify(tx).hdel(aryEq(SafeEncoder.encode("access:127.0.0.1")), aryEq(SafeEncoder.encode(String.valueOf((i + 112 + 1) % 300))));
+    }
+    verify(tx).expire(aryEq(SafeEncoder.encode("access:127.0.0.1")), eq(299));
+    verify(tx).exec();
+    verifyNoMoreInteractions(tx);
+  }
+
+  public void testBinaryCount() throws Exception {
+    service.setBinary(true);
+    List<Object> replies = new ArrayList<Object>();
+    replies.addAll(Arrays.<Object> asList(SafeEncoder.encode("3"), null, null, null, null, null, null, null, null, SafeEncoder.encode("12")));
+    for (int i = 0; i < 290; i++) {
+      replies.add(0l);
+    }
+    when(tx.exec()).thenReturn(replies);
+
+    CountResult result = service.count(712233, "127.0.0.1");
+
+    verify(tx).hget(aryEq(SafeEncoder.encode("access:127.0.0.1")), aryEq(SafeEncoder.encode("112")));
+    verify(tx).hget(aryEq(SafeEncoder.encode("access:127.0.0.1")), aryEq(SafeEncoder.encode("103")));
+    assertEquals(15, result.getCount());
+    assertEquals(8, result.getNumberOfEmptyBuckets());
+    assertEquals(12, result.getPeakCount());
+    assertEquals(3, result.getLatestBucketCount());
+  }
+
+  public void testCountSeriesIsOldestFirst() throws Exception {
+    List<Object> replies = new ArrayList<Object>();
+    replies.addAll(Arrays.<Object> asList("3", null, null, null, null, null, null, null, "2", "12"));
+    for (int i = 0; i < 290; i++) {
+      replies.add(0l);
+    }
+    when(tx.exec()).thenReturn(replies);
+
+    BucketSeries series = service.countSeries(712233, "127.0.0.1");
+
+    verify(tx, times(1)).exec();
+    assertTrue(Arrays.equals(new int[] { 12, 2, 0, 0, 0, 0, 0, 0, 0, 3 }, series.getCounts()));
+    assertEquals(17, series.getCount());
+    assertEquals(3, series.getLatestBucketCount());
+    assertEquals(12, series.getPeakCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testScriptedCountSeries() throws Exception {
+    service.setScripted(true);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "10"));
+
+    BucketSeries series = service.countSeries(712233, "127.0.0.1");
+
+    verifyZeroInteractions(tx);
+    assertEquals(55, series.getCount());
+    assertEquals(10, series.getLatestBucketCount());
+    assertEquals(1d, series.getSlope(), 1e-9);
+  }
+
+  public void testTpsByRuleUsesClock() throws Exception {
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    List<Object> replies = new ArrayList<Object>();
+    replies.addAll(Arrays.<Object> asList("3", null, null, null, null, null, null, null, "2", "15"));
+    for (int i = 0; i < 290; i++) {
+      replies.add(0l);
+    }
+    when(tx.exec()).thenReturn(replies);
+
+    assertEquals(2.0, service.tps("127.0.0.1", ThrottleRule.BY_AVERAGE_TPS), 0.001);
+    assertEquals(15.0, service.tps("127.0.0.1", ThrottleRule.BY_PEAK_TPS), 0.001);
+    assertEquals(service.tps("127.0.0.1").getTpsNoEmptyBuckets(), service.tps("127.0.0.1", ThrottleRule.BY_NO_EMPTY_BUCKETS_TPS), 0.001);
+    verify(tx, times(4)).hget("access:127.0.0.1", "103");
+  }
+
+  public void testTpsByLatestBucketWithoutScriptReadsTheWindow() throws Exception {
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    List<Object> replies = new ArrayList<Object>();
+    replies.addAll(Arrays.<Object> asList("3", null, null, null, null, null, null, null, null, "5"));
+    for (int i = 0; i < 290; i++) {
+      replies.add(0l);
+    }
+    when(tx.exec()).thenReturn(replies);
+
+    assertEquals(3.0, service.tps("127.0.0.1", ThrottleRule.BY_LATEST_BUCKET_TPS), 0.001);
+
+    verify(tx).hget("access:127.0.0.1", "112");
+    verify(tx).hget("access:127.0.0.1", "103");
+    verify(tx).hdel("access:127.0.0.1", "113");
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testScriptedTpsByRule() throws Exception {
+    service.setScripted(true);
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("9", "7", "4", "1"));
+
+    assertEquals(4.0, service.tps("127.0.0.1", ThrottleRule.BY_PEAK_TPS), 0.001);
+    assertEquals(3.0, service.tps("127.0.0.1", ThrottleRule.BY_NO_EMPTY_BUCKETS_TPS), 0.001);
+
+    List<String> args = Arrays.asList("112", "300", "290", "10", "299", "712", "0");
+    verify(jedis, times(2)).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testServerTimeIgnoresCallerTime() throws Exception {
+    service.setServerTime(true);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("9", "7", "4", "1"));
+
+    service.count(712233, "127.0.0.1");
+
+    assertTrue(service.isScripted());
+    List<String> args = Arrays.asList("", "300", "290", "10", "299", "1", "0");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    verifyZeroInteractions(tx);
+  }
 }
@@ -0,0 +1,53 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import junit.framework.TestCase;
+
+public class RedisClockTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testFollowsServerTime() throws Exception {
+    final long server = System.currentTimeMillis() + 5000;
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList(String.valueOf(server / 1000), String.valueOf(server % 1000 * 1000)));
+    RedisClock clock = new RedisClock(pool, 60000);
+
+    final long millis = clock.millis();
+    clock.millis();
+
+    assertTrue(Math.abs(millis - server) < 1000);
+    assertTrue(Math.abs(clock.getOffset() - 5000) < 1000);
+    verify(jedis, times(1)).evalsha("sha", Collections.<String> emptyList(), Collections.<String> emptyList());
+  }
+
+  public void testKeepsLocalTimeWhenRedisIsDown() throws Exception {
+    when(pool.getResource()).thenThrow(new JedisConnectionException("down"));
+    RedisClock clock = new RedisClock(pool, 60000);
+
+    assertTrue(Math.abs(clock.millis() - System.currentTimeMillis()) < 1000);
+    clock.millis();
+
+    assertEquals(0, clock.getOffset());
+    verify(pool, times(1)).getResource();
+  }
+}
@@ -0,0 +1,71 @@
+package com.sentaca.redis.ratelimit;
+
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/***
+ * Base of the tests run against a redis server on localhost:6379. They use
+ * database 15, flushed before every test, and are skipped when no server is
+ * running.
+ * 
+ * @author hamster
+ * 
+ */
+public abstract class RedisTestCase extends TestCase {
+
+  private static final String HOST = "localhost";
+  private static final int PORT = 6379;
+  private static final int DATABASE = 15;
+
+  private static Boolean available;
+
+  protected JedisPool pool;
+
+  @Override
+  public void run(TestResult result) {
+    if (isAvailable()) {
+      super.run(result);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    pool = new JedisPool(new GenericObjectPool.Config(), HOST, PORT, 2000, null, DATABASE);
+    final Jedis j = pool.getResource();
+    try {
+      j.flushDB();
+    } finally {
+      pool.returnResource(j);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pool.destroy();
+  }
+
+  private static synchronized boolean isAvailable() {
+    if (available == null) {
+      final Jedis j = new Jedis(HOST, PORT);
+      try {
+        j.ping();
+        available = Boolean.TRUE;
+      } catch (JedisConnectionException ex) {
+        available = Boolean.FALSE;
+      } finally {
+        try {
+          j.disconnect();
+        } catch (JedisConnectionException ex) {
+          // not connected
+        }
+      }
+    }
+    return available;
+  }
+}
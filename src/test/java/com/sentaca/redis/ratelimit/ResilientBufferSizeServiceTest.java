@@ -0,0 +1,83 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import junit.framework.TestCase;
+
+public class ResilientBufferSizeServiceTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+
+  private FaultInjector redis;
+  private BufferSizeService service;
+  private CircuitBreaker breaker;
+  private ResilientBufferSizeService resilient;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    redis = new FaultInjector(jedis);
+    when(pool.getResource()).then(redis);
+    service = spy(new BufferSizeService(pool, null, "access"));
+    breaker = new CircuitBreaker(10, 1, 0.5, 1000, 5000);
+    breaker.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    resilient = new ResilientBufferSizeService(service, FailurePolicy.FAIL_LOCAL, breaker, 0, 100);
+  }
+
+  public void testLocalLeasesWhileRedisIsDown() throws Exception {
+    redis.setDown(true);
+
+    Lease first = resilient.tryAcquire(712233, "127.0.0.1", 2);
+    Lease second = resilient.tryAcquire(712233, "127.0.0.1", 2);
+    Lease third = resilient.tryAcquire(712233, "127.0.0.1", 2);
+
+    assertTrue(first.isAcquired());
+    assertTrue(second.isAcquired());
+    assertFalse(third.isAcquired());
+    assertEquals(60000, third.getRetryAfter());
+    assertTrue(resilient.release(first));
+    assertTrue(resilient.tryAcquire(712233, "127.0.0.1", 2).isAcquired());
+    // the first call opened the circuit
+    assertEquals(1, redis.getCalls());
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void testBufferChangesAreReplayed() throws Exception {
+    when(jedis.get("access:127.0.0.1")).thenReturn("5");
+    assertEquals(5, resilient.getCurrentBufferSize("127.0.0.1"));
+
+    redis.setDown(true);
+    assertEquals(6, resilient.incrementCurrentBufferSize("127.0.0.1"));
+    assertEquals(7, resilient.incrementCurrentBufferSize("127.0.0.1"));
+    assertEquals(7, resilient.getCurrentBufferSize("127.0.0.1"));
+
+    redis.setDown(false);
+    doReturn(Collections.emptyList()).when(service).pipelined(anyList(), anyList(), any(int[].class));
+    when(jedis.get("access:127.0.0.1")).thenReturn("7");
+    breaker.setClock(Clock.fixed(Instant.ofEpochMilli(712233 + 5000), ZoneOffset.UTC));
+    assertEquals(7, resilient.getCurrentBufferSize("127.0.0.1"));
+
+    ArgumentCaptor<List> ops = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List> subjects = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<int[]> values = ArgumentCaptor.forClass(int[].class);
+    verify(service, timeout(1000)).pipelined(ops.capture(), subjects.capture(), values.capture());
+    assertEquals(Arrays.asList(BufferSizeService.Op.INCRBY), ops.getValue());
+    assertEquals(Arrays.asList("127.0.0.1"), subjects.getValue());
+    assertEquals(2, values.getValue()[0]);
+  }
+}
@@ -0,0 +1,41 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+public class ResilientRateLimitServiceRedisTest extends RedisTestCase {
+
+  private static final long NOW = 1700000000500l;
+
+  public void testReconcileKeepsHitsRecordedSinceRecovery() throws Exception {
+    reconcileKeepsHitsRecordedSinceRecovery(false);
+  }
+
+  public void testScriptedReconcileKeepsHitsRecordedSinceRecovery() throws Exception {
+    reconcileKeepsHitsRecordedSinceRecovery(true);
+  }
+
+  private void reconcileKeepsHitsRecordedSinceRecovery(boolean scripted) {
+    final RateLimitService service = new RateLimitService(pool, "test", "resilient", 10);
+    service.setScripted(scripted);
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    final CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1000, 60000);
+    final ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_LOCAL, breaker, 0, 100);
+    try {
+      breaker.onFailure();
+      assertTrue(resilient.tryAcquire(NOW - 3000, "127.0.0.1", 10, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+      assertEquals(1, resilient.getJournalSize());
+      for (int i = 0; i < 3; i++) {
+        service.add(NOW, "127.0.0.1");
+      }
+
+      resilient.reconcile();
+      final CountResult cr = service.count(NOW, "127.0.0.1");
+      assertEquals(4, cr.getCount());
+      assertEquals(3, cr.getLatestBucketCount());
+    } finally {
+      resilient.close();
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import junit.framework.TestCase;
+
+public class ResilientRateLimitServiceTest extends TestCase {
+
+  private static final long NOW = 712233;
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+
+  private FaultInjector redis;
+  private RateLimitService service;
+  private CircuitBreaker breaker;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    redis = new FaultInjector(jedis);
+    when(pool.getResource()).then(redis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "9", "1", "1"));
+    service = spy(new RateLimitService(pool, "access", 10));
+    service.setScripted(true);
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    breaker = new CircuitBreaker(10, 4, 0.5, 1000, 5000);
+    breaker.setClock(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+  }
+
+  public void testPassesThroughWhileRedisIsUp() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_CLOSED, breaker, 0, 100);
+
+    assertEquals(1, resilient.count(NOW, "127.0.0.1").getCount());
+    assertEquals(1, redis.getCalls());
+  }
+
+  public void testFailOpenAllowsWhileRedisIsDown() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_OPEN, breaker, 0, 100);
+    redis.setDown(true);
+
+    assertTrue(resilient.tryAcquire(NOW, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    CountResult result = resilient.count(NOW, "127.0.0.1");
+    assertEquals(0, result.getCount());
+    assertEquals(10, result.getNumberOfEmptyBuckets());
+    resilient.add(NOW, "127.0.0.1");
+  }
+
+  public void testFailClosedDeniesWhileRedisIsDown() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_CLOSED, breaker, 0, 100);
+    redis.setDown(true);
+
+    assertFalse(resilient.tryAcquire(NOW, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    try {
+      resilient.count(NOW, "127.0.0.1");
+      fail();
+    } catch (JedisConnectionException ex) {
+      // expected
+    }
+  }
+
+  public void testOpenCircuitSkipsRedis() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_OPEN, breaker, 0, 100);
+    redis.setDown(true);
+    for (int i = 0; i < 4; i++) {
+      resilient.add(NOW, "127.0.0.1");
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    resilient.add(NOW, "127.0.0.1");
+    resilient.count(NOW, "127.0.0.1");
+    assertEquals(4, redis.getCalls());
+  }
+
+  public void testSlowRedisTimesOut() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_OPEN, breaker, 50, 100);
+    redis.setDelay(1000);
+
+    final long start = System.currentTimeMillis();
+    assertTrue(resilient.tryAcquire(NOW, "127.0.0.1", 0, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    assertTrue(System.currentTimeMillis() - start < 900);
+    assertEquals(1.0, breaker.getFailureRate(), 0.001);
+    resilient.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testProbeFailingInRedisStillReconciles() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_LOCAL, breaker, 0, 100);
+    redis.setDown(true);
+    for (int i = 0; i < 4; i++) {
+      resilient.count(NOW, "other");
+    }
+    assertTrue(resilient.tryAcquire(NOW, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+
+    redis.setDown(false);
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenThrow(new JedisDataException("ERR wrong script"));
+    doReturn(Collections.emptyList()).when(service).backfill(anyLong(), any(long[].class), anyList(), any(int[].class), anyBoolean());
+    breaker.setClock(Clock.fixed(Instant.ofEpochMilli(NOW + 5000), ZoneOffset.UTC));
+    try {
+      resilient.count(NOW, "127.0.0.1");
+      fail();
+    } catch (JedisDataException ex) {
+      // expected
+    }
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    verify(service, timeout(1000)).backfill(eq(NOW), any(long[].class), eq(Collections.singletonList("127.0.0.1")), any(int[].class), eq(false));
+    resilient.close();
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void testFailLocalLimitsAndReconciles() throws Exception {
+    ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_LOCAL, breaker, 0, 100);
+    redis.setDown(true);
+    for (int i = 0; i < 4; i++) {
+      resilient.count(NOW, "other");
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    // 0.2 tps over 10 seconds allows 2 hits
+    assertTrue(resilient.tryAcquire(NOW, "127.0.0.1", 0.2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    assertTrue(resilient.tryAcquire(NOW, "127.0.0.1", 0.2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    assertFalse(resilient.tryAcquire(NOW, "127.0.0.1", 0.2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    assertEquals(2, resilient.count(NOW, "127.0.0.1").getCount());
+    assertEquals(1, resilient.getJournalSize());
+
+    redis.setDown(false);
+    doReturn(Collections.emptyList()).when(service).backfill(anyLong(), any(long[].class), anyList(), any(int[].class), anyBoolean());
+    breaker.setClock(Clock.fixed(Instant.ofEpochMilli(NOW + 5000), ZoneOffset.UTC));
+    assertEquals(1, resilient.count(NOW, "127.0.0.1").getCount());
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    ArgumentCaptor<long[]> times = ArgumentCaptor.forClass(long[].class);
+    ArgumentCaptor<List> subjects = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<int[]> hits = ArgumentCaptor.forClass(int[].class);
+    verify(service, timeout(1000)).backfill(eq(NOW), times.capture(), subjects.capture(), hits.capture(), eq(false));
+    assertEquals(0, resilient.getJournalSize());
+    assertEquals(712000, times.getValue()[0]);
+    assertEquals(Collections.singletonList("127.0.0.1"), subjects.getValue());
+    assertEquals(2, hits.getValue()[0]);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testHitsJournaledDuringReconcileAreKept() throws Exception {
+    final ResilientRateLimitService resilient = new ResilientRateLimitService(service, FailurePolicy.FAIL_LOCAL, breaker, 0, 100);
+    redis.setDown(true);
+    for (int i = 0; i < 4; i++) {
+      resilient.count(NOW, "other");
+    }
+    final AtomicInteger sent = new AtomicInteger();
+    doAnswer(new Answer<List<CountResult>>() {
+
+      @Override
+      public List<CountResult> answer(InvocationOnMock invocation) throws Throwable {
+        for (int hits : (int[]) invocation.getArguments()[3]) {
+          sent.addAndGet(hits);
+        }
+        return Collections.emptyList();
+      }
+    }).when(service).backfill(anyLong(), any(long[].class), anyList(), any(int[].class), anyBoolean());
+
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            resilient.add(NOW, "127.0.0.1");
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        resilient.reconcile();
+      }
+    }
+    resilient.reconcile();
+    assertEquals(80000, sent.get());
+    resilient.close();
+  }
+}
@@ -0,0 +1,101 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.JedisPool;
+import junit.framework.TestCase;
+
+public class ShardedPoolTest extends TestCase {
+
+  private List<JedisPool> pools;
+  private ShardedPool shards;
+
+  @Override
+  protected void setUp() throws Exception {
+    pools = new ArrayList<JedisPool>();
+    for (int i = 0; i < 3; i++) {
+      pools.add(mock(JedisPool.class));
+    }
+    shards = new ShardedPool(pools);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    shards.destroy();
+  }
+
+  public void testSinglePool() throws Exception {
+    JedisPool pool = mock(JedisPool.class);
+    ShardedPool single = new ShardedPool(pool);
+    assertFalse(single.isSharded());
+    assertSame(pool, single.getPool("access:127.0.0.1"));
+  }
+
+  public void testHashTagsColocate() throws Exception {
+    SubjectKeyGenerator generator = new SubjectKeyGenerator(true);
+    for (int i = 0; i < 100; i++) {
+      String subject = "10.0.0." + i;
+      assertSame(shards.getPool(generator.getKeyForSubject(null, "access", subject)),
+          shards.getPool(generator.getKeyForSubject("ns", "buffer", subject)));
+    }
+  }
+
+  public void testForEachShardKeepsOrder() throws Exception {
+    final List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      keys.add("access:10.0.0." + i);
+    }
+    final List<JedisPool> used = new ArrayList<JedisPool>();
+
+    List<String> results = shards.forEachShard(keys.size(), new ShardedPool.ShardBatch<String>() {
+
+      @Override
+      String key(int index) {
+        return keys.get(index);
+      }
+
+      @Override
+      List<String> execute(JedisPool pool, List<Integer> indexes) {
+        synchronized (used) {
+          used.add(pool);
+        }
+        List<String> results = new ArrayList<String>();
+        for (int i : indexes) {
+          assertSame(pool, shards.getPool(keys.get(i)));
+          results.add(keys.get(i));
+        }
+        return results;
+      }
+    });
+
+    assertEquals(keys, results);
+    assertEquals(3, used.size());
+    assertTrue(used.containsAll(pools));
+  }
+
+  public void testForEachShardPropagatesFailure() throws Exception {
+    try {
+      shards.forEachShard(10, new ShardedPool.ShardBatch<String>() {
+
+        @Override
+        String key(int index) {
+          return "access:" + index;
+        }
+
+        @Override
+        List<String> execute(JedisPool pool, List<Integer> indexes) {
+          if (pool == pools.get(1)) {
+            throw new IllegalStateException("down");
+          }
+          return new ArrayList<String>(Arrays.asList(new String[indexes.size()]));
+        }
+      });
+      fail();
+    } catch (IllegalStateException ex) {
+      assertEquals("down", ex.getMessage());
+    }
+  }
+}
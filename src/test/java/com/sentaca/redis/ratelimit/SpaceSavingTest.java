@@ -0,0 +1,70 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SpaceSavingTest extends TestCase {
+
+  public void testCountsExactlyBelowCapacity() throws Exception {
+    SpaceSaving summary = new SpaceSaving(3);
+    summary.offer("a", 1);
+    summary.offer("b", 5);
+    summary.offer("c", 2);
+    summary.offer("a", 3);
+
+    Map<String, Long> top = summary.top();
+    assertEquals(Arrays.asList("b", "a", "c"), Arrays.asList(top.keySet().toArray()));
+    assertEquals(5, (long) top.get("b"));
+    assertEquals(4, (long) top.get("a"));
+    assertEquals(2, (long) top.get("c"));
+  }
+
+  public void testNewItemTakesOverSmallestCounter() throws Exception {
+    SpaceSaving summary = new SpaceSaving(2);
+    summary.offer("a", 5);
+    summary.offer("b", 2);
+    summary.offer("c", 1);
+
+    Map<String, Long> top = summary.top();
+    assertEquals(2, top.size());
+    assertEquals(5, (long) top.get("a"));
+    // upper bound, b had 2
+    assertEquals(3, (long) top.get("c"));
+    assertFalse(top.containsKey("b"));
+  }
+
+  public void testKeepsHeavyHitters() throws Exception {
+    SpaceSaving summary = new SpaceSaving(20);
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      if (i % 10 == 0) {
+        summary.offer("hot-1", 1);
+      } else if (i % 10 == 1) {
+        summary.offer("hot-2", 1);
+      } else {
+        summary.offer("cold-" + random.nextInt(10000), 1);
+      }
+    }
+
+    Iterator<Map.Entry<String, Long>> top = summary.top().entrySet().iterator();
+    Map.Entry<String, Long> first = top.next();
+    Map.Entry<String, Long> second = top.next();
+    assertTrue(first.getKey().startsWith("hot-"));
+    assertTrue(second.getKey().startsWith("hot-"));
+    assertTrue(first.getValue() >= 10000);
+    assertTrue(second.getValue() >= 10000);
+  }
+
+  public void testDrainStartsNewSummary() throws Exception {
+    SpaceSaving summary = new SpaceSaving(2);
+    summary.offer("a", 1);
+
+    assertEquals(1, summary.drain().size());
+    assertEquals(0, summary.size());
+    assertTrue(summary.top().isEmpty());
+  }
+}
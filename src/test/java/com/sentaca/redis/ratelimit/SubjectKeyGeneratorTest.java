@@ -0,0 +1,30 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+
+import redis.clients.util.SafeEncoder;
+import junit.framework.TestCase;
+
+public class SubjectKeyGeneratorTest extends TestCase {
+
+  private SubjectKeyGenerator generator = new SubjectKeyGenerator();
+
+  public void testBinaryKeyEqualsStringKey() throws Exception {
+    for (String subject : new String[] { "127.0.0.1", "", "zażółć", "€" }) {
+      assertTrue(subject, Arrays.equals(SafeEncoder.encode(generator.getKeyForSubject("ns", "access", subject)),
+          generator.getKeyForSubject(generator.getKeyPrefix("ns", "access"), subject)));
+      assertTrue(subject, Arrays.equals(SafeEncoder.encode(generator.getKeyForSubject(null, "access", subject)),
+          generator.getKeyForSubject(generator.getKeyPrefix(null, "access"), subject)));
+    }
+  }
+
+  public void testHashTags() throws Exception {
+    SubjectKeyGenerator tagged = new SubjectKeyGenerator(true);
+    assertEquals("ns:access:{127.0.0.1}", tagged.getKeyForSubject("ns", "access", "127.0.0.1"));
+    assertEquals("access:{127.0.0.1}", tagged.getKeyForSubject(null, "access", "127.0.0.1"));
+    for (String subject : new String[] { "127.0.0.1", "", "zażółć" }) {
+      assertTrue(subject, Arrays.equals(SafeEncoder.encode(tagged.getKeyForSubject("ns", "access", subject)),
+          tagged.getKeyForSubject(tagged.getKeyPrefix("ns", "access"), subject)));
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.sentaca.redis.ratelimit;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class TokenBucketRateLimitServiceRedisTest extends RedisTestCase {
+
+  private static final long NOW = 1700000000500l;
+
+  private TokenBucketRateLimitService service(TokenBucketAlgorithm algorithm) {
+    // 1 tps, up to 10 pending hits
+    final TokenBucketRateLimitService service = new TokenBucketRateLimitService(pool, "test", algorithm.name(), 1, 10);
+    service.setAlgorithm(algorithm);
+    return service;
+  }
+
+  public void testBurstThenLimitRate() throws Exception {
+    for (TokenBucketAlgorithm algorithm : TokenBucketAlgorithm.values()) {
+      final TokenBucketRateLimitService service = service(algorithm);
+      for (int i = 0; i < 10; i++) {
+        assertTrue(algorithm.name(), service.tryAcquire(NOW, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+      }
+      final AcquireResult denied = service.tryAcquire(NOW, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS);
+      assertFalse(algorithm.name(), denied.isAllowed());
+      assertEquals(algorithm.name(), 1000, denied.getRetryAfter());
+      assertEquals(algorithm.name(), 10, service.count(NOW, "127.0.0.1").getCount());
+
+      // one hit drains per second
+      assertEquals(algorithm.name(), 8, service.count(NOW + 2000, "127.0.0.1").getCount());
+      assertTrue(algorithm.name(), service.tryAcquire(NOW + 1000, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+      assertFalse(algorithm.name(), service.tryAcquire(NOW + 1000, "127.0.0.1", 1, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    }
+  }
+
+  public void testAddRecordsOverTheLimit() throws Exception {
+    for (TokenBucketAlgorithm algorithm : TokenBucketAlgorithm.values()) {
+      final TokenBucketRateLimitService service = service(algorithm);
+      for (int i = 0; i < 12; i++) {
+        service.add(NOW, "127.0.0.1");
+      }
+      assertEquals(algorithm.name(), 13, service.addAndCount(NOW, "127.0.0.1").getCount());
+      final Map<String, CountResult> all = service.countAll(NOW, Arrays.asList("127.0.0.1", "127.0.0.2"));
+      assertEquals(algorithm.name(), 13, all.get("127.0.0.1").getCount());
+      assertEquals(algorithm.name(), 0, all.get("127.0.0.2").getCount());
+    }
+  }
+}
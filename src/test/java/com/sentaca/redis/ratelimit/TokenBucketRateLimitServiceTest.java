@@ -0,0 +1,98 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import junit.framework.TestCase;
+
+public class TokenBucketRateLimitServiceTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+
+  private TokenBucketRateLimitService service;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    service = new TokenBucketRateLimitService(pool, null, "access", 6, 10);
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testTryAcquireDenied() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("0", "167", "60.000000"));
+
+    AcquireResult result = service.tryAcquire(712233, "127.0.0.1", 6, ThrottleRule.BY_PEAK_TPS);
+
+    List<String> args = Arrays.asList("712233000", "166666", "10000000", "1", "1");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    assertFalse(result.isAllowed());
+    assertEquals(167, result.getRetryAfter());
+    assertEquals(6.0, result.getTps().getTps(), 0.001);
+    assertEquals(6.0, result.getTps().get(ThrottleRule.BY_LATEST_BUCKET_TPS), 0.001);
+    assertEquals(60, result.getTps().getCounters().getCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testCountDoesNotRecord() throws Exception {
+    service.setAlgorithm(TokenBucketAlgorithm.TOKEN_BUCKET);
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "0", "2.500000"));
+
+    CountResult result = service.count(712233, "127.0.0.1");
+
+    List<String> args = Arrays.asList("712233000", "166666", "10000000", "0", "0");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+    assertEquals(3, result.getCount());
+    assertEquals(0, result.getNumberOfEmptyBuckets());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testCallWithoutTimeUsesTheClock() throws Exception {
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("1", "0", "2.500000"));
+
+    service.tps("127.0.0.1");
+
+    List<String> args = Arrays.asList("712233000", "166666", "10000000", "0", "0");
+    verify(jedis).evalsha("sha", Collections.singletonList("access:127.0.0.1"), args);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testBrokenConnectionIsNotReused() throws Exception {
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenThrow(new JedisConnectionException("reset"));
+
+    try {
+      service.count(712233, "127.0.0.1");
+      fail();
+    } catch (JedisConnectionException ex) {
+      // expected
+    }
+
+    verify(jedis).disconnect();
+    verify(pool).returnResource(jedis);
+  }
+
+  public void testLimitMustAllowOneHit() throws Exception {
+    try {
+      new TokenBucketRateLimitService(pool, null, "access", 0.05, 10);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+import junit.framework.TestCase;
+
+public class TopSubjectsTest extends TestCase {
+
+  @Mock
+  private JedisPool pool;
+  @Mock
+  private Jedis jedis;
+  @Mock
+  private Pipeline pipeline;
+
+  private TopSubjects top;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    top = new TopSubjects(pool, "ns", 10, 60, 0);
+    top.setClock(Clock.fixed(Instant.ofEpochMilli(712233), ZoneOffset.UTC));
+  }
+
+  public void testFlushMergesSummaryIntoSortedSet() throws Exception {
+    top.offer("access", "127.0.0.1", 3);
+    top.offer("access", "127.0.0.2", 1);
+    top.offer("access", "127.0.0.1", 1);
+
+    top.flush();
+
+    verify(pipeline).zincrby("ns:access:~top:11", 4, "127.0.0.1");
+    verify(pipeline).zincrby("ns:access:~top:11", 1, "127.0.0.2");
+    verify(pipeline).zremrangeByRank("ns:access:~top:11", 0, -21);
+    verify(pipeline).expire("ns:access:~top:11", 120);
+    verify(pipeline).sync();
+
+    top.flush();
+    verify(jedis, times(1)).pipelined();
+  }
+
+  public void testTopSubjectsSumsTwoPeriods() throws Exception {
+    when(jedis.zrevrangeWithScores("ns:access:~top:10", 0, -1)).thenReturn(
+        new LinkedHashSet<Tuple>(Arrays.asList(new Tuple("a", 5.0), new Tuple("b", 4.0))));
+    when(jedis.zrevrangeWithScores("ns:access:~top:11", 0, -1)).thenReturn(
+        new LinkedHashSet<Tuple>(Arrays.asList(new Tuple("c", 7.0), new Tuple("b", 2.0))));
+
+    Map<String, Long> result = top.topSubjects("access", 2);
+
+    assertEquals(Arrays.asList("c", "b"), Arrays.asList(result.keySet().toArray()));
+    assertEquals(7, (long) result.get("c"));
+    assertEquals(6, (long) result.get("b"));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testRateLimitServiceOffersRecordedHits() throws Exception {
+    RateLimitService service = new RateLimitService(pool, "access", 10);
+    service.setScripted(true);
+    service.setTopSubjects(top);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+    when(jedis.evalsha(eq("sha"), anyList(), anyList())).thenReturn(Arrays.asList("3", "9", "3", "3"));
+
+    service.add(712233, "127.0.0.1", 3);
+    top.flush();
+
+    verify(pipeline).zincrby("ns:access:~top:11", 3, "127.0.0.1");
+  }
+}
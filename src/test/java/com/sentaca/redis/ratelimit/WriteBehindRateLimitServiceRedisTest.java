@@ -0,0 +1,51 @@
+package com.sentaca.redis.ratelimit;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+public class WriteBehindRateLimitServiceRedisTest extends RedisTestCase {
+
+  private static final long NOW = 1700000000500l;
+
+  private RateLimitService service(boolean scripted) {
+    final RateLimitService service = new RateLimitService(pool, "test", "write-behind", 10);
+    service.setScripted(scripted);
+    service.setClock(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    return service;
+  }
+
+  public void testFlushOfOlderBucketKeepsHitsOfOtherNodes() throws Exception {
+    flushKeepsHitsOfOtherNodes(false);
+  }
+
+  public void testScriptedFlushOfOlderBucketKeepsHitsOfOtherNodes() throws Exception {
+    flushKeepsHitsOfOtherNodes(true);
+  }
+
+  private void flushKeepsHitsOfOtherNodes(boolean scripted) {
+    final RateLimitService other = service(scripted);
+    final WriteBehindRateLimitService writeBehind = new WriteBehindRateLimitService(service(scripted), 60000);
+    try {
+      writeBehind.add(NOW - 2000, "127.0.0.1");
+      writeBehind.add(NOW, "127.0.0.1");
+      other.add(NOW, "127.0.0.1");
+      other.add(NOW, "127.0.0.1");
+      writeBehind.flush();
+
+      final CountResult cr = other.count(NOW, "127.0.0.1");
+      assertEquals(4, cr.getCount());
+      assertEquals(3, cr.getLatestBucketCount());
+    } finally {
+      writeBehind.close();
+    }
+  }
+
+  public void testHitsOlderThanTheWindowAreDropped() throws Exception {
+    final RateLimitService service = service(false);
+    service.add(NOW, "127.0.0.1");
+    service.backfill(NOW, new long[] { NOW - 20000 }, Arrays.asList("127.0.0.1"), new int[] { 5 }, false);
+    assertEquals(1, service.count(NOW, "127.0.0.1").getCount());
+  }
+}
@@ -0,0 +1,166 @@
+package com.sentaca.redis.ratelimit;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class WriteBehindRateLimitServiceTest extends TestCase {
+
+  @Mock
+  private RateLimitService remote;
+
+  private WriteBehindRateLimitService service;
+
+  private long now;
+
+  @SuppressWarnings("unchecked")
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(remote.getClock()).thenReturn(Clock.systemUTC());
+    when(remote.getBucketInterval()).thenReturn(1);
+    when(remote.getTpsInterval()).thenReturn(10);
+    when(remote.getBucketIndex(anyLong())).thenAnswer(new Answer<Long>() {
+
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        return (Long) invocation.getArguments()[0] / 1000;
+      }
+    });
+    when(remote.backfill(anyLong(), any(long[].class), anyList(), any(int[].class), eq(true))).thenAnswer(new Answer<List<CountResult>>() {
+
+      @Override
+      public List<CountResult> answer(InvocationOnMock invocation) throws Throwable {
+        List<CountResult> results = new ArrayList<CountResult>();
+        for (int i = 0; i < ((List<String>) invocation.getArguments()[2]).size(); i++) {
+          results.add(new CountResult(0, 10, 0, 0));
+        }
+        return results;
+      }
+    });
+    service = new WriteBehindRateLimitService(remote, 60000);
+    now = System.currentTimeMillis();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    service.close();
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void testHitsAreFlushedInOneBatch() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      service.add(now, "127.0.0.1");
+    }
+    service.add(now, "127.0.0.2");
+    verify(remote, never()).add(anyLong(), anyString());
+
+    when(remote.backfill(anyLong(), any(long[].class), anyList(), any(int[].class), eq(true))).thenReturn(
+        Arrays.asList(new CountResult(1000, 9, 1000, 1000), new CountResult(1, 9, 1, 1)));
+    service.flush();
+
+    ArgumentCaptor<List> subjects = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<int[]> hits = ArgumentCaptor.forClass(int[].class);
+    verify(remote).backfill(anyLong(), any(long[].class), subjects.capture(), hits.capture(), eq(true));
+    assertEquals(2, subjects.getValue().size());
+    assertEquals(1000, hits.getValue()[subjects.getValue().indexOf("127.0.0.1")]);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testHitsOfFailedFlushAreSentAgain() throws Exception {
+    service.add(now - 2000, "127.0.0.1");
+    service.add(now, "127.0.0.1");
+    service.flush();
+
+    // the second flush of the older bucket retires it
+    service.add(now - 2000, "127.0.0.1");
+    when(remote.backfill(anyLong(), any(long[].class), anyList(), any(int[].class), eq(true))).thenThrow(new IllegalStateException("down"));
+    try {
+      service.flush();
+      fail();
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+
+    reset(remote);
+    when(remote.getClock()).thenReturn(Clock.systemUTC());
+    service.flush();
+    final ArgumentCaptor<long[]> times = ArgumentCaptor.forClass(long[].class);
+    final ArgumentCaptor<int[]> hits = ArgumentCaptor.forClass(int[].class);
+    verify(remote).backfill(anyLong(), times.capture(), anyList(), hits.capture(), eq(true));
+    assertEquals(now - 2000, times.getValue()[0]);
+    assertEquals(1, hits.getValue()[0]);
+  }
+
+  public void testCountCombinesRemoteAndLocalHits() throws Exception {
+    when(remote.count(now, "127.0.0.1")).thenReturn(new CountResult(5, 8, 3, 0));
+    service.add(now, "127.0.0.1");
+    service.add(now, "127.0.0.1");
+
+    CountResult result = service.count(now, "127.0.0.1");
+    assertEquals(7, result.getCount());
+    assertEquals(7, result.getNumberOfEmptyBuckets());
+    assertEquals(3, result.getPeakCount());
+    assertEquals(2, result.getLatestBucketCount());
+
+    // the remote window is cached
+    service.count(now, "127.0.0.1");
+    verify(remote, times(1)).count(now, "127.0.0.1");
+  }
+
+  public void testTryAcquire() throws Exception {
+    when(remote.count(now, "127.0.0.1")).thenReturn(new CountResult(19, 9, 19, 0));
+    assertTrue(service.tryAcquire(now, "127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS).isAllowed());
+    AcquireResult result = service.tryAcquire(now, "127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS);
+    assertFalse(result.isAllowed());
+    assertEquals(1000 - now % 1000, result.getRetryAfter());
+  }
+
+  public void testConcurrentTryAcquireDoesNotOvershoot() throws Exception {
+    when(remote.count(anyLong(), eq("127.0.0.1"))).thenReturn(new CountResult(0, 10, 0, 0));
+    final AtomicInteger allowed = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final Thread thread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException ex) {
+            return;
+          }
+          for (int j = 0; j < 100; j++) {
+            // 2 tps over 10 seconds allows 20 hits
+            if (service.tryAcquire(now, "127.0.0.1", 2, ThrottleRule.BY_AVERAGE_TPS).isAllowed()) {
+              allowed.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    assertEquals(20, allowed.get());
+    assertEquals(20, service.count(now, "127.0.0.1").getCount());
+  }
+}
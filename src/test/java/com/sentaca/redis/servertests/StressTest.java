@@ -4,6 +4,8 @@ import junit.framework.TestCase;
 
 import org.junit.Ignore;
 
+import com.sentaca.redis.ratelimit.ThrottleRule;
+
 /***
  * This test i susefull to see how the redis-ratelimit work. It requires a redis
  * server on the local machine running.
@@ -19,7 +21,7 @@ public class StressTest extends TestCase {
     int bucketSpan = 100;
     int bucketInterval = 3;
     int tpsInterval = 10;
-    TestServer server = new TestServer(allowedTps, bucketSpan, bucketInterval, tpsInterval, ThrottleRuleType.BY_AVERAGE_TPS);
+    TestServer server = new TestServer(allowedTps, bucketSpan, bucketInterval, tpsInterval, ThrottleRule.BY_AVERAGE_TPS);
 
     /* simulation time in seconds */
     double simulationTime = 15;
@@ -3,12 +3,13 @@ package com.sentaca.redis.servertests;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
+import com.sentaca.redis.ratelimit.AcquireResult;
 import com.sentaca.redis.ratelimit.RateLimitService;
+import com.sentaca.redis.ratelimit.ThrottleRule;
 import com.sentaca.redis.ratelimit.Tps;
 
 /***
@@ -23,7 +24,6 @@ public class TestServer {
   private JedisPool jedisPool;
   private int allowedTPS = 35;
   private RateLimitService rateService;
-  private int tpsInterval;
   private int hitNumber = 0;
   private int sleepCount = 0;
   private int rejectedHits = 0;
@@ -33,16 +33,15 @@ public class TestServer {
   private int currentThreads = 0;
   private Object lock = new Object();
 
-  private ThrottleRuleType ruleType = ThrottleRuleType.BY_AVERAGE_TPS;
+  private ThrottleRule ruleType = ThrottleRule.BY_AVERAGE_TPS;
 
-  public TestServer(int allowedTps, int bucketSpan, int bucketInterval, int tpsInterval, ThrottleRuleType rule) {
+  public TestServer(int allowedTps, int bucketSpan, int bucketInterval, int tpsInterval, ThrottleRule rule) {
     jedisPool = new JedisPool("localhost");
     Jedis j = jedisPool.getResource();
     j.flushDB();
     jedisPool.returnResource(j);
 
     this.allowedTPS = allowedTps;
-    this.tpsInterval = tpsInterval;
 
     rateService = new RateLimitService(jedisPool, null, "access", bucketSpan, bucketInterval, tpsInterval);
 
@@ -78,23 +77,18 @@ public class TestServer {
 
     final int hit = hitNumber;
 
-    Tps tps = rateService.tps("192.168.1.1");
+    AcquireResult result;
 
-    /* get current TPS depending on the throttle rule */
-    double currentTps;
-    
-    while ((currentTps = getCurrentTps(tps)) > allowedTPS) {
-      long sleep = (long) (tpsInterval * (currentTps - allowedTPS) * 1000 / allowedTPS);
-      printMessage(hit, tps, sleep);
+    /* check and record the hit atomically depending on the throttle rule */
+    while (!(result = rateService.tryAcquire("192.168.1.1", allowedTPS, ruleType)).isAllowed()) {
+      long sleep = result.getRetryAfter();
+      printMessage(hit, result.getTps(), sleep);
 
       sleepCount++;
       Thread.sleep(sleep);
-
-      tps = rateService.tps("192.168.1.1");
     }
 
-    rateService.add(new Date().getTime(), "192.168.1.1");
-
+    Tps tps = result.getTps();
     printMessage(hit, tps, 0);
 
     return true;
@@ -144,18 +138,4 @@ public class TestServer {
         + df.format(tps.getPeakTps()) + "                " + df.format(tps.getLatestBucketTps()) + "\t\t       "
         + df.format(tps.getCounters().getNumberOfEmptyBuckets()) + "\t     " + hitWaiting + "\t" + sleepTime + "\t" + currentThreads);
   }
-
-  private double getCurrentTps(Tps tps) {
-    switch (ruleType) {
-    case BY_NO_EMTPY_BUCKETS_TPS:
-      return tps.getTpsNoEmptyBuckets();
-    case BY_PEAK_TPS:
-      return tps.getPeakTps();
-    case BY_LATEST_BUCKET_TPS:
-      return tps.getLatestBucketTps();
-    default:
-    case BY_AVERAGE_TPS:
-      return tps.getTps();
-    }
-  }
 }